@@ -0,0 +1,100 @@
+package io.prometheus.cloudwatch;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket whose rate adapts to throttling, additive increase and multiplicative decrease.
+ *
+ * <p>The rate starts at the configured maximum. Every throttled request halves it, at most once a
+ * second as a burst of requests is usually throttled together, and every second without throttling
+ * adds back a twentieth of the maximum.
+ */
+final class AdaptiveRateLimiter {
+
+  private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final double DECREASE_FACTOR = 0.5;
+  private static final double INCREASE_PER_SECOND_FRACTION = 0.05;
+  private static final double MIN_RATE_FRACTION = 0.01;
+
+  private final double maxRate;
+  private final double minRate;
+  private final double increasePerSecond;
+  private final LongSupplier nanoTime;
+
+  private double rate;
+  private double tokens;
+  private long lastRefillNanos;
+  private long lastIncreaseNanos;
+  private long lastDecreaseNanos;
+
+  /**
+   * @param maxRate - the most requests per second, also the rate to start with
+   */
+  AdaptiveRateLimiter(double maxRate) {
+    this(maxRate, System::nanoTime);
+  }
+
+  AdaptiveRateLimiter(double maxRate, LongSupplier nanoTime) {
+    this.maxRate = maxRate;
+    this.minRate = maxRate * MIN_RATE_FRACTION;
+    this.increasePerSecond = maxRate * INCREASE_PER_SECOND_FRACTION;
+    this.nanoTime = nanoTime;
+    this.rate = maxRate;
+    this.tokens = Math.max(1, maxRate);
+    long now = nanoTime.getAsLong();
+    this.lastRefillNanos = now;
+    this.lastIncreaseNanos = now;
+    this.lastDecreaseNanos = now - DECREASE_INTERVAL_NANOS;
+  }
+
+  /**
+   * Take a token, waiting until one is available.
+   *
+   * @return the nanoseconds waited
+   */
+  long acquire() throws InterruptedException {
+    long waitNanos = reserve();
+    if (waitNanos > 0) {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    }
+    return waitNanos;
+  }
+
+  /**
+   * Take a token, which may not be available yet.
+   *
+   * @return the nanoseconds until the token is available
+   */
+  synchronized long reserve() {
+    long now = nanoTime.getAsLong();
+    tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefillNanos) / 1.0E9 * rate);
+    lastRefillNanos = now;
+    tokens -= 1;
+    if (tokens >= 0) {
+      return 0;
+    }
+    return (long) (-tokens / rate * 1.0E9);
+  }
+
+  synchronized void onSuccess() {
+    long now = nanoTime.getAsLong();
+    rate = Math.min(maxRate, rate + (now - lastIncreaseNanos) / 1.0E9 * increasePerSecond);
+    lastIncreaseNanos = now;
+  }
+
+  synchronized void onThrottled() {
+    long now = nanoTime.getAsLong();
+    lastIncreaseNanos = now;
+    if (now - lastDecreaseNanos < DECREASE_INTERVAL_NANOS) {
+      return;
+    }
+    rate = Math.max(minRate, rate * DECREASE_FACTOR);
+    lastDecreaseNanos = now;
+  }
+
+  /** The current rate, in requests per second. */
+  synchronized double rate() {
+    return rate;
+  }
+}
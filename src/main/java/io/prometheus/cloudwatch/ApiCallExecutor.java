@@ -0,0 +1,170 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import software.amazon.awssdk.core.exception.SdkServiceException;
+
+/**
+ * Makes the requests to an AWS API, observing how long each one takes in a histogram labelled by
+ * action and namespace (or resource type for the Tagging API).
+ *
+ * <p>With a rate limit, requests of each action wait for an {@link AdaptiveRateLimiter} first,
+ * which slows down when AWS throttles them. The rate limiters are kept across reloads of the
+ * config.
+ */
+final class ApiCallExecutor {
+
+  private final Histogram requestDuration;
+  private final RateLimits rateLimits;
+  private final Map<String, AdaptiveRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+
+  /**
+   * @param requestDuration - histogram with the label names action and namespace, may be null
+   */
+  ApiCallExecutor(Histogram requestDuration) {
+    this(requestDuration, null);
+  }
+
+  /**
+   * @param rateLimits - the rate limit of every action, null to send requests without waiting
+   */
+  ApiCallExecutor(Histogram requestDuration, RateLimits rateLimits) {
+    this.requestDuration = requestDuration;
+    this.rateLimits = rateLimits;
+  }
+
+  /** Keep the rate limiters of the previous config's executor, unless its rate limit changed. */
+  void carryOver(ApiCallExecutor previous) {
+    if (rateLimits != null
+        && previous.rateLimits != null
+        && rateLimits.maxRequestsPerSecond == previous.rateLimits.maxRequestsPerSecond) {
+      rateLimiters.putAll(previous.rateLimiters);
+    }
+  }
+
+  /** Make a blocking request. */
+  <T> T call(String action, String namespace, Supplier<T> request) {
+    return call(action, List.of(namespace), request);
+  }
+
+  /** Make a blocking request for several namespaces, it's observed once for each of them. */
+  <T> T call(String action, Collection<String> namespaces, Supplier<T> request) {
+    AdaptiveRateLimiter rateLimiter = acquire(action);
+    long start = System.nanoTime();
+    try {
+      T response = request.get();
+      onSuccess(action, rateLimiter);
+      return response;
+    } catch (RuntimeException e) {
+      onFailure(action, rateLimiter, e);
+      throw e;
+    } finally {
+      observe(action, namespaces, start);
+    }
+  }
+
+  /** Make a request with an async client, it's observed once the response arrives. */
+  <T> CompletableFuture<T> callAsync(
+      String action, String namespace, Supplier<CompletableFuture<T>> request) {
+    AdaptiveRateLimiter rateLimiter = acquire(action);
+    long start = System.nanoTime();
+    return request
+        .get()
+        .whenComplete(
+            (response, e) -> {
+              if (e == null) {
+                onSuccess(action, rateLimiter);
+              } else {
+                onFailure(action, rateLimiter, e);
+              }
+              observe(action, List.of(namespace), start);
+            });
+  }
+
+  private AdaptiveRateLimiter acquire(String action) {
+    if (rateLimits == null) {
+      return null;
+    }
+    AdaptiveRateLimiter rateLimiter =
+        rateLimiters.computeIfAbsent(
+            action,
+            a -> {
+              AdaptiveRateLimiter limiter =
+                  new AdaptiveRateLimiter(rateLimits.maxRequestsPerSecond);
+              rateLimits.rate.labels(a, rateLimits.region, rateLimits.roleArn).set(limiter.rate());
+              return limiter;
+            });
+    try {
+      long waitNanos = rateLimiter.acquire();
+      if (waitNanos > 0) {
+        rateLimits
+            .waitSeconds
+            .labels(action, rateLimits.region, rateLimits.roleArn)
+            .inc(waitNanos / 1.0E9);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for the " + action + " rate limit", e);
+    }
+    return rateLimiter;
+  }
+
+  private void onSuccess(String action, AdaptiveRateLimiter rateLimiter) {
+    if (rateLimiter != null) {
+      rateLimiter.onSuccess();
+      rateLimits.rate.labels(action, rateLimits.region, rateLimits.roleArn).set(rateLimiter.rate());
+    }
+  }
+
+  private void onFailure(String action, AdaptiveRateLimiter rateLimiter, Throwable e) {
+    if (rateLimiter == null) {
+      return;
+    }
+    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    if (cause instanceof SdkServiceException
+        && ((SdkServiceException) cause).isThrottlingException()) {
+      rateLimiter.onThrottled();
+      rateLimits.rate.labels(action, rateLimits.region, rateLimits.roleArn).set(rateLimiter.rate());
+    }
+  }
+
+  private void observe(String action, Collection<String> namespaces, long start) {
+    if (requestDuration != null) {
+      double seconds = (System.nanoTime() - start) / 1.0E9;
+      for (String namespace : namespaces) {
+        requestDuration.labels(action, namespace).observe(seconds);
+      }
+    }
+  }
+
+  /** The rate limit of the requests to an API in a region with a role, and where to report it. */
+  static final class RateLimits {
+    final double maxRequestsPerSecond;
+    final String region;
+    final String roleArn;
+    // Both labelled by action, region and role.
+    final Counter waitSeconds;
+    final Gauge rate;
+
+    RateLimits(
+        double maxRequestsPerSecond,
+        String region,
+        String roleArn,
+        Counter waitSeconds,
+        Gauge rate) {
+      this.maxRequestsPerSecond = maxRequestsPerSecond;
+      this.region = region;
+      this.roleArn = roleArn;
+      this.waitSeconds = waitSeconds;
+      this.rate = rate;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Counter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
+
+/**
+ * A {@link GetMetricDataDataGetter} counterpart that sends all GetMetricData requests of a rule at
+ * once through the {@link CloudWatchAsyncClient}, only blocking when the results are read.
+ */
+class AsyncGetMetricDataDataGetter implements DataGetter {
+
+  private final CompletableFuture<Map<String, MetricRuleData>> results;
+
+  AsyncGetMetricDataDataGetter(
+      CloudWatchAsyncClient client,
+      long start,
+      MetricRule rule,
+      Counter apiRequestsCounter,
+      Counter metricsRequestedCounter,
+      ApiCallExecutor apiCalls,
+      List<List<Dimension>> dimensionsList) {
+    List<CompletableFuture<List<MetricDataResult>>> responses = new ArrayList<>();
+    for (GetMetricDataRequest request :
+        GetMetricDataDataGetter.buildMetricDataRequests(rule, start, dimensionsList)) {
+      responses.add(
+          apiCalls
+              .callAsync("getMetricData", rule.awsNamespace, () -> client.getMetricData(request))
+              .thenApply(
+                  response -> {
+                    apiRequestsCounter.labels("getMetricData", rule.awsNamespace).inc();
+                    return response.metricDataResults();
+                  }));
+    }
+    this.results =
+        CompletableFuture.allOf(responses.toArray(new CompletableFuture[0]))
+            .thenApply(
+                ignored -> {
+                  metricsRequestedCounter
+                      .labels(rule.awsMetricName, rule.awsNamespace)
+                      .inc(GetMetricDataDataGetter.metricsRequestedForBilling(rule));
+                  List<MetricDataResult> all = new ArrayList<>();
+                  for (CompletableFuture<List<MetricDataResult>> response : responses) {
+                    all.addAll(response.join());
+                  }
+                  return GetMetricDataDataGetter.toMap(all);
+                });
+  }
+
+  @Override
+  public MetricRuleData metricRuleDataFor(List<Dimension> dimensions) {
+    return join(results).get(GetMetricDataDataGetter.dimensionsToKey(dimensions));
+  }
+
+  /** Wait for a future, rethrowing the original exception instead of a CompletionException. */
+  static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Counter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricStatisticsRequest;
+
+/**
+ * A {@link GetMetricStatisticsDataGetter} counterpart that sends the GetMetricStatistics request
+ * for every dimension of a rule up front through the {@link CloudWatchAsyncClient}. The requests
+ * are multiplexed on the client's event loop instead of occupying a thread each.
+ */
+class AsyncGetMetricStatisticsDataGetter implements DataGetter {
+
+  private final Map<String, CompletableFuture<MetricRuleData>> results = new HashMap<>();
+
+  AsyncGetMetricStatisticsDataGetter(
+      CloudWatchAsyncClient client,
+      long start,
+      MetricRule rule,
+      Counter apiRequestsCounter,
+      Counter metricsRequestedCounter,
+      ApiCallExecutor apiCalls,
+      List<List<Dimension>> dimensionsList) {
+    for (List<Dimension> dimensions : dimensionsList) {
+      GetMetricStatisticsRequest.Builder builder =
+          GetMetricStatisticsDataGetter.metricStatisticsRequestBuilder(rule, start);
+      builder.dimensions(dimensions);
+      GetMetricStatisticsRequest request = builder.build();
+      results.put(
+          GetMetricDataDataGetter.dimensionsToKey(dimensions),
+          apiCalls
+              .callAsync(
+                  "getMetricStatistics",
+                  rule.awsNamespace,
+                  () -> client.getMetricStatistics(request))
+              .thenApply(
+                  response -> {
+                    apiRequestsCounter.labels("getMetricStatistics", rule.awsNamespace).inc();
+                    metricsRequestedCounter.labels(rule.awsMetricName, rule.awsNamespace).inc();
+                    return GetMetricStatisticsDataGetter.toMetricValues(response);
+                  }));
+    }
+  }
+
+  @Override
+  public MetricRuleData metricRuleDataFor(List<Dimension> dimensions) {
+    CompletableFuture<MetricRuleData> result =
+        results.get(GetMetricDataDataGetter.dimensionsToKey(dimensions));
+    if (result == null) {
+      return null;
+    }
+    return AsyncGetMetricDataDataGetter.join(result);
+  }
+}
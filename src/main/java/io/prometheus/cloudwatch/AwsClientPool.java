@@ -0,0 +1,283 @@
+package io.prometheus.cloudwatch;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClientBuilder;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClientBuilder;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClientBuilder;
+import software.amazon.awssdk.services.sts.StsClient;
+import software.amazon.awssdk.services.sts.StsClientBuilder;
+import software.amazon.awssdk.services.sts.auth.StsAssumeRoleCredentialsProvider;
+import software.amazon.awssdk.services.sts.model.AssumeRoleRequest;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+/**
+ * The AWS clients of every region and role that rules scrape from, kept across reloads.
+ *
+ * <p>The clients of all targets share one HTTP client, and one non-blocking HTTP client, so
+ * scraping many accounts and regions does not multiply connection pools and threads. Targets
+ * assuming the same role share its credentials.
+ */
+final class AwsClientPool {
+
+  private static final Logger LOGGER = Logger.getLogger(AwsClientPool.class.getName());
+
+  // Guarded by this.
+  private final Map<Target, Clients> clients = new HashMap<>();
+  private final Map<String, AwsCredentialsProvider> roleCredentials = new HashMap<>();
+  private final Map<String, StsClient> stsClients = new HashMap<>();
+  private SdkHttpClient httpClient;
+  private SdkAsyncHttpClient asyncHttpClient;
+
+  /** Use the given clients for the target rather than building them, for unittests. */
+  synchronized void put(
+      Target target,
+      CloudWatchClient cloudWatchClient,
+      CloudWatchAsyncClient cloudWatchAsyncClient,
+      ResourceGroupsTaggingApiClient taggingClient) {
+    Clients injected = new Clients(target, cloudWatchClient, taggingClient, false);
+    injected.cloudWatchAsyncClient = cloudWatchAsyncClient;
+    clients.put(target, injected);
+  }
+
+  /** The blocking clients of the target, built on first use. */
+  synchronized Clients clients(Target target) {
+    return clients.computeIfAbsent(
+        target,
+        t -> {
+          CloudWatchClientBuilder cloudWatchBuilder =
+              CloudWatchClient.builder().httpClient(httpClient());
+          ResourceGroupsTaggingApiClientBuilder taggingBuilder =
+              ResourceGroupsTaggingApiClient.builder().httpClient(httpClient());
+          if (t.roleArn != null) {
+            cloudWatchBuilder.credentialsProvider(roleCredentials(t));
+            taggingBuilder.credentialsProvider(roleCredentials(t));
+          }
+          if (t.region != null) {
+            cloudWatchBuilder.region(Region.of(t.region));
+            taggingBuilder.region(Region.of(t.region));
+          }
+          return new Clients(t, cloudWatchBuilder.build(), taggingBuilder.build(), true);
+        });
+  }
+
+  /**
+   * The non-blocking CloudWatch client of the target, built on first use. The `async_client_*`
+   * settings of the config apply when the first non-blocking client of the pool is built.
+   */
+  synchronized CloudWatchAsyncClient asyncClient(Target target, Map<String, Object> config) {
+    Clients targetClients = clients(target);
+    if (targetClients.cloudWatchAsyncClient == null) {
+      CloudWatchAsyncClientBuilder clientBuilder =
+          CloudWatchAsyncClient.builder().httpClient(asyncHttpClient(config));
+      if (target.roleArn != null) {
+        clientBuilder.credentialsProvider(roleCredentials(target));
+      }
+      if (target.region != null) {
+        clientBuilder.region(Region.of(target.region));
+      }
+      targetClients.cloudWatchAsyncClient = clientBuilder.build();
+    }
+    return targetClients.cloudWatchAsyncClient;
+  }
+
+  /**
+   * The account the target scrapes, taken from its role or else asked from STS once. Empty if it
+   * can't be found out. STS is asked without holding the pool's lock, so a slow answer does not
+   * hold up the other users of the pool.
+   */
+  String accountId(Target target) {
+    Clients targetClients;
+    StsClient stsClient;
+    synchronized (this) {
+      targetClients = clients(target);
+      if (targetClients.accountId != null) {
+        return targetClients.accountId;
+      }
+      if (target.roleArn != null || !targetClients.built) {
+        // arn:aws:iam::123456789012:role/name
+        String[] arn = target.roleArn == null ? new String[0] : target.roleArn.split(":");
+        targetClients.accountId = arn.length > 4 ? arn[4] : "";
+        return targetClients.accountId;
+      }
+      stsClient = stsClient(target.region);
+    }
+    String accountId = "";
+    try {
+      accountId = stsClient.getCallerIdentity().account();
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Failed to look up the account of region " + target.region, e);
+    }
+    synchronized (this) {
+      if (targetClients.accountId == null) {
+        targetClients.accountId = accountId;
+      }
+      return targetClients.accountId;
+    }
+  }
+
+  /**
+   * Close the clients of the targets no longer scraped after a reload, and the credentials of roles
+   * no target assumes anymore. Clients put in by unittests are kept.
+   */
+  synchronized void retain(Collection<Target> targets) {
+    Set<String> roleArns = new HashSet<>();
+    for (Iterator<Clients> it = clients.values().iterator(); it.hasNext(); ) {
+      Clients targetClients = it.next();
+      if (targets.contains(targetClients.target) || !targetClients.built) {
+        if (targetClients.target.roleArn != null) {
+          roleArns.add(targetClients.target.roleArn);
+        }
+        continue;
+      }
+      it.remove();
+      targetClients.cloudWatchClient.close();
+      targetClients.taggingClient.close();
+      if (targetClients.cloudWatchAsyncClient != null) {
+        targetClients.cloudWatchAsyncClient.close();
+      }
+    }
+    for (Iterator<Map.Entry<String, AwsCredentialsProvider>> it =
+            roleCredentials.entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<String, AwsCredentialsProvider> entry = it.next();
+      if (!roleArns.contains(entry.getKey())) {
+        it.remove();
+        if (entry.getValue() instanceof SdkAutoCloseable) {
+          ((SdkAutoCloseable) entry.getValue()).close();
+        }
+      }
+    }
+  }
+
+  private AwsCredentialsProvider roleCredentials(Target target) {
+    return roleCredentials.computeIfAbsent(
+        target.roleArn,
+        roleArn ->
+            StsAssumeRoleCredentialsProvider.builder()
+                .stsClient(stsClient(target.region))
+                .refreshRequest(
+                    AssumeRoleRequest.builder()
+                        .roleArn(roleArn)
+                        .roleSessionName("cloudwatch_exporter")
+                        .build())
+                .build());
+  }
+
+  private StsClient stsClient(String region) {
+    return stsClients.computeIfAbsent(
+        region == null ? "" : region,
+        r -> {
+          StsClientBuilder builder = StsClient.builder().httpClient(httpClient());
+          if (region != null) {
+            builder.region(Region.of(region));
+          }
+          return builder.build();
+        });
+  }
+
+  private SdkHttpClient httpClient() {
+    if (httpClient == null) {
+      httpClient = ApacheHttpClient.builder().build();
+    }
+    return httpClient;
+  }
+
+  private SdkAsyncHttpClient asyncHttpClient(Map<String, Object> config) {
+    if (asyncHttpClient != null) {
+      return asyncHttpClient;
+    }
+    NettyNioAsyncHttpClient.Builder httpClientBuilder = NettyNioAsyncHttpClient.builder();
+    if (config.containsKey("async_client_max_concurrency")) {
+      int maxConcurrency = ((Number) config.get("async_client_max_concurrency")).intValue();
+      httpClientBuilder.maxConcurrency(maxConcurrency);
+      // Requests beyond the connection limit wait for a connection rather than failing.
+      httpClientBuilder.maxPendingConnectionAcquires(Math.max(10_000, maxConcurrency * 100));
+    }
+    if (config.containsKey("async_client_connection_acquisition_timeout_seconds")) {
+      long acquisitionTimeout =
+          ((Number) config.get("async_client_connection_acquisition_timeout_seconds")).longValue();
+      httpClientBuilder.connectionAcquisitionTimeout(Duration.ofSeconds(acquisitionTimeout));
+    }
+    if (config.containsKey("async_client_event_loop_threads")) {
+      int threads = ((Number) config.get("async_client_event_loop_threads")).intValue();
+      httpClientBuilder.eventLoopGroupBuilder(SdkEventLoopGroup.builder().numberOfThreads(threads));
+    }
+    asyncHttpClient = httpClientBuilder.build();
+    return asyncHttpClient;
+  }
+
+  /** The region and role rules scrape from, null for the SDK defaults. */
+  static final class Target {
+    final String region;
+    final String roleArn;
+
+    Target(String region, String roleArn) {
+      this.region = region;
+      this.roleArn = roleArn;
+    }
+
+    /** Identifies the target in the cache file. */
+    String id() {
+      return (region == null ? "" : region) + " " + (roleArn == null ? "" : roleArn);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      Target that = (Target) o;
+
+      if (!Objects.equals(region, that.region)) return false;
+      return Objects.equals(roleArn, that.roleArn);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = region != null ? region.hashCode() : 0;
+      result = 31 * result + (roleArn != null ? roleArn.hashCode() : 0);
+      return result;
+    }
+  }
+
+  static final class Clients {
+    final Target target;
+    final CloudWatchClient cloudWatchClient;
+    final ResourceGroupsTaggingApiClient taggingClient;
+    // False for clients put in by unittests, which never ask STS for their account.
+    private final boolean built;
+    // Guarded by the pool.
+    private CloudWatchAsyncClient cloudWatchAsyncClient;
+    private String accountId;
+
+    private Clients(
+        Target target,
+        CloudWatchClient cloudWatchClient,
+        ResourceGroupsTaggingApiClient taggingClient,
+        boolean built) {
+      this.target = target;
+      this.cloudWatchClient = cloudWatchClient;
+      this.taggingClient = taggingClient;
+      this.built = built;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package io.prometheus.cloudwatch;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Refreshes the snapshot served by a {@link CloudWatchCollector} when
+ * `background_scrape_interval_seconds` is set. Its thread only runs while the interval is set, a
+ * config reload starts, stops or changes it.
+ */
+class BackgroundScraper {
+  private static final Logger LOGGER = Logger.getLogger(BackgroundScraper.class.getName());
+
+  private final CloudWatchCollector collector;
+  // Guarded by this, null while background scraping is disabled.
+  private ScheduledExecutorService scheduler;
+  private boolean stopped;
+
+  private BackgroundScraper(CloudWatchCollector collector) {
+    this.collector = collector;
+  }
+
+  protected static BackgroundScraper start(CloudWatchCollector collector) {
+    BackgroundScraper scraper = new BackgroundScraper(collector);
+    collector.onConfigLoaded(scraper::update);
+    scraper.update();
+    return scraper;
+  }
+
+  /** Start or stop scraping in the background to match the config of the collector. */
+  synchronized void update() {
+    boolean enabled = !stopped && collector.backgroundScrapeIntervalSeconds() > 0;
+    if (enabled && scheduler == null) {
+      ScheduledExecutorService started =
+          Executors.newSingleThreadScheduledExecutor(
+              runnable -> {
+                Thread thread = new Thread(runnable, "cloudwatch-background-scraper");
+                thread.setDaemon(true);
+                return thread;
+              });
+      scheduler = started;
+      started.execute(() -> run(started));
+    } else if (!enabled && scheduler != null) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+  }
+
+  synchronized boolean running() {
+    return scheduler != null;
+  }
+
+  private void run(ScheduledExecutorService scheduler) {
+    int interval = collector.backgroundScrapeIntervalSeconds();
+    if (interval <= 0) {
+      // Disabled by a reload, which stops the scheduler.
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      collector.refreshSnapshot();
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Background scrape failed", e);
+    }
+    long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+    if (elapsedSeconds >= interval) {
+      LOGGER.warning(
+          String.format(
+              "Background scrape took %ds, longer than the %ds interval",
+              elapsedSeconds, interval));
+    }
+    synchronized (this) {
+      if (this.scheduler == scheduler) {
+        // Keep a fixed rate while scrapes are faster than the interval.
+        scheduler.schedule(
+            () -> run(scheduler), Math.max(0, interval - elapsedSeconds), TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  synchronized void stop() {
+    stopped = true;
+    update();
+  }
+}
@@ -0,0 +1,214 @@
+package io.prometheus.cloudwatch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.ResourceTagMapping;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
+
+/**
+ * Stores the cached dimensions and tag mappings in `dimension_cache_dir`, so a restarted exporter
+ * does not have to list every metric again before its first scrape completes.
+ *
+ * <p>Dimensions are stored under the {@link MetricRule#fingerprint()} of their rule, entries of
+ * rules that changed since the file was written are therefore not restored. Tag mappings are stored
+ * with the region and role they were fetched from. Each entry has the wall clock time it expires
+ * at.
+ */
+final class CacheFile {
+
+  static final String FILE_NAME = "cloudwatch_exporter_cache.bin";
+
+  // "CWEC", followed by the format version.
+  private static final int MAGIC = 0x43574543;
+  private static final int VERSION = 2;
+
+  private final Path file;
+
+  CacheFile(Path directory) {
+    this.file = directory.resolve(FILE_NAME);
+  }
+
+  /** Replace the file with the given contents. Readers never see a partially written file. */
+  synchronized void write(Contents contents) throws IOException {
+    Files.createDirectories(file.getParent());
+    Path tmp = file.resolveSibling(FILE_NAME + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(contents.dimensions.size());
+      for (DimensionEntry entry : contents.dimensions) {
+        out.writeUTF(entry.ruleFingerprint);
+        out.writeLong(entry.expiresAtMillis);
+        out.writeInt(entry.tagBasedResourceIds.size());
+        for (String resourceId : entry.tagBasedResourceIds) {
+          out.writeUTF(resourceId);
+        }
+        out.writeInt(entry.dimensions.size());
+        for (List<Dimension> dimensions : entry.dimensions) {
+          out.writeInt(dimensions.size());
+          for (Dimension dimension : dimensions) {
+            out.writeUTF(dimension.name());
+            out.writeUTF(dimension.value());
+          }
+        }
+      }
+      out.writeInt(contents.tagMappings.size());
+      for (TagMappingEntry entry : contents.tagMappings) {
+        out.writeUTF(entry.target);
+        out.writeUTF(entry.resourceTypeSelection);
+        out.writeLong(entry.expiresAtMillis);
+        Map<String, List<String>> tagSelections =
+            entry.tagSelections == null ? Collections.emptyMap() : entry.tagSelections;
+        out.writeInt(tagSelections.size());
+        for (Map.Entry<String, List<String>> selection : tagSelections.entrySet()) {
+          out.writeUTF(selection.getKey());
+          out.writeInt(selection.getValue().size());
+          for (String value : selection.getValue()) {
+            out.writeUTF(value);
+          }
+        }
+        out.writeInt(entry.mappings.size());
+        for (ResourceTagMapping mapping : entry.mappings) {
+          out.writeUTF(mapping.resourceARN());
+          out.writeInt(mapping.tags().size());
+          for (Tag tag : mapping.tags()) {
+            out.writeUTF(tag.key());
+            out.writeUTF(tag.value());
+          }
+        }
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Read the file back, empty contents if there is none yet.
+   *
+   * @throws IOException if the file can't be read or was not written by this version
+   */
+  synchronized Contents read() throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a cache file: " + file);
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported cache file version " + version + ": " + file);
+      }
+      List<DimensionEntry> dimensionEntries = new ArrayList<>();
+      for (int i = in.readInt(); i > 0; i--) {
+        String ruleFingerprint = in.readUTF();
+        long expiresAtMillis = in.readLong();
+        List<String> resourceIds = new ArrayList<>();
+        for (int j = in.readInt(); j > 0; j--) {
+          resourceIds.add(in.readUTF());
+        }
+        List<List<Dimension>> dimensionsList = new ArrayList<>();
+        for (int j = in.readInt(); j > 0; j--) {
+          List<Dimension> dimensions = new ArrayList<>();
+          for (int k = in.readInt(); k > 0; k--) {
+            dimensions.add(Dimension.builder().name(in.readUTF()).value(in.readUTF()).build());
+          }
+          dimensionsList.add(dimensions);
+        }
+        dimensionEntries.add(
+            new DimensionEntry(
+                ruleFingerprint, ResourceIdSet.of(resourceIds), dimensionsList, expiresAtMillis));
+      }
+      List<TagMappingEntry> tagMappingEntries = new ArrayList<>();
+      for (int i = in.readInt(); i > 0; i--) {
+        String target = in.readUTF();
+        String resourceTypeSelection = in.readUTF();
+        long expiresAtMillis = in.readLong();
+        Map<String, List<String>> tagSelections = new LinkedHashMap<>();
+        for (int j = in.readInt(); j > 0; j--) {
+          String key = in.readUTF();
+          List<String> values = new ArrayList<>();
+          for (int k = in.readInt(); k > 0; k--) {
+            values.add(in.readUTF());
+          }
+          tagSelections.put(key, values);
+        }
+        List<ResourceTagMapping> mappings = new ArrayList<>();
+        for (int j = in.readInt(); j > 0; j--) {
+          String arn = in.readUTF();
+          List<Tag> tags = new ArrayList<>();
+          for (int k = in.readInt(); k > 0; k--) {
+            tags.add(Tag.builder().key(in.readUTF()).value(in.readUTF()).build());
+          }
+          mappings.add(ResourceTagMapping.builder().resourceARN(arn).tags(tags).build());
+        }
+        tagMappingEntries.add(
+            new TagMappingEntry(
+                target, resourceTypeSelection, tagSelections, mappings, expiresAtMillis));
+      }
+      return new Contents(dimensionEntries, tagMappingEntries);
+    } catch (NoSuchFileException e) {
+      return new Contents(Collections.emptyList(), Collections.emptyList());
+    }
+  }
+
+  static final class Contents {
+    final List<DimensionEntry> dimensions;
+    final List<TagMappingEntry> tagMappings;
+
+    Contents(List<DimensionEntry> dimensions, List<TagMappingEntry> tagMappings) {
+      this.dimensions = dimensions;
+      this.tagMappings = tagMappings;
+    }
+  }
+
+  static final class DimensionEntry {
+    final String ruleFingerprint;
+    final ResourceIdSet tagBasedResourceIds;
+    final List<List<Dimension>> dimensions;
+    final long expiresAtMillis;
+
+    DimensionEntry(
+        String ruleFingerprint,
+        ResourceIdSet tagBasedResourceIds,
+        List<List<Dimension>> dimensions,
+        long expiresAtMillis) {
+      this.ruleFingerprint = ruleFingerprint;
+      this.tagBasedResourceIds = tagBasedResourceIds;
+      this.dimensions = dimensions;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+
+  static final class TagMappingEntry {
+    final String target;
+    final String resourceTypeSelection;
+    final Map<String, List<String>> tagSelections;
+    final List<ResourceTagMapping> mappings;
+    final long expiresAtMillis;
+
+    TagMappingEntry(
+        String target,
+        String resourceTypeSelection,
+        Map<String, List<String>> tagSelections,
+        List<ResourceTagMapping> mappings,
+        long expiresAtMillis) {
+      this.target = target;
+      this.resourceTypeSelection = resourceTypeSelection;
+      this.tagSelections = tagSelections;
+      this.mappings = mappings;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+  }
+}
@@ -3,18 +3,42 @@ package io.prometheus.cloudwatch;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Policy.VarExpiration;
+import com.github.benmanes.caffeine.cache.Ticker;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
 final class CachingDimensionSource implements DimensionSource {
 
+  private static final Logger LOGGER = Logger.getLogger(CachingDimensionSource.class.getName());
+
+  // Refreshes run one at a time, so next to the scraping rules they add at most one ListMetrics
+  // call in flight. Each key is queued at most once, which bounds the queue.
+  private static final ExecutorService REFRESH_EXECUTOR = newRefreshExecutor();
+
   private final DimensionSource delegate;
   private final Cache<DimensionCacheKey, DimensionData> cache;
+  private final DimensionExpiry expiry;
+  private final Duration maxStaleness;
+  private final Executor refreshExecutor;
+  private final Map<DimensionCacheKey, Boolean> refreshing = new ConcurrentHashMap<>();
+  private final AtomicLong writes = new AtomicLong();
 
   /**
    * Create a new DimensionSource that will cache the results from another {@link DimensionSource}
@@ -24,40 +48,199 @@ final class CachingDimensionSource implements DimensionSource {
    * @return a new CachingDimensionSource
    */
   CachingDimensionSource(DimensionSource source, DimensionCacheConfig config) {
+    this(source, config, Ticker.systemTicker(), REFRESH_EXECUTOR);
+  }
+
+  CachingDimensionSource(
+      DimensionSource source, DimensionCacheConfig config, Ticker ticker, Executor executor) {
     this.delegate = source;
-    this.cache =
-        Caffeine.newBuilder()
-            .expireAfter(new DimensionExpiry(config.defaultExpiry, config.metricConfig))
-            .build();
+    this.expiry =
+        new DimensionExpiry(config.defaultExpiry, config.metricConfig, config.maxStaleness);
+    this.cache = Caffeine.newBuilder().expireAfter(expiry).ticker(ticker).build();
+    this.maxStaleness = config.maxStaleness;
+    this.refreshExecutor = executor;
+  }
+
+  private static ExecutorService newRefreshExecutor() {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            60L,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "cloudwatch-dimension-refresh");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
   }
 
   @Override
-  public DimensionData getDimensions(MetricRule rule, List<String> tagBasedResourceIds) {
-    DimensionData cachedDimensions =
-        this.cache.getIfPresent(new DimensionCacheKey(rule, tagBasedResourceIds));
+  public DimensionData getDimensions(MetricRule rule, ResourceIdSet tagBasedResourceIds) {
+    DimensionCacheKey key = new DimensionCacheKey(rule, tagBasedResourceIds);
+    DimensionData cachedDimensions = this.cache.getIfPresent(key);
     if (cachedDimensions != null) {
+      if (isStale(key)) {
+        refresh(key);
+      }
       return cachedDimensions;
     }
     DimensionData dimensions = delegate.getDimensions(rule, tagBasedResourceIds);
-    this.cache.put(new DimensionCacheKey(rule, tagBasedResourceIds), dimensions);
+    this.cache.put(key, dimensions);
+    writes.incrementAndGet();
     return dimensions;
   }
 
+  /** An entry is stale once its TTL has passed, it's then only kept for the max staleness. */
+  private boolean isStale(DimensionCacheKey key) {
+    if (maxStaleness.isZero()) {
+      return false;
+    }
+    return varExpiration()
+        .getExpiresAfter(key)
+        .map(expiresAfter -> expiresAfter.compareTo(maxStaleness) < 0)
+        .orElse(false);
+  }
+
+  /**
+   * Load the dimensions of a stale entry in the background, the stale dimensions are served in the
+   * meantime. When loading fails, the stale dimensions keep being served until the entry expires.
+   */
+  private void refresh(DimensionCacheKey key) {
+    if (refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+      return;
+    }
+    refreshExecutor.execute(
+        () -> {
+          try {
+            DimensionData dimensions = delegate.getDimensions(key.rule, key.tagBasedResourceIds);
+            varExpiration().put(key, dimensions, Duration.ofNanos(expiry.expireAfter(key)));
+            writes.incrementAndGet();
+          } catch (RuntimeException e) {
+            LOGGER.log(
+                Level.WARNING,
+                String.format(
+                    "Failed to refresh dimensions of %s:%s, serving cached dimensions",
+                    key.rule.awsNamespace, key.rule.awsMetricName),
+                e);
+          } finally {
+            refreshing.remove(key);
+          }
+        });
+  }
+
+  /**
+   * Take over the entries of another cache whose rule is one of the given rules, keeping their
+   * remaining time. Entries of changed or removed rules are dropped.
+   */
+  void carryOver(CachingDimensionSource previous, Collection<MetricRule> rules) {
+    Map<MetricRule, MetricRule> currentRules = new HashMap<>();
+    for (MetricRule rule : rules) {
+      currentRules.put(rule, rule);
+    }
+    VarExpiration<DimensionCacheKey, DimensionData> previousExpiration = previous.varExpiration();
+    for (Map.Entry<DimensionCacheKey, DimensionData> entry : previous.cache.asMap().entrySet()) {
+      MetricRule rule = currentRules.get(entry.getKey().rule);
+      if (rule == null) {
+        continue;
+      }
+      DimensionCacheKey key = new DimensionCacheKey(rule, entry.getKey().tagBasedResourceIds);
+      previousExpiration
+          .getExpiresAfter(entry.getKey())
+          .ifPresent(expiresAfter -> varExpiration().put(key, entry.getValue(), expiresAfter));
+    }
+  }
+
+  /** The number of entries stored so far, to tell whether the cache changed since it was saved. */
+  long writes() {
+    return writes.get();
+  }
+
+  /** The cached entries, with the wall clock time they expire at. */
+  List<CacheFile.DimensionEntry> entries(long nowMillis) {
+    VarExpiration<DimensionCacheKey, DimensionData> expiration = varExpiration();
+    Map<MetricRule, String> fingerprints = new HashMap<>();
+    List<CacheFile.DimensionEntry> entries = new ArrayList<>();
+    for (Map.Entry<DimensionCacheKey, DimensionData> entry : cache.asMap().entrySet()) {
+      DimensionCacheKey key = entry.getKey();
+      expiration
+          .getExpiresAfter(key)
+          .ifPresent(
+              expiresAfter ->
+                  entries.add(
+                      new CacheFile.DimensionEntry(
+                          fingerprints.computeIfAbsent(key.rule, MetricRule::fingerprint),
+                          key.tagBasedResourceIds,
+                          entry.getValue().getDimensions(),
+                          nowMillis + expiresAfter.toMillis())));
+    }
+    return entries;
+  }
+
+  /**
+   * Load entries saved by an earlier run. Entries of rules that are no longer configured, or that
+   * changed, are skipped, as are expired ones. No entry is kept longer than the current TTL.
+   */
+  void restore(
+      List<CacheFile.DimensionEntry> entries, Collection<MetricRule> rules, long nowMillis) {
+    Map<String, MetricRule> rulesByFingerprint = new HashMap<>();
+    for (MetricRule rule : rules) {
+      rulesByFingerprint.put(rule.fingerprint(), rule);
+    }
+    for (CacheFile.DimensionEntry entry : entries) {
+      MetricRule rule = rulesByFingerprint.get(entry.ruleFingerprint);
+      long remainingMillis = entry.expiresAtMillis - nowMillis;
+      if (rule == null || remainingMillis <= 0) {
+        continue;
+      }
+      DimensionCacheKey key = new DimensionCacheKey(rule, entry.tagBasedResourceIds);
+      Duration remaining = Duration.ofMillis(remainingMillis);
+      Duration maxExpiry = Duration.ofNanos(expiry.expireAfter(key));
+      varExpiration()
+          .put(
+              key,
+              new DimensionData(entry.dimensions),
+              remaining.compareTo(maxExpiry) < 0 ? remaining : maxExpiry);
+    }
+  }
+
+  private VarExpiration<DimensionCacheKey, DimensionData> varExpiration() {
+    return cache.policy().expireVariably().orElseThrow();
+  }
+
   static class DimensionExpiry implements Expiry<DimensionCacheKey, DimensionData> {
 
     private final Duration defaultExpiry;
     private final Map<MetricRule, Duration> durationMap;
+    private final Duration maxStaleness;
 
     public DimensionExpiry(Duration defaultExpiry, List<MetricRule> expiryOverrides) {
+      this(defaultExpiry, expiryOverrides, Duration.ZERO);
+    }
+
+    /**
+     * @param maxStaleness - how long entries are kept after their TTL, to be served while they are
+     *     refreshed
+     */
+    public DimensionExpiry(
+        Duration defaultExpiry, List<MetricRule> expiryOverrides, Duration maxStaleness) {
       this.defaultExpiry = defaultExpiry;
       this.durationMap =
           expiryOverrides.stream()
               .collect(Collectors.toMap(Function.identity(), dcp -> dcp.listMetricsCacheTtl));
+      this.maxStaleness = maxStaleness;
+    }
+
+    long expireAfter(DimensionCacheKey key) {
+      return durationMap.getOrDefault(key.rule, this.defaultExpiry).plus(maxStaleness).toNanos();
     }
 
     @Override
     public long expireAfterCreate(DimensionCacheKey key, DimensionData value, long currentTime) {
-      return durationMap.getOrDefault(key.rule, this.defaultExpiry).toNanos();
+      return expireAfter(key);
     }
 
     @Override
@@ -76,11 +259,24 @@ final class CachingDimensionSource implements DimensionSource {
   static class DimensionCacheConfig {
     final Duration defaultExpiry;
     final List<MetricRule> metricConfig = new ArrayList<>();
+    Duration maxStaleness = Duration.ZERO;
 
     DimensionCacheConfig(Duration defaultExpiry) {
       this.defaultExpiry = defaultExpiry;
     }
 
+    /**
+     * Keep serving cached dimensions for up to this long after their TTL, while they are refreshed
+     * in the background or when refreshing them fails.
+     *
+     * @param maxStaleness
+     * @return this
+     */
+    DimensionCacheConfig maxStaleness(Duration maxStaleness) {
+      this.maxStaleness = maxStaleness;
+      return this;
+    }
+
     /**
      * Add a MetricRule to be used to configure a custom TTL using the value from {@link
      * MetricRule#listMetricsCacheTtl} to override the default expiry
@@ -96,9 +292,9 @@ final class CachingDimensionSource implements DimensionSource {
 
   static class DimensionCacheKey {
     private final MetricRule rule;
-    private final List<String> tagBasedResourceIds;
+    private final ResourceIdSet tagBasedResourceIds;
 
-    DimensionCacheKey(MetricRule rule, List<String> tagBasedResourceIds) {
+    DimensionCacheKey(MetricRule rule, ResourceIdSet tagBasedResourceIds) {
       this.rule = rule;
       this.tagBasedResourceIds = tagBasedResourceIds;
     }
@@ -5,20 +5,44 @@ import static io.prometheus.cloudwatch.CachingDimensionSource.DimensionCacheConf
 import io.prometheus.client.Collector;
 import io.prometheus.client.Collector.Describable;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
 import io.prometheus.cloudwatch.DataGetter.MetricRuleData;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -26,22 +50,15 @@ import java.util.regex.Pattern;
 import org.yaml.snakeyaml.LoaderOptions;
 import org.yaml.snakeyaml.Yaml;
 import org.yaml.snakeyaml.constructor.SafeConstructor;
-import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
-import software.amazon.awssdk.services.cloudwatch.CloudWatchClientBuilder;
 import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
 import software.amazon.awssdk.services.cloudwatch.model.Statistic;
 import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClientBuilder;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesRequest;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesResponse;
 import software.amazon.awssdk.services.resourcegroupstaggingapi.model.ResourceTagMapping;
 import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
-import software.amazon.awssdk.services.resourcegroupstaggingapi.model.TagFilter;
-import software.amazon.awssdk.services.sts.StsClient;
-import software.amazon.awssdk.services.sts.auth.StsAssumeRoleCredentialsProvider;
-import software.amazon.awssdk.services.sts.model.AssumeRoleRequest;
 
 public class CloudWatchCollector extends Collector implements Describable {
   private static final Logger LOGGER = Logger.getLogger(CloudWatchCollector.class.getName());
@@ -53,29 +70,119 @@ public class CloudWatchCollector extends Collector implements Describable {
 
   static class ActiveConfig {
     ArrayList<MetricRule> rules;
-    CloudWatchClient cloudWatchClient;
-    ResourceGroupsTaggingApiClient taggingClient;
-    DimensionSource dimensionSource;
+    Map<AwsClientPool.Target, ScrapeTarget> targets = new LinkedHashMap<>();
+    int maxConcurrentRules;
+    ExecutorService ruleExecutor;
+    int backgroundScrapeIntervalSeconds;
+    boolean packGetMetricDataQueries;
+    MetricDataCache metricDataCache;
+    CacheFile cacheFile;
+    Duration scrapeTimeout = Duration.ZERO;
+    Sharding sharding = Sharding.NONE;
 
     public ActiveConfig(ActiveConfig cfg) {
       this.rules = new ArrayList<>(cfg.rules);
-      this.cloudWatchClient = cfg.cloudWatchClient;
-      this.taggingClient = cfg.taggingClient;
-      this.dimensionSource = cfg.dimensionSource;
+      this.targets = cfg.targets;
+      this.maxConcurrentRules = cfg.maxConcurrentRules;
+      this.ruleExecutor = cfg.ruleExecutor;
+      this.backgroundScrapeIntervalSeconds = cfg.backgroundScrapeIntervalSeconds;
+      this.packGetMetricDataQueries = cfg.packGetMetricDataQueries;
+      this.metricDataCache = cfg.metricDataCache;
+      this.cacheFile = cfg.cacheFile;
+      this.scrapeTimeout = cfg.scrapeTimeout;
+      this.sharding = cfg.sharding;
     }
 
     public ActiveConfig() {}
   }
 
+  /**
+   * The clients, caches and rate limits shared by the rules of a config that scrape the same region
+   * with the same role.
+   */
+  static class ScrapeTarget {
+    final List<MetricRule> rules = new ArrayList<>();
+    String region;
+    String accountId;
+    // Set when the config scrapes more than one target, the series are then labelled with it.
+    boolean labelled;
+    CloudWatchClient cloudWatchClient;
+    CloudWatchAsyncClient cloudWatchAsyncClient;
+    ApiCallExecutor cloudwatchApiCalls;
+    ApiCallExecutor taggingApiCalls;
+    DimensionSource dimensionSource;
+    TagMappingSource tagMappingSource;
+    ListMetricsIndex listMetricsIndex;
+  }
+
   static class AWSTagSelect {
     String resourceTypeSelection;
     String resourceIdDimension;
     Map<String, List<String>> tagSelections;
     Pattern arnResourceIdRegexp;
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      AWSTagSelect that = (AWSTagSelect) o;
+
+      if (!Objects.equals(resourceTypeSelection, that.resourceTypeSelection)) return false;
+      if (!Objects.equals(resourceIdDimension, that.resourceIdDimension)) return false;
+      if (!Objects.equals(tagSelections, that.tagSelections)) return false;
+      // Pattern has no equals, patterns compiled from the same regex are equal.
+      if (arnResourceIdRegexp == null || that.arnResourceIdRegexp == null) {
+        return arnResourceIdRegexp == that.arnResourceIdRegexp;
+      }
+      return arnResourceIdRegexp.pattern().equals(that.arnResourceIdRegexp.pattern());
+    }
+
+    @Override
+    public int hashCode() {
+      int result = resourceTypeSelection != null ? resourceTypeSelection.hashCode() : 0;
+      result = 31 * result + (resourceIdDimension != null ? resourceIdDimension.hashCode() : 0);
+      result = 31 * result + (tagSelections != null ? tagSelections.hashCode() : 0);
+      String arnResourceIdPattern =
+          arnResourceIdRegexp != null ? arnResourceIdRegexp.pattern() : null;
+      result = 31 * result + (arnResourceIdPattern != null ? arnResourceIdPattern.hashCode() : 0);
+      return result;
+    }
   }
 
   ActiveConfig activeConfig = new ActiveConfig();
 
+  /** The result of a completed background scrape, never modified once published. */
+  static class Snapshot {
+    final List<MetricFamilySamples> metricFamilySamples;
+    final long createdAtMillis;
+    final long generation;
+
+    Snapshot(List<MetricFamilySamples> metricFamilySamples, long createdAtMillis, long generation) {
+      this.metricFamilySamples = metricFamilySamples;
+      this.createdAtMillis = createdAtMillis;
+      this.generation = generation;
+    }
+  }
+
+  private volatile Snapshot snapshot;
+  private final LastGoodResults lastGoodResults = new LastGoodResults();
+  // What was last saved to `dimension_cache_dir`, guarded by this.
+  private CacheFile savedCacheFile;
+  private long savedCacheWrites;
+
+  // The scrape currently running, shared with requests arriving while it runs.
+  private final AtomicReference<InFlightScrape> inFlightScrape = new AtomicReference<>();
+
+  // Shared by every scrape and resized on reload, so in-flight scrapes never see it shut down.
+  private ThreadPoolExecutor ruleExecutor;
+
+  // The clients of every region and role scraped, kept across reloads.
+  private final AwsClientPool clientPool;
+
+  // Run after every config load, so the background scraper can follow the config.
+  private volatile Runnable configLoadedListener = () -> {};
+
   private static final Counter cloudwatchRequests =
       Counter.build()
           .labelNames("action", "namespace")
@@ -90,6 +197,39 @@ public class CloudWatchCollector extends Collector implements Describable {
           .help("Metrics requested by either GetMetricStatistics or GetMetricData")
           .register();
 
+  private static final Counter metricDataCacheHits =
+      Counter.build()
+          .labelNames("metric_name", "namespace")
+          .name("cloudwatch_result_cache_hits_total")
+          .help("Dimensions whose datapoints were served from the result cache")
+          .register();
+
+  private static final Counter metricDataCacheMisses =
+      Counter.build()
+          .labelNames("metric_name", "namespace")
+          .name("cloudwatch_result_cache_misses_total")
+          .help("Dimensions whose datapoints had to be requested from CloudWatch")
+          .register();
+
+  private static final Counter cloudwatchMetricsRequestedSaved =
+      Counter.build()
+          .labelNames("metric_name", "namespace")
+          .name("cloudwatch_metrics_requested_saved_total")
+          .help("Metrics not requested from CloudWatch because the result cache had them")
+          .register();
+
+  private static final Counter scrapesCoalesced =
+      Counter.build()
+          .name("cloudwatch_exporter_scrapes_coalesced_total")
+          .help("Collects that shared the result of a scrape already in progress")
+          .register();
+
+  private static final Counter samplesStreamed =
+      Counter.build()
+          .name("cloudwatch_exporter_samples_streamed_total")
+          .help("Samples written to the response as soon as their rule was scraped, unbuilt")
+          .register();
+
   private static final Counter taggingApiRequests =
       Counter.build()
           .labelNames("action", "resource_type")
@@ -97,14 +237,73 @@ public class CloudWatchCollector extends Collector implements Describable {
           .help("API requests made to the Resource Groups Tagging API")
           .register();
 
-  private static final List<String> brokenDynamoMetrics =
-      Arrays.asList(
-          "ConsumedReadCapacityUnits", "ConsumedWriteCapacityUnits",
-          "ProvisionedReadCapacityUnits", "ProvisionedWriteCapacityUnits",
-          "ReadThrottleEvents", "WriteThrottleEvents");
+  private static final Counter taggingApiCacheHits =
+      Counter.build()
+          .labelNames("resource_type")
+          .name("tagging_api_cache_hits_total")
+          .help("Resource Groups Tagging API lookups answered without a request")
+          .register();
+
+  private static final double[] REQUEST_DURATION_BUCKETS = {
+    0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30
+  };
+
+  private static final Histogram cloudwatchRequestDuration =
+      Histogram.build()
+          .labelNames("action", "namespace")
+          .name("cloudwatch_request_duration_seconds")
+          .help("Latency of API requests made to CloudWatch")
+          .buckets(REQUEST_DURATION_BUCKETS)
+          .register();
+
+  private static final Histogram taggingApiRequestDuration =
+      Histogram.build()
+          .labelNames("action", "resource_type")
+          .name("tagging_api_request_duration_seconds")
+          .help("Latency of API requests made to the Resource Groups Tagging API")
+          .buckets(REQUEST_DURATION_BUCKETS)
+          .register();
+
+  private static final Counter rateLimitWaitSeconds =
+      Counter.build()
+          .labelNames("action", "region", "role_arn")
+          .name("cloudwatch_exporter_rate_limit_wait_seconds_total")
+          .help("Time requests waited for the client-side rate limit of their action")
+          .register();
+
+  private static final Gauge rateLimitRequestsPerSecond =
+      Gauge.build()
+          .labelNames("action", "region", "role_arn")
+          .name("cloudwatch_exporter_rate_limit_requests_per_second")
+          .help("Current client-side rate limit of an action, lowered when requests are throttled")
+          .register();
+
+  private static final Counter ruleErrors =
+      Counter.build()
+          .labelNames("namespace", "metric_name")
+          .name("cloudwatch_exporter_rule_errors_total")
+          .help("Scrapes in which a metric failed, the other metrics were still scraped")
+          .register();
+
+  private static final Counter metricStreamDatapoints =
+      Counter.build()
+          .labelNames("format")
+          .name("cloudwatch_exporter_metric_stream_datapoints_total")
+          .help("Datapoints received from CloudWatch Metric Streams")
+          .register();
+
+  private static final Counter metricStreamDatapointsDropped =
+      Counter.build()
+          .name("cloudwatch_exporter_metric_stream_datapoints_dropped_total")
+          .help("Datapoints of new series dropped as the metric stream store was full")
+          .register();
+
+  private final MetricStreamStore metricStreams =
+      new MetricStreamStore(metricStreamDatapoints, metricStreamDatapointsDropped);
 
   public CloudWatchCollector(Reader in) {
-    loadConfig(in, null, null);
+    clientPool = new AwsClientPool();
+    loadConfig(in, null, null, null);
   }
 
   public CloudWatchCollector(String yamlConfig) {
@@ -116,17 +315,46 @@ public class CloudWatchCollector extends Collector implements Describable {
       String jsonConfig,
       CloudWatchClient cloudWatchClient,
       ResourceGroupsTaggingApiClient taggingClient) {
+    this(jsonConfig, cloudWatchClient, null, taggingClient);
+  }
+
+  /* For unittests. */
+  protected CloudWatchCollector(
+      String jsonConfig,
+      CloudWatchClient cloudWatchClient,
+      CloudWatchAsyncClient cloudWatchAsyncClient,
+      ResourceGroupsTaggingApiClient taggingClient) {
     this(
         (Map<String, Object>) new Yaml(new SafeConstructor(new LoaderOptions())).load(jsonConfig),
+        new AwsClientPool(),
         cloudWatchClient,
+        cloudWatchAsyncClient,
         taggingClient);
   }
 
+  /* For unittests, with the clients of every target put into the pool. */
+  protected CloudWatchCollector(String jsonConfig, AwsClientPool clientPool) {
+    this(
+        (Map<String, Object>) new Yaml(new SafeConstructor(new LoaderOptions())).load(jsonConfig),
+        clientPool,
+        null,
+        null,
+        null);
+  }
+
   private CloudWatchCollector(
       Map<String, Object> config,
+      AwsClientPool clientPool,
       CloudWatchClient cloudWatchClient,
+      CloudWatchAsyncClient cloudWatchAsyncClient,
       ResourceGroupsTaggingApiClient taggingClient) {
-    loadConfig(config, cloudWatchClient, taggingClient);
+    this.clientPool = clientPool;
+    loadConfig(config, cloudWatchClient, cloudWatchAsyncClient, taggingClient);
+  }
+
+  /** The datapoints pushed by CloudWatch Metric Streams, empty unless they're enabled. */
+  MetricStreamStore metricStreams() {
+    return metricStreams;
   }
 
   @Override
@@ -137,21 +365,26 @@ public class CloudWatchCollector extends Collector implements Describable {
   protected void reloadConfig() throws IOException {
     LOGGER.log(Level.INFO, "Reloading configuration");
     try (FileReader reader = new FileReader(WebServer.configFilePath); ) {
-      loadConfig(reader, activeConfig.cloudWatchClient, activeConfig.taggingClient);
+      loadConfig(reader, null, null, null);
     }
   }
 
   protected void loadConfig(
-      Reader in, CloudWatchClient cloudWatchClient, ResourceGroupsTaggingApiClient taggingClient) {
+      Reader in,
+      CloudWatchClient cloudWatchClient,
+      CloudWatchAsyncClient cloudWatchAsyncClient,
+      ResourceGroupsTaggingApiClient taggingClient) {
     loadConfig(
         (Map<String, Object>) new Yaml(new SafeConstructor(new LoaderOptions())).load(in),
         cloudWatchClient,
+        cloudWatchAsyncClient,
         taggingClient);
   }
 
   private void loadConfig(
       Map<String, Object> config,
       CloudWatchClient cloudWatchClient,
+      CloudWatchAsyncClient cloudWatchAsyncClient,
       ResourceGroupsTaggingApiClient taggingClient) {
     if (config == null) { // Yaml config empty, set config to empty map.
       config = new HashMap<>();
@@ -180,44 +413,120 @@ public class CloudWatchCollector extends Collector implements Describable {
       defaultUseGetMetricData = (Boolean) config.get("use_get_metric_data");
     }
 
+    boolean defaultUseAsyncClient = false;
+    if (config.containsKey("use_async_client")) {
+      defaultUseAsyncClient = (Boolean) config.get("use_async_client");
+    }
+
+    int defaultGetMetricStatisticsConcurrency = 1;
+    if (config.containsKey("get_metric_statistics_concurrency")) {
+      defaultGetMetricStatisticsConcurrency =
+          ((Number) config.get("get_metric_statistics_concurrency")).intValue();
+    }
+
+    boolean shareListMetrics = false;
+    if (config.containsKey("share_list_metrics")) {
+      shareListMetrics = (Boolean) config.get("share_list_metrics");
+    }
+
+    Duration scrapeTimeout = Duration.ZERO;
+    if (config.containsKey("scrape_timeout_seconds")) {
+      scrapeTimeout =
+          Duration.ofMillis(
+              (long) (((Number) config.get("scrape_timeout_seconds")).doubleValue() * 1000));
+    }
+
+    double maxApiRequestsPerSecond = 0;
+    if (config.containsKey("max_api_requests_per_second")) {
+      maxApiRequestsPerSecond = ((Number) config.get("max_api_requests_per_second")).doubleValue();
+    }
+
+    CacheFile cacheFile = null;
+    if (config.containsKey("dimension_cache_dir")) {
+      cacheFile = new CacheFile(Paths.get((String) config.get("dimension_cache_dir")));
+    }
+
+    Duration taggingApiCacheTtl = Duration.ofSeconds(0);
+    if (config.containsKey("tagging_api_cache_ttl")) {
+      taggingApiCacheTtl =
+          Duration.ofSeconds(((Number) config.get("tagging_api_cache_ttl")).intValue());
+    }
+
     Duration defaultMetricCacheSeconds = Duration.ofSeconds(0);
     if (config.containsKey("list_metrics_cache_ttl")) {
       defaultMetricCacheSeconds =
           Duration.ofSeconds(((Number) config.get("list_metrics_cache_ttl")).intValue());
     }
 
+    boolean defaultCacheMetricData = false;
+    if (config.containsKey("cache_metric_data")) {
+      defaultCacheMetricData = (Boolean) config.get("cache_metric_data");
+    }
+
+    Duration defaultServeLastGoodResultFor = Duration.ZERO;
+    if (config.containsKey("serve_last_good_result_seconds")) {
+      defaultServeLastGoodResultFor =
+          Duration.ofSeconds(((Number) config.get("serve_last_good_result_seconds")).intValue());
+    }
+
+    boolean defaultShardByDimensions = false;
+    if (config.containsKey("shard_by_dimensions")) {
+      defaultShardByDimensions = (Boolean) config.get("shard_by_dimensions");
+    }
+
+    MetricRule.Discovery defaultDiscovery = MetricRule.Discovery.LIST_METRICS;
+    if (config.containsKey("discovery")) {
+      defaultDiscovery = MetricRule.Discovery.fromConfig((String) config.get("discovery"));
+    }
+
     boolean defaultWarnOnMissingDimensions = false;
     if (config.containsKey("warn_on_empty_list_dimensions")) {
       defaultWarnOnMissingDimensions = (Boolean) config.get("warn_on_empty_list_dimensions");
     }
 
-    String region = (String) config.get("region");
-
-    if (cloudWatchClient == null) {
-      CloudWatchClientBuilder clientBuilder = CloudWatchClient.builder();
-
-      if (config.containsKey("role_arn")) {
-        clientBuilder.credentialsProvider(getRoleCredentialProvider(config));
-      }
+    boolean packGetMetricDataQueries = false;
+    if (config.containsKey("pack_get_metric_data_queries")) {
+      packGetMetricDataQueries = (Boolean) config.get("pack_get_metric_data_queries");
+    }
 
-      if (region != null) {
-        clientBuilder.region(Region.of(region));
+    int maxConcurrentRules = 1;
+    if (config.containsKey("max_concurrent_rules")) {
+      maxConcurrentRules = ((Number) config.get("max_concurrent_rules")).intValue();
+      if (maxConcurrentRules < 1) {
+        throw new IllegalArgumentException("max_concurrent_rules must be at least 1");
       }
+    }
 
-      cloudWatchClient = clientBuilder.build();
+    int backgroundScrapeIntervalSeconds = 0;
+    if (config.containsKey("background_scrape_interval_seconds")) {
+      backgroundScrapeIntervalSeconds =
+          ((Number) config.get("background_scrape_interval_seconds")).intValue();
     }
 
-    if (taggingClient == null) {
-      ResourceGroupsTaggingApiClientBuilder clientBuilder =
-          ResourceGroupsTaggingApiClient.builder();
+    boolean metricStreamsEnabled = false;
+    if (config.containsKey("metric_streams_enabled")) {
+      metricStreamsEnabled = (Boolean) config.get("metric_streams_enabled");
+    }
+    String metricStreamsAccessKey = (String) config.get("metric_streams_access_key");
+    int metricStreamsMaxSeries = 100_000;
+    if (config.containsKey("metric_streams_max_series")) {
+      metricStreamsMaxSeries = ((Number) config.get("metric_streams_max_series")).intValue();
+    }
+    Duration metricStreamsMaxAge = Duration.ofMinutes(10);
+    if (config.containsKey("metric_streams_max_age_seconds")) {
+      metricStreamsMaxAge =
+          Duration.ofSeconds(((Number) config.get("metric_streams_max_age_seconds")).intValue());
+    }
 
-      if (config.containsKey("role_arn")) {
-        clientBuilder.credentialsProvider(getRoleCredentialProvider(config));
-      }
-      if (region != null) {
-        clientBuilder.region(Region.of(region));
-      }
-      taggingClient = clientBuilder.build();
+    String region = (String) config.get("region");
+    String roleArn = (String) config.get("role_arn");
+
+    if (cloudWatchClient != null || taggingClient != null) {
+      clientPool.put(
+          new AwsClientPool.Target(region, roleArn),
+          cloudWatchClient,
+          cloudWatchAsyncClient,
+          taggingClient);
     }
 
     if (!config.containsKey("metrics")) {
@@ -225,6 +534,10 @@ public class CloudWatchCollector extends Collector implements Describable {
     }
 
     DimensionCacheConfig metricCacheConfig = new DimensionCacheConfig(defaultMetricCacheSeconds);
+    if (config.containsKey("list_metrics_cache_max_staleness")) {
+      metricCacheConfig.maxStaleness(
+          Duration.ofSeconds(((Number) config.get("list_metrics_cache_max_staleness")).intValue()));
+    }
     ArrayList<MetricRule> rules = new ArrayList<>();
 
     for (Object ruleObject : (List<Map<String, Object>>) config.get("metrics")) {
@@ -237,6 +550,16 @@ public class CloudWatchCollector extends Collector implements Describable {
       }
       rule.awsNamespace = (String) yamlMetricRule.get("aws_namespace");
       rule.awsMetricName = (String) yamlMetricRule.get("aws_metric_name");
+      if (yamlMetricRule.containsKey("region")) {
+        rule.region = (String) yamlMetricRule.get("region");
+      } else {
+        rule.region = region;
+      }
+      if (yamlMetricRule.containsKey("role_arn")) {
+        rule.roleArn = (String) yamlMetricRule.get("role_arn");
+      } else {
+        rule.roleArn = roleArn;
+      }
       if (yamlMetricRule.containsKey("help")) {
         rule.help = (String) yamlMetricRule.get("help");
       }
@@ -251,10 +574,22 @@ public class CloudWatchCollector extends Collector implements Describable {
       if (yamlMetricRule.containsKey("aws_dimension_select")) {
         rule.awsDimensionSelect =
             (Map<String, List<String>>) yamlMetricRule.get("aws_dimension_select");
+        rule.awsDimensionSelectValues = new HashMap<>();
+        for (Entry<String, List<String>> entry : rule.awsDimensionSelect.entrySet()) {
+          rule.awsDimensionSelectValues.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
       }
       if (yamlMetricRule.containsKey("aws_dimension_select_regex")) {
         rule.awsDimensionSelectRegex =
             (Map<String, List<String>>) yamlMetricRule.get("aws_dimension_select_regex");
+        rule.awsDimensionSelectPatterns = new HashMap<>();
+        for (Entry<String, List<String>> entry : rule.awsDimensionSelectRegex.entrySet()) {
+          List<Pattern> patterns = new ArrayList<>();
+          for (String regex : entry.getValue()) {
+            patterns.add(Pattern.compile(regex));
+          }
+          rule.awsDimensionSelectPatterns.put(entry.getKey(), patterns);
+        }
       }
       if (yamlMetricRule.containsKey("aws_statistics")) {
         rule.awsStatistics = new ArrayList<>();
@@ -296,12 +631,57 @@ public class CloudWatchCollector extends Collector implements Describable {
       } else {
         rule.useGetMetricData = defaultUseGetMetricData;
       }
+      if (yamlMetricRule.containsKey("use_async_client")) {
+        rule.useAsyncClient = (Boolean) yamlMetricRule.get("use_async_client");
+      } else {
+        rule.useAsyncClient = defaultUseAsyncClient;
+      }
+      if (yamlMetricRule.containsKey("get_metric_statistics_concurrency")) {
+        rule.getMetricStatisticsConcurrency =
+            ((Number) yamlMetricRule.get("get_metric_statistics_concurrency")).intValue();
+      } else {
+        rule.getMetricStatisticsConcurrency = defaultGetMetricStatisticsConcurrency;
+      }
       if (yamlMetricRule.containsKey("warn_on_empty_list_dimensions")) {
         rule.warnOnEmptyListDimensions =
             (Boolean) yamlMetricRule.get("warn_on_empty_list_dimensions");
       } else {
         rule.warnOnEmptyListDimensions = defaultWarnOnMissingDimensions;
       }
+      if (yamlMetricRule.containsKey("cache_metric_data")) {
+        rule.cacheMetricData = (Boolean) yamlMetricRule.get("cache_metric_data");
+      } else {
+        rule.cacheMetricData = defaultCacheMetricData;
+      }
+      if (yamlMetricRule.containsKey("serve_last_good_result_seconds")) {
+        rule.serveLastGoodResultFor =
+            Duration.ofSeconds(
+                ((Number) yamlMetricRule.get("serve_last_good_result_seconds")).intValue());
+      } else {
+        rule.serveLastGoodResultFor = defaultServeLastGoodResultFor;
+      }
+      if (yamlMetricRule.containsKey("shard_by_dimensions")) {
+        rule.shardByDimensions = (Boolean) yamlMetricRule.get("shard_by_dimensions");
+      } else {
+        rule.shardByDimensions = defaultShardByDimensions;
+      }
+      if (yamlMetricRule.containsKey("discovery")) {
+        rule.discovery = MetricRule.Discovery.fromConfig((String) yamlMetricRule.get("discovery"));
+      } else {
+        rule.discovery = defaultDiscovery;
+      }
+      if (rule.discovery == MetricRule.Discovery.METRICS_INSIGHTS) {
+        if (rule.awsExtendedStatistics != null) {
+          throw new IllegalArgumentException(
+              "Metrics Insights discovery does not support aws_extended_statistics");
+        }
+        if (rule.rangeSeconds + rule.delaySeconds
+            > ExpressionDataGetter.MAX_INSIGHTS_RANGE_SECONDS) {
+          throw new IllegalArgumentException(
+              "Metrics Insights discovery only queries the last 3 hours, "
+                  + "range_seconds plus delay_seconds must not exceed 10800");
+        }
+      }
 
       if (yamlMetricRule.containsKey("aws_tag_select")) {
         Map<String, Object> yamlAwsTagSelect =
@@ -335,85 +715,259 @@ public class CloudWatchCollector extends Collector implements Describable {
       } else {
         rule.listMetricsCacheTtl = defaultMetricCacheSeconds;
       }
+
+      rule.plan = new RulePlan(rule);
     }
 
-    DimensionSource dimensionSource =
-        new DefaultDimensionSource(cloudWatchClient, cloudwatchRequests);
-    if (defaultMetricCacheSeconds.toSeconds() > 0 || !metricCacheConfig.metricConfig.isEmpty()) {
-      dimensionSource = new CachingDimensionSource(dimensionSource, metricCacheConfig);
+    // Decided before sharding, so every shard labels the series the same way.
+    boolean labelTargets =
+        rules.stream().map(r -> new AwsClientPool.Target(r.region, r.roleArn)).distinct().count()
+            > 1;
+
+    Sharding sharding = Sharding.fromConfig(config);
+    if (sharding.isSharded()) {
+      int configured = rules.size();
+      rules.removeIf(rule -> !sharding.ownsRule(rule));
+      LOGGER.log(
+          Level.INFO,
+          String.format(
+              "Shard %d of %d scrapes %d of %d metrics",
+              sharding.index, sharding.count, rules.size(), configured));
+    }
+
+    Map<AwsClientPool.Target, ScrapeTarget> targets = new LinkedHashMap<>();
+    for (MetricRule rule : rules) {
+      rule.target =
+          targets.computeIfAbsent(
+              new AwsClientPool.Target(rule.region, rule.roleArn), t -> new ScrapeTarget());
+      rule.target.rules.add(rule);
+    }
+    for (Entry<AwsClientPool.Target, ScrapeTarget> entry : targets.entrySet()) {
+      AwsClientPool.Target target = entry.getKey();
+      ScrapeTarget scrapeTarget = entry.getValue();
+      AwsClientPool.Clients clients = clientPool.clients(target);
+      scrapeTarget.region = target.region == null ? "" : target.region;
+      scrapeTarget.labelled = labelTargets;
+      if (labelTargets) {
+        scrapeTarget.accountId = clientPool.accountId(target);
+      }
+      scrapeTarget.cloudWatchClient = clients.cloudWatchClient;
+      if (scrapeTarget.rules.stream().anyMatch(r -> r.useAsyncClient)) {
+        scrapeTarget.cloudWatchAsyncClient = clientPool.asyncClient(target, config);
+      }
+      scrapeTarget.cloudwatchApiCalls =
+          new ApiCallExecutor(
+              cloudwatchRequestDuration, rateLimits(maxApiRequestsPerSecond, target));
+      scrapeTarget.taggingApiCalls =
+          new ApiCallExecutor(
+              taggingApiRequestDuration, rateLimits(maxApiRequestsPerSecond, target));
+      scrapeTarget.listMetricsIndex =
+          shareListMetrics
+              ? new ListMetricsIndex(
+                  clients.cloudWatchClient, cloudwatchRequests, scrapeTarget.cloudwatchApiCalls)
+              : null;
+      scrapeTarget.dimensionSource =
+          new DefaultDimensionSource(
+              clients.cloudWatchClient,
+              cloudwatchRequests,
+              scrapeTarget.listMetricsIndex,
+              scrapeTarget.cloudwatchApiCalls);
+      if (defaultMetricCacheSeconds.toSeconds() > 0 || !metricCacheConfig.metricConfig.isEmpty()) {
+        scrapeTarget.dimensionSource =
+            new CachingDimensionSource(scrapeTarget.dimensionSource, metricCacheConfig);
+      }
+      scrapeTarget.tagMappingSource =
+          new TagMappingSource(
+              clients.taggingClient,
+              taggingApiRequests,
+              taggingApiCacheHits,
+              scrapeTarget.taggingApiCalls,
+              taggingApiCacheTtl);
     }
 
-    loadConfig(rules, cloudWatchClient, taggingClient, dimensionSource);
+    ActiveConfig newConfig = new ActiveConfig();
+    newConfig.rules = rules;
+    newConfig.targets = targets;
+    newConfig.cacheFile = cacheFile;
+    newConfig.scrapeTimeout = scrapeTimeout;
+    newConfig.sharding = sharding;
+    newConfig.maxConcurrentRules = maxConcurrentRules;
+    newConfig.backgroundScrapeIntervalSeconds = backgroundScrapeIntervalSeconds;
+    newConfig.packGetMetricDataQueries = packGetMetricDataQueries;
+    if (rules.stream().anyMatch(r -> r.cacheMetricData)) {
+      newConfig.metricDataCache =
+          new MetricDataCache(
+              metricDataCacheHits, metricDataCacheMisses, cloudwatchMetricsRequestedSaved);
+    }
+    metricStreams.configure(
+        metricStreamsEnabled, metricStreamsAccessKey, metricStreamsMaxSeries, metricStreamsMaxAge);
+    Set<String> polledFamilies = new HashSet<>();
+    for (MetricRule rule : rules) {
+      polledFamilies.addAll(rule.plan.familyNames(rule));
+    }
+    metricStreams.excludePolledFamilies(polledFamilies);
+    loadConfig(newConfig);
+    // A scrape still running with the previous config may see its requests to removed targets fail.
+    clientPool.retain(targets.keySet());
+    configLoadedListener.run();
   }
 
-  private void loadConfig(
-      ArrayList<MetricRule> rules,
-      CloudWatchClient cloudWatchClient,
-      ResourceGroupsTaggingApiClient taggingClient,
-      DimensionSource dimensionSource) {
+  private void loadConfig(ActiveConfig newConfig) {
     synchronized (activeConfig) {
-      activeConfig.cloudWatchClient = cloudWatchClient;
-      activeConfig.taggingClient = taggingClient;
-      activeConfig.rules = rules;
-      activeConfig.dimensionSource = dimensionSource;
+      restoreCaches(newConfig);
+      carryOverCaches(activeConfig, newConfig);
+      activeConfig.rules = newConfig.rules;
+      activeConfig.targets = newConfig.targets;
+      activeConfig.maxConcurrentRules = newConfig.maxConcurrentRules;
+      activeConfig.ruleExecutor =
+          newConfig.maxConcurrentRules > 1 ? ruleExecutor(newConfig.maxConcurrentRules) : null;
+      activeConfig.backgroundScrapeIntervalSeconds = newConfig.backgroundScrapeIntervalSeconds;
+      activeConfig.packGetMetricDataQueries = newConfig.packGetMetricDataQueries;
+      activeConfig.metricDataCache = newConfig.metricDataCache;
+      activeConfig.cacheFile = newConfig.cacheFile;
+      activeConfig.scrapeTimeout = newConfig.scrapeTimeout;
+      activeConfig.sharding = newConfig.sharding;
     }
   }
 
-  private AwsCredentialsProvider getRoleCredentialProvider(Map<String, Object> config) {
-    StsClient stsClient =
-        StsClient.builder().region(Region.of((String) config.get("region"))).build();
-    AssumeRoleRequest assumeRoleRequest =
-        AssumeRoleRequest.builder()
-            .roleArn((String) config.get("role_arn"))
-            .roleSessionName("cloudwatch_exporter")
-            .build();
-    return StsAssumeRoleCredentialsProvider.builder()
-        .stsClient(stsClient)
-        .refreshRequest(assumeRoleRequest)
-        .build();
+  /** Load the caches saved in `dimension_cache_dir` by an earlier run. */
+  private static void restoreCaches(ActiveConfig config) {
+    if (config.cacheFile == null) {
+      return;
+    }
+    CacheFile.Contents contents;
+    try {
+      contents = config.cacheFile.read();
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Failed to read the dimension cache, starting without it", e);
+      return;
+    }
+    long now = System.currentTimeMillis();
+    for (Entry<AwsClientPool.Target, ScrapeTarget> entry : config.targets.entrySet()) {
+      ScrapeTarget target = entry.getValue();
+      if (target.dimensionSource instanceof CachingDimensionSource) {
+        ((CachingDimensionSource) target.dimensionSource)
+            .restore(contents.dimensions, target.rules, now);
+      }
+      List<CacheFile.TagMappingEntry> tagMappings = new ArrayList<>();
+      for (CacheFile.TagMappingEntry tagMapping : contents.tagMappings) {
+        if (tagMapping.target.equals(entry.getKey().id())) {
+          tagMappings.add(tagMapping);
+        }
+      }
+      target.tagMappingSource.restore(tagMappings, target.rules, now);
+    }
   }
 
-  private List<ResourceTagMapping> getResourceTagMappings(
-      MetricRule rule, ResourceGroupsTaggingApiClient taggingClient) {
-    if (rule.awsTagSelect == null) {
-      return Collections.emptyList();
+  /** Save the caches to `dimension_cache_dir` if they changed since they were last saved. */
+  private synchronized void saveCaches(ActiveConfig config) {
+    if (config.cacheFile == null) {
+      return;
     }
-
-    List<TagFilter> tagFilters = new ArrayList<>();
-    if (rule.awsTagSelect.tagSelections != null) {
-      for (Entry<String, List<String>> entry : rule.awsTagSelect.tagSelections.entrySet()) {
-        tagFilters.add(TagFilter.builder().key(entry.getKey()).values(entry.getValue()).build());
+    long writes = 0;
+    for (ScrapeTarget target : config.targets.values()) {
+      if (target.dimensionSource instanceof CachingDimensionSource) {
+        writes += ((CachingDimensionSource) target.dimensionSource).writes();
       }
+      writes += target.tagMappingSource.writes();
     }
+    if (writes == savedCacheWrites && config.cacheFile == savedCacheFile) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    List<CacheFile.DimensionEntry> dimensions = new ArrayList<>();
+    List<CacheFile.TagMappingEntry> tagMappings = new ArrayList<>();
+    for (Entry<AwsClientPool.Target, ScrapeTarget> entry : config.targets.entrySet()) {
+      ScrapeTarget target = entry.getValue();
+      if (target.dimensionSource instanceof CachingDimensionSource) {
+        dimensions.addAll(((CachingDimensionSource) target.dimensionSource).entries(now));
+      }
+      tagMappings.addAll(target.tagMappingSource.entries(entry.getKey().id(), now));
+    }
+    try {
+      config.cacheFile.write(new CacheFile.Contents(dimensions, tagMappings));
+      savedCacheWrites = writes;
+      savedCacheFile = config.cacheFile;
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Failed to save the dimension cache", e);
+    }
+  }
 
-    List<ResourceTagMapping> resourceTagMappings = new ArrayList<>();
-    GetResourcesRequest.Builder requestBuilder =
-        GetResourcesRequest.builder()
-            .tagFilters(tagFilters)
-            .resourceTypeFilters(rule.awsTagSelect.resourceTypeSelection);
-    String paginationToken = "";
-    do {
-      requestBuilder.paginationToken(paginationToken);
-
-      GetResourcesResponse response = taggingClient.getResources(requestBuilder.build());
-      taggingApiRequests.labels("getResources", rule.awsTagSelect.resourceTypeSelection).inc();
-
-      resourceTagMappings.addAll(response.resourceTagMappingList());
+  /**
+   * Keep what the caches of the previous config know about rules that did not change, so a reload
+   * does not make the next scrape start from scratch. The rate limits of each target are kept too,
+   * so a reload doesn't raise a limit that throttling lowered.
+   */
+  private static void carryOverCaches(ActiveConfig previous, ActiveConfig next) {
+    for (Entry<AwsClientPool.Target, ScrapeTarget> entry : next.targets.entrySet()) {
+      ScrapeTarget target = entry.getValue();
+      ScrapeTarget previousTarget = previous.targets.get(entry.getKey());
+      if (previousTarget == null) {
+        continue;
+      }
+      if (previousTarget.dimensionSource instanceof CachingDimensionSource
+          && target.dimensionSource instanceof CachingDimensionSource) {
+        ((CachingDimensionSource) target.dimensionSource)
+            .carryOver((CachingDimensionSource) previousTarget.dimensionSource, target.rules);
+      }
+      target.tagMappingSource.carryOver(previousTarget.tagMappingSource, target.rules);
+      target.cloudwatchApiCalls.carryOver(previousTarget.cloudwatchApiCalls);
+      target.taggingApiCalls.carryOver(previousTarget.taggingApiCalls);
+    }
+    if (previous.metricDataCache != null && next.metricDataCache != null) {
+      next.metricDataCache.carryOver(previous.metricDataCache, next.rules);
+    }
+  }
 
-      paginationToken = response.paginationToken();
-    } while (paginationToken != null && !paginationToken.isEmpty());
+  private static ApiCallExecutor.RateLimits rateLimits(
+      double maxRequestsPerSecond, AwsClientPool.Target target) {
+    if (maxRequestsPerSecond <= 0) {
+      return null;
+    }
+    return new ApiCallExecutor.RateLimits(
+        maxRequestsPerSecond,
+        target.region == null ? "" : target.region,
+        target.roleArn == null ? "" : target.roleArn,
+        rateLimitWaitSeconds,
+        rateLimitRequestsPerSecond);
+  }
 
-    return resourceTagMappings;
+  private ExecutorService ruleExecutor(int maxConcurrentRules) {
+    if (ruleExecutor == null) {
+      AtomicInteger threadCount = new AtomicInteger();
+      ruleExecutor =
+          new ThreadPoolExecutor(
+              maxConcurrentRules,
+              maxConcurrentRules,
+              60L,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<>(),
+              runnable -> {
+                Thread thread =
+                    new Thread(
+                        runnable, "cloudwatch-rule-scraper-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              });
+      ruleExecutor.allowCoreThreadTimeOut(true);
+    } else if (maxConcurrentRules > ruleExecutor.getMaximumPoolSize()) {
+      ruleExecutor.setMaximumPoolSize(maxConcurrentRules);
+      ruleExecutor.setCorePoolSize(maxConcurrentRules);
+    } else {
+      ruleExecutor.setCorePoolSize(maxConcurrentRules);
+      ruleExecutor.setMaximumPoolSize(maxConcurrentRules);
+    }
+    return ruleExecutor;
   }
 
-  private List<String> extractResourceIds(
+  private ResourceIdSet extractResourceIds(
       Pattern arnResourceIdRegexp, List<ResourceTagMapping> resourceTagMappings) {
     List<String> resourceIds = new ArrayList<>();
     for (ResourceTagMapping resourceTagMapping : resourceTagMappings) {
       resourceIds.add(
           extractResourceIdFromArn(resourceTagMapping.resourceARN(), arnResourceIdRegexp));
     }
-    return resourceIds;
+    return ResourceIdSet.of(resourceIds);
   }
 
   private static Pattern getArnResourceIdRegexp(MetricRule rule) {
@@ -423,247 +977,937 @@ public class CloudWatchCollector extends Collector implements Describable {
     return DEFAULT_ARN_RESOURCE_ID_REGEXP;
   }
 
-  private String toSnakeCase(String str) {
-    return str.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase();
+  /** The samples produced for a single rule, merged into the scrape output in rule order. */
+  static class RuleResult {
+    final List<MetricFamilySamples> metricFamilySamples = new ArrayList<>();
+    // Set instead of metricFamilySamples when the samples are rendered for a streamed scrape.
+    RuleExposition exposition;
+    // Keyed by ARN, so the first rule to see a resource publishes its info sample.
+    final Map<String, MetricFamilySamples.Sample> resourceInfoSamples = new LinkedHashMap<>();
+    // Reported in the cloudwatch_exporter_rule_* gauges.
+    MetricRule rule;
+    long durationNanos;
+    int dimensions;
+    boolean timedOut;
+    // Set when the rule failed, the other rules of the scrape are unaffected.
+    RuntimeException failure;
+    // When the rule last succeeded, 0 if it never did. Set by LastGoodResults.
+    long lastSuccessMillis;
+
+    /** The result of a rule that did not finish before the scrape deadline. */
+    static RuleResult timedOut(MetricRule rule) {
+      RuleResult result = new RuleResult();
+      result.rule = rule;
+      result.timedOut = true;
+      return result;
+    }
+
+    /** The result of a rule that threw while it was scraped. */
+    static RuleResult failed(MetricRule rule, RuntimeException failure) {
+      LOGGER.log(
+          Level.WARNING,
+          String.format(
+              "CloudWatch scrape failed for %s %s", rule.awsNamespace, rule.awsMetricName),
+          failure);
+      RuleResult result = new RuleResult();
+      result.rule = rule;
+      result.failure = failure;
+      return result;
+    }
+
+    boolean succeeded() {
+      return !timedOut && failure == null;
+    }
+
+    int samples() {
+      int samples = exposition == null ? 0 : exposition.samples();
+      for (MetricFamilySamples family : metricFamilySamples) {
+        samples += family.samples.size();
+      }
+      return samples;
+    }
+
+    void writeTo(Writer writer, RuleExposition.Format format) throws IOException {
+      if (exposition != null) {
+        exposition.writeTo(writer);
+        samplesStreamed.inc(exposition.samples());
+      }
+      RuleExposition.writeFamilies(writer, metricFamilySamples, format);
+    }
+  }
+
+  /** The time by which a scrape has to return, with the rules that finished by then. */
+  static final class Deadline {
+    static final Deadline NONE = new Deadline(0, false);
+
+    private final long deadlineNanos;
+    private final boolean set;
+
+    private Deadline(long deadlineNanos, boolean set) {
+      this.deadlineNanos = deadlineNanos;
+      this.set = set;
+    }
+
+    /** The deadline of a scrape starting now, no deadline if the timeout is zero. */
+    static Deadline after(Duration timeout) {
+      if (timeout.isZero() || timeout.isNegative()) {
+        return NONE;
+      }
+      return new Deadline(System.nanoTime() + timeout.toNanos(), true);
+    }
+
+    boolean isSet() {
+      return set;
+    }
+
+    boolean passed() {
+      return set && remainingNanos() <= 0;
+    }
+
+    long remainingNanos() {
+      return deadlineNanos - System.nanoTime();
+    }
   }
 
-  private String safeName(String s) {
-    // Change invalid chars to underscore, and merge underscores.
-    return s.replaceAll("[^a-zA-Z0-9:_]", "_").replaceAll("__+", "_");
+  private DataGetter dataGetterFor(
+      MetricRule rule, long start, List<List<Dimension>> dimensionList) {
+    if (rule.useGetMetricData) {
+      if (rule.useAsyncClient) {
+        return new AsyncGetMetricDataDataGetter(
+            rule.target.cloudWatchAsyncClient,
+            start,
+            rule,
+            cloudwatchRequests,
+            cloudwatchMetricsRequested,
+            rule.target.cloudwatchApiCalls,
+            dimensionList);
+      }
+      return new GetMetricDataDataGetter(
+          rule.target.cloudWatchClient,
+          start,
+          rule,
+          cloudwatchRequests,
+          cloudwatchMetricsRequested,
+          rule.target.cloudwatchApiCalls,
+          dimensionList);
+    }
+    if (rule.useAsyncClient) {
+      return new AsyncGetMetricStatisticsDataGetter(
+          rule.target.cloudWatchAsyncClient,
+          start,
+          rule,
+          cloudwatchRequests,
+          cloudwatchMetricsRequested,
+          rule.target.cloudwatchApiCalls,
+          dimensionList);
+    }
+    DataGetter dataGetter =
+        new GetMetricStatisticsDataGetter(
+            rule.target.cloudWatchClient,
+            start,
+            rule,
+            cloudwatchRequests,
+            cloudwatchMetricsRequested,
+            rule.target.cloudwatchApiCalls);
+    if (rule.getMetricStatisticsConcurrency > 1) {
+      return new ConcurrentGetMetricStatisticsDataGetter(
+          dataGetter, rule.getMetricStatisticsConcurrency, dimensionList);
+    }
+    return dataGetter;
   }
 
-  private String safeLabelName(String s) {
-    // Change invalid chars to underscore, and merge underscores.
-    return s.replaceAll("[^a-zA-Z0-9_]", "_").replaceAll("__+", "_");
+  /** A rule together with the tag mappings and dimensions it resolved to in one scrape. */
+  static class ResolvedRule {
+    final MetricRule rule;
+    final List<ResourceTagMapping> resourceTagMappings;
+    final Pattern arnResourceIdRegexp;
+    final List<List<Dimension>> dimensionList;
+    // Set when the data is fetched together with other rules rather than by the rule itself.
+    DataGetter dataGetter;
+    long resolveNanos;
+    // Set when resolving failed, the rule then has no tag mappings or dimensions.
+    RuntimeException failure;
+
+    ResolvedRule(
+        MetricRule rule,
+        List<ResourceTagMapping> resourceTagMappings,
+        Pattern arnResourceIdRegexp,
+        List<List<Dimension>> dimensionList) {
+      this.rule = rule;
+      this.resourceTagMappings = resourceTagMappings;
+      this.arnResourceIdRegexp = arnResourceIdRegexp;
+      this.dimensionList = dimensionList;
+    }
+
+    static ResolvedRule failed(MetricRule rule, RuntimeException failure) {
+      ResolvedRule resolved = new ResolvedRule(rule, null, null, null);
+      resolved.failure = failure;
+      return resolved;
+    }
   }
 
-  private String help(MetricRule rule, String unit, String statistic) {
-    if (rule.help != null) {
-      return rule.help;
+  private ResolvedRule resolveRule(
+      MetricRule rule,
+      ActiveConfig config,
+      long start,
+      Map<ScrapeTarget, TagMappingSource.Scrape> tagMappings) {
+    long resolveStart = System.nanoTime();
+    List<ResourceTagMapping> resourceTagMappings =
+        rule.awsTagSelect == null
+            ? Collections.emptyList()
+            : tagMappings.get(rule.target).getResourceTagMappings(rule.awsTagSelect);
+    Pattern arnResourceIdRegexp = getArnResourceIdRegexp(rule);
+    ResourceIdSet tagBasedResourceIds =
+        extractResourceIds(arnResourceIdRegexp, resourceTagMappings);
+
+    if (rule.discovery != MetricRule.Discovery.LIST_METRICS) {
+      // The dimensions are found by the same request that fetches their data.
+      ExpressionDataGetter dataGetter =
+          new ExpressionDataGetter(
+              rule.target.cloudWatchClient,
+              start,
+              rule,
+              cloudwatchRequests,
+              cloudwatchMetricsRequested,
+              rule.target.cloudwatchApiCalls,
+              tagBasedResourceIds);
+      ResolvedRule resolved =
+          new ResolvedRule(
+              rule,
+              resourceTagMappings,
+              arnResourceIdRegexp,
+              config.sharding.ownDimensions(rule, dataGetter.dimensions()));
+      resolved.dataGetter = dataGetter;
+      resolved.resolveNanos = System.nanoTime() - resolveStart;
+      return resolved;
     }
-    return "CloudWatch metric "
-        + rule.awsNamespace
-        + " "
-        + rule.awsMetricName
-        + " Dimensions: "
-        + rule.awsDimensions
-        + " Statistic: "
-        + statistic
-        + " Unit: "
-        + unit;
+    List<List<Dimension>> dimensionList =
+        config.sharding.ownDimensions(
+            rule,
+            rule.target.dimensionSource.getDimensions(rule, tagBasedResourceIds).getDimensions());
+    ResolvedRule resolved =
+        new ResolvedRule(rule, resourceTagMappings, arnResourceIdRegexp, dimensionList);
+    resolved.resolveNanos = System.nanoTime() - resolveStart;
+    return resolved;
+  }
+
+  private RuleResult scrapeRule(
+      MetricRule rule,
+      ActiveConfig config,
+      long start,
+      Map<ScrapeTarget, TagMappingSource.Scrape> tagMappings,
+      RuleExposition.Format render) {
+    return buildRuleResult(resolveRule(rule, config, start, tagMappings), config, start, render);
   }
 
-  private String sampleLabelSuffixBy(Statistic s) {
-    switch (s) {
-      case SUM:
-        return "_sum";
-      case SAMPLE_COUNT:
-        return "_sample_count";
-      case MINIMUM:
-        return "_minimum";
-      case MAXIMUM:
-        return "_maximum";
-      case AVERAGE:
-        return "_average";
-      default:
-        throw new RuntimeException("I did not expect this stats!");
+  /**
+   * @param render - the format to render the samples to text in rather than build them, or null to
+   *     build them. Only rules that are never served their last good result are rendered.
+   */
+  private RuleResult buildRuleResult(
+      ResolvedRule resolved, ActiveConfig config, long start, RuleExposition.Format render) {
+    long buildStart = System.nanoTime();
+    DataGetter dataGetter = resolved.dataGetter;
+    if (dataGetter == null && resolved.rule.cacheMetricData) {
+      dataGetter =
+          config.metricDataCache.dataGetterFor(
+              resolved.rule,
+              start,
+              resolved.dimensionList,
+              missing -> dataGetterFor(resolved.rule, start, missing));
+    } else if (dataGetter == null) {
+      dataGetter = dataGetterFor(resolved.rule, start, resolved.dimensionList);
     }
+    RuleResult result;
+    if (render != null && !resolved.rule.servesLastGoodResult()) {
+      result = renderRuleResult(resolved, dataGetter, render);
+    } else {
+      result = buildRuleResult(resolved, dataGetter);
+    }
+    result.rule = resolved.rule;
+    result.durationNanos = resolved.resolveNanos + System.nanoTime() - buildStart;
+    result.dimensions = resolved.dimensionList.size();
+    return result;
   }
 
-  private void scrape(List<MetricFamilySamples> mfs) {
-    ActiveConfig config = new ActiveConfig(activeConfig);
-    Set<String> publishedResourceInfo = new HashSet<>();
+  private RuleResult buildRuleResult(ResolvedRule resolved, DataGetter dataGetter) {
+    MetricRule rule = resolved.rule;
+    RulePlan plan = rule.plan;
+    RuleResult result = new RuleResult();
+    List<List<MetricFamilySamples.Sample>> baseSamples = new ArrayList<>();
+    for (int i = 0; i < RulePlan.statisticsCount(); i++) {
+      baseSamples.add(new ArrayList<>());
+    }
+    HashMap<String, List<MetricFamilySamples.Sample>> extendedSamples = new HashMap<>();
 
-    long start = System.currentTimeMillis();
-    List<MetricFamilySamples.Sample> infoSamples = new ArrayList<>();
-
-    for (MetricRule rule : config.rules) {
-      String baseName =
-          safeName(rule.awsNamespace.toLowerCase() + "_" + toSnakeCase(rule.awsMetricName));
-      String jobName = safeName(rule.awsNamespace.toLowerCase());
-      Map<Statistic, List<MetricFamilySamples.Sample>> baseSamples = new HashMap<>();
-      for (Statistic s : Statistic.values()) {
-        baseSamples.put(s, new ArrayList<>());
-      }
-      HashMap<String, List<MetricFamilySamples.Sample>> extendedSamples = new HashMap<>();
-
-      String unit = null;
-
-      if (rule.awsNamespace.equals("AWS/DynamoDB")
-          && rule.awsDimensions != null
-          && rule.awsDimensions.contains("GlobalSecondaryIndexName")
-          && brokenDynamoMetrics.contains(rule.awsMetricName)) {
-        baseName += "_index";
-      }
-
-      List<ResourceTagMapping> resourceTagMappings =
-          getResourceTagMappings(rule, config.taggingClient);
-      Pattern arnResourceIdRegexp = getArnResourceIdRegexp(rule);
-      List<String> tagBasedResourceIds =
-          extractResourceIds(arnResourceIdRegexp, resourceTagMappings);
-
-      List<List<Dimension>> dimensionList =
-          config.dimensionSource.getDimensions(rule, tagBasedResourceIds).getDimensions();
-      DataGetter dataGetter = null;
-      if (rule.useGetMetricData) {
-        dataGetter =
-            new GetMetricDataDataGetter(
-                config.cloudWatchClient,
-                start,
-                rule,
-                cloudwatchRequests,
-                cloudwatchMetricsRequested,
-                dimensionList);
-      } else {
-        dataGetter =
-            new GetMetricStatisticsDataGetter(
-                config.cloudWatchClient,
-                start,
-                rule,
-                cloudwatchRequests,
-                cloudwatchMetricsRequested);
+    String unit = null;
+
+    for (List<Dimension> dimensions : resolved.dimensionList) {
+      MetricRuleData values = dataGetter.metricRuleDataFor(dimensions);
+      if (values == null) {
+        continue;
+      }
+      unit = values.unit;
+      List<String> labelNames = new ArrayList<>();
+      List<String> labelValues = new ArrayList<>();
+      labelNames.add("job");
+      labelValues.add(plan.jobName);
+      labelNames.add("instance");
+      labelValues.add("");
+      if (rule.target.labelled) {
+        labelNames.add("region");
+        labelValues.add(rule.target.region);
+        labelNames.add("account_id");
+        labelValues.add(rule.target.accountId);
+      }
+      for (Dimension d : dimensions) {
+        labelNames.add(plan.labelName(d.name()));
+        labelValues.add(d.value());
       }
 
-      for (List<Dimension> dimensions : dimensionList) {
-        MetricRuleData values = dataGetter.metricRuleDataFor(dimensions);
-        if (values == null) {
-          continue;
-        }
-        unit = values.unit;
+      Long timestamp = null;
+      if (rule.cloudwatchTimestamp) {
+        timestamp = values.timestamp.toEpochMilli();
+      }
+
+      // iterate over aws statistics
+      for (Entry<Statistic, Double> e : values.statisticValues.entrySet()) {
+        int index = RulePlan.indexOf(e.getKey());
+        baseSamples
+            .get(index)
+            .add(
+                new MetricFamilySamples.Sample(
+                    plan.statistics.get(index).name,
+                    labelNames,
+                    labelValues,
+                    e.getValue(),
+                    timestamp));
+      }
+
+      // iterate over extended values
+      for (Entry<String, Double> entry : values.extendedValues.entrySet()) {
+        List<MetricFamilySamples.Sample> samples =
+            extendedSamples.getOrDefault(entry.getKey(), new ArrayList<>());
+        samples.add(
+            new MetricFamilySamples.Sample(
+                plan.extendedStatistic(rule, entry.getKey()).name,
+                labelNames,
+                labelValues,
+                entry.getValue(),
+                timestamp));
+        extendedSamples.put(entry.getKey(), samples);
+      }
+    }
+
+    List<MetricFamilySamples> mfs = result.metricFamilySamples;
+    for (int i = 0; i < RulePlan.statisticsCount(); i++) {
+      if (!baseSamples.get(i).isEmpty()) {
+        RulePlan.StatisticPlan statistic = plan.statistics.get(i);
+        mfs.add(
+            new MetricFamilySamples(
+                statistic.name, Type.GAUGE, statistic.help(unit), baseSamples.get(i)));
+      }
+    }
+    for (Entry<String, List<MetricFamilySamples.Sample>> entry : extendedSamples.entrySet()) {
+      RulePlan.StatisticPlan statistic = plan.extendedStatistic(rule, entry.getKey());
+      mfs.add(
+          new MetricFamilySamples(
+              statistic.name, Type.GAUGE, statistic.help(unit), entry.getValue()));
+    }
+
+    addResourceInfoSamples(resolved, result);
+    return result;
+  }
+
+  private RuleResult renderRuleResult(
+      ResolvedRule resolved, DataGetter dataGetter, RuleExposition.Format format) {
+    RuleResult result = new RuleResult();
+    result.exposition = new RuleExposition(resolved.rule, format);
+    for (List<Dimension> dimensions : resolved.dimensionList) {
+      MetricRuleData values = dataGetter.metricRuleDataFor(dimensions);
+      if (values != null) {
+        result.exposition.add(dimensions, values);
+      }
+    }
+    addResourceInfoSamples(resolved, result);
+    return result;
+  }
+
+  /** Add the "aws_resource_info" metric for existing tag mappings. */
+  private void addResourceInfoSamples(ResolvedRule resolved, RuleResult result) {
+    MetricRule rule = resolved.rule;
+    RulePlan plan = rule.plan;
+    for (ResourceTagMapping resourceTagMapping : resolved.resourceTagMappings) {
+      if (!result.resourceInfoSamples.containsKey(resourceTagMapping.resourceARN())) {
         List<String> labelNames = new ArrayList<>();
         List<String> labelValues = new ArrayList<>();
         labelNames.add("job");
-        labelValues.add(jobName);
+        labelValues.add(plan.jobName);
         labelNames.add("instance");
         labelValues.add("");
-        for (Dimension d : dimensions) {
-          labelNames.add(safeLabelName(toSnakeCase(d.name())));
-          labelValues.add(d.value());
+        if (rule.target.labelled) {
+          labelNames.add("region");
+          labelValues.add(rule.target.region);
+          labelNames.add("account_id");
+          labelValues.add(rule.target.accountId);
         }
-
-        Long timestamp = null;
-        if (rule.cloudwatchTimestamp) {
-          timestamp = values.timestamp.toEpochMilli();
+        labelNames.add("arn");
+        labelValues.add(resourceTagMapping.resourceARN());
+        labelNames.add(plan.resourceIdLabelName);
+        labelValues.add(
+            extractResourceIdFromArn(
+                resourceTagMapping.resourceARN(), resolved.arnResourceIdRegexp));
+        for (Tag tag : resourceTagMapping.tags()) {
+          labelNames.add(plan.tagLabelName(tag.key()));
+          labelValues.add(tag.value());
         }
 
-        // iterate over aws statistics
-        for (Entry<Statistic, Double> e : values.statisticValues.entrySet()) {
-          String suffix = sampleLabelSuffixBy(e.getKey());
-          baseSamples
-              .get(e.getKey())
-              .add(
-                  new MetricFamilySamples.Sample(
-                      baseName + suffix, labelNames, labelValues, e.getValue(), timestamp));
-        }
+        result.resourceInfoSamples.put(
+            resourceTagMapping.resourceARN(),
+            new MetricFamilySamples.Sample("aws_resource_info", labelNames, labelValues, 1));
+      }
+    }
+  }
+
+  /**
+   * Apply a task to every input, using the rule executor when more than one rule may run at a time.
+   * The results are returned in input order regardless of the order in which the tasks complete.
+   *
+   * <p>Tasks that have not completed by the deadline are cancelled and their result is null. When
+   * running one rule at a time a task can't be cancelled, only the tasks not started yet are.
+   */
+  private static <T, R> List<R> runConcurrently(
+      ActiveConfig config, List<T> inputs, Function<T, R> task, Deadline deadline) {
+    List<R> results = new ArrayList<>();
+    runConcurrently(
+        config, inputs, task, deadline, input -> false, (result, index) -> results.add(result));
+    return results;
+  }
 
-        // iterate over extended values
-        for (Entry<String, Double> entry : values.extendedValues.entrySet()) {
-          List<MetricFamilySamples.Sample> samples =
-              extendedSamples.getOrDefault(entry.getKey(), new ArrayList<>());
-          samples.add(
-              new MetricFamilySamples.Sample(
-                  baseName + "_" + safeName(toSnakeCase(entry.getKey())),
-                  labelNames,
-                  labelValues,
-                  entry.getValue(),
-                  timestamp));
-          extendedSamples.put(entry.getKey(), samples);
+  /**
+   * Like {@link #runConcurrently(ActiveConfig, List, Function, Deadline)}, but pass each result
+   * with the index of its input to the consumer on the calling thread, as soon as it and the
+   * results before it are available.
+   *
+   * @param runsAfterDeadline - whether the task of an input does not wait on AWS, so it is still
+   *     run to completion once the deadline passed
+   */
+  private static <T, R> void runConcurrently(
+      ActiveConfig config,
+      List<T> inputs,
+      Function<T, R> task,
+      Deadline deadline,
+      Predicate<T> runsAfterDeadline,
+      ObjIntConsumer<R> consumer) {
+    if (config.maxConcurrentRules <= 1) {
+      for (int i = 0; i < inputs.size(); i++) {
+        T input = inputs.get(i);
+        boolean skipped = deadline.passed() && !runsAfterDeadline.test(input);
+        consumer.accept(skipped ? null : task.apply(input), i);
+      }
+      return;
+    }
+
+    List<Future<R>> futures = new ArrayList<>();
+    for (T input : inputs) {
+      futures.add(config.ruleExecutor.submit(() -> task.apply(input)));
+    }
+    try {
+      for (int i = 0; i < futures.size(); i++) {
+        Future<R> future = futures.get(i);
+        if (!deadline.isSet()) {
+          consumer.accept(future.get(), i);
+          continue;
+        }
+        R result;
+        try {
+          result = future.get(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+          if (!runsAfterDeadline.test(inputs.get(i))) {
+            result = null;
+          } else if (future.cancel(false)) {
+            // Still queued behind tasks that wait on AWS, so run it here instead.
+            result = task.apply(inputs.get(i));
+          } else {
+            result = future.get();
+          }
         }
+        consumer.accept(result, i);
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for rules to be scraped", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      for (Future<R> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
 
-      if (!baseSamples.get(Statistic.SUM).isEmpty()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_sum",
-                Type.GAUGE,
-                help(rule, unit, "Sum"),
-                baseSamples.get(Statistic.SUM)));
+  /**
+   * Scrape every rule, passing the results to the consumer in rule order as soon as they're
+   * available.
+   *
+   * @param render - the format to render the samples of rules to text in rather than build them, or
+   *     null to build them
+   */
+  private void scrapeRules(
+      ActiveConfig config,
+      long start,
+      Deadline deadline,
+      RuleExposition.Format render,
+      Consumer<RuleResult> consumer) {
+    Map<ScrapeTarget, TagMappingSource.Scrape> tagMappings = new HashMap<>();
+    for (ScrapeTarget target : config.targets.values()) {
+      tagMappings.put(target, target.tagMappingSource.newScrape());
+      if (target.listMetricsIndex != null) {
+        target.listMetricsIndex.clear();
       }
-      if (!baseSamples.get(Statistic.SAMPLE_COUNT).isEmpty()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_sample_count",
-                Type.GAUGE,
-                help(rule, unit, "SampleCount"),
-                baseSamples.get(Statistic.SAMPLE_COUNT)));
+    }
+    if (!config.packGetMetricDataQueries) {
+      runConcurrently(
+          config,
+          config.rules,
+          rule -> {
+            try {
+              return scrapeRule(rule, config, start, tagMappings, render);
+            } catch (RuntimeException e) {
+              return RuleResult.failed(rule, e);
+            }
+          },
+          deadline,
+          input -> false,
+          (result, index) ->
+              consumer.accept(
+                  result == null ? RuleResult.timedOut(config.rules.get(index)) : result));
+      return;
+    }
+
+    // Resolve the dimensions of every rule first, so the GetMetricData queries of all rules can be
+    // packed into as few requests as possible.
+    List<ResolvedRule> resolvedRules =
+        runConcurrently(
+            config,
+            config.rules,
+            rule -> {
+              try {
+                return resolveRule(rule, config, start, tagMappings);
+              } catch (RuntimeException e) {
+                return ResolvedRule.failed(rule, e);
+              }
+            },
+            deadline);
+    // Queries can only be packed with those of rules scraping the same region and role.
+    Map<ScrapeTarget, GetMetricDataQueryPlanner> planners = new LinkedHashMap<>();
+    for (ResolvedRule resolved : resolvedRules) {
+      if (resolved == null || resolved.failure != null || resolved.dataGetter != null) {
+        continue;
       }
-      if (!baseSamples.get(Statistic.MINIMUM).isEmpty()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_minimum",
-                Type.GAUGE,
-                help(rule, unit, "Minimum"),
-                baseSamples.get(Statistic.MINIMUM)));
+      GetMetricDataQueryPlanner planner =
+          planners.computeIfAbsent(
+              resolved.rule.target,
+              target ->
+                  new GetMetricDataQueryPlanner(
+                      target.cloudWatchClient,
+                      start,
+                      cloudwatchRequests,
+                      cloudwatchMetricsRequested,
+                      target.cloudwatchApiCalls));
+      if (resolved.rule.useGetMetricData && resolved.rule.cacheMetricData) {
+        resolved.dataGetter =
+            config.metricDataCache.dataGetterFor(
+                resolved.rule,
+                start,
+                resolved.dimensionList,
+                missing -> planner.add(resolved.rule, missing));
+      } else if (resolved.rule.useGetMetricData) {
+        resolved.dataGetter = planner.add(resolved.rule, resolved.dimensionList);
       }
-      if (!baseSamples.get(Statistic.MAXIMUM).isEmpty()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_maximum",
-                Type.GAUGE,
-                help(rule, unit, "Maximum"),
-                baseSamples.get(Statistic.MAXIMUM)));
+    }
+    List<Entry<GetMetricDataQueryPlanner, GetMetricDataRequest>> requests = new ArrayList<>();
+    for (GetMetricDataQueryPlanner planner : planners.values()) {
+      for (GetMetricDataRequest request : planner.buildRequests()) {
+        requests.add(Map.entry(planner, request));
       }
-      if (!baseSamples.get(Statistic.AVERAGE).isEmpty()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_average",
-                Type.GAUGE,
-                help(rule, unit, "Average"),
-                baseSamples.get(Statistic.AVERAGE)));
+    }
+    Map<GetMetricDataRequest, RuntimeException> requestFailures = new ConcurrentHashMap<>();
+    List<List<MetricDataResult>> responses =
+        runConcurrently(
+            config,
+            requests,
+            request -> {
+              try {
+                return request.getKey().fetch(request.getValue());
+              } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "CloudWatch GetMetricData request failed", e);
+                requestFailures.put(request.getValue(), e);
+                return List.of();
+              }
+            },
+            deadline);
+    // The rules with queries in a request that failed or did not complete miss some of their data.
+    Map<MetricRule, RuntimeException> packedFailures = new IdentityHashMap<>();
+    Set<MetricRule> packedTimedOut = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (int i = 0; i < requests.size(); i++) {
+      GetMetricDataRequest request = requests.get(i).getValue();
+      RuntimeException failure = requestFailures.get(request);
+      if (failure == null && responses.get(i) != null) {
+        continue;
       }
-      for (Entry<String, List<MetricFamilySamples.Sample>> entry : extendedSamples.entrySet()) {
-        mfs.add(
-            new MetricFamilySamples(
-                baseName + "_" + safeName(toSnakeCase(entry.getKey())),
-                Type.GAUGE,
-                help(rule, unit, entry.getKey()),
-                entry.getValue()));
-      }
-
-      // Add the "aws_resource_info" metric for existing tag mappings
-      for (ResourceTagMapping resourceTagMapping : resourceTagMappings) {
-        if (!publishedResourceInfo.contains(resourceTagMapping.resourceARN())) {
-          List<String> labelNames = new ArrayList<>();
-          List<String> labelValues = new ArrayList<>();
-          labelNames.add("job");
-          labelValues.add(jobName);
-          labelNames.add("instance");
-          labelValues.add("");
-          labelNames.add("arn");
-          labelValues.add(resourceTagMapping.resourceARN());
-          labelNames.add(safeLabelName(toSnakeCase(rule.awsTagSelect.resourceIdDimension)));
-          labelValues.add(
-              extractResourceIdFromArn(resourceTagMapping.resourceARN(), arnResourceIdRegexp));
-          for (Tag tag : resourceTagMapping.tags()) {
-            // Avoid potential collision between resource tags and other metric labels by adding the
-            // "tag_" prefix
-            // The AWS tags are case sensitive, so to avoid loosing information and label
-            // collisions, tag keys are not snaked cased
-            labelNames.add("tag_" + safeLabelName(tag.key()));
-            labelValues.add(tag.value());
-          }
-
-          infoSamples.add(
-              new MetricFamilySamples.Sample("aws_resource_info", labelNames, labelValues, 1));
-
-          publishedResourceInfo.add(resourceTagMapping.resourceARN());
+      for (MetricRule rule : requests.get(i).getKey().rulesOf(request)) {
+        if (failure != null) {
+          packedFailures.putIfAbsent(rule, failure);
+        } else {
+          packedTimedOut.add(rule);
         }
       }
     }
+    Map<GetMetricDataRequest, List<MetricDataResult>> succeeded = new HashMap<>();
+    for (int i = 0; i < requests.size(); i++) {
+      GetMetricDataRequest request = requests.get(i).getValue();
+      if (responses.get(i) != null && !requestFailures.containsKey(request)) {
+        succeeded.put(request, responses.get(i));
+      }
+    }
+    for (GetMetricDataQueryPlanner planner : planners.values()) {
+      planner.complete(succeeded);
+    }
+
+    runConcurrently(
+        config,
+        resolvedRules,
+        resolved -> {
+          if (resolved == null) {
+            return null;
+          }
+          if (resolved.failure != null) {
+            return RuleResult.failed(resolved.rule, resolved.failure);
+          }
+          try {
+            return buildRuleResult(resolved, config, start, render);
+          } catch (RuntimeException e) {
+            return RuleResult.failed(resolved.rule, e);
+          }
+        },
+        deadline,
+        // The data of these rules has arrived or is cached, so building them takes no AWS call.
+        resolved -> resolved == null || resolved.failure != null || resolved.dataGetter != null,
+        (result, index) -> {
+          if (result == null) {
+            result = RuleResult.timedOut(config.rules.get(index));
+          } else if (result.failure == null) {
+            result.failure = packedFailures.get(result.rule);
+            result.timedOut |= packedTimedOut.contains(result.rule);
+          }
+          consumer.accept(result);
+        });
+  }
+
+  /**
+   * @param writer - where to write the samples of each rule once it's scraped, or null to add them
+   *     to mfs with the other samples
+   * @param format - the format to write them in
+   * @return whether any rule failed
+   */
+  private boolean scrape(
+      List<MetricFamilySamples> mfs, Writer writer, RuleExposition.Format format) {
+    ActiveConfig config = new ActiveConfig(activeConfig);
+    long start = System.currentTimeMillis();
+    Deadline deadline = Deadline.after(scrapeTimeout(config));
+
+    Map<String, MetricFamilySamples.Sample> resourceInfoSamples = new LinkedHashMap<>();
+    Map<List<String>, double[]> statsByRule = new LinkedHashMap<>();
+    AtomicInteger ruleIndex = new AtomicInteger();
+    AtomicBoolean failed = new AtomicBoolean();
+    lastGoodResults.retain(config.rules);
+    scrapeRules(
+        config,
+        start,
+        deadline,
+        writer == null ? null : format,
+        result -> {
+          if (result.failure != null) {
+            ruleErrors.labels(result.rule.awsNamespace, result.rule.awsMetricName).inc();
+            failed.set(true);
+          }
+          result = lastGoodResults.serve(result, start);
+          if (writer == null) {
+            mfs.addAll(result.metricFamilySamples);
+          } else {
+            try {
+              result.writeTo(writer, format);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+          for (Entry<String, MetricFamilySamples.Sample> entry :
+              result.resourceInfoSamples.entrySet()) {
+            resourceInfoSamples.putIfAbsent(entry.getKey(), entry.getValue());
+          }
+          countRuleStats(statsByRule, result, ruleIndex.getAndIncrement());
+        });
+    saveCaches(config);
     mfs.add(
         new MetricFamilySamples(
             "aws_resource_info",
             Type.GAUGE,
             "AWS information available for resource",
-            infoSamples));
+            new ArrayList<>(resourceInfoSamples.values())));
+    addRuleStats(mfs, statsByRule);
+    return failed.get();
+  }
+
+  /**
+   * The configured scrape timeout, or the timeout of the request being served by this thread if
+   * that's shorter. Zero for no timeout.
+   */
+  private static Duration scrapeTimeout(ActiveConfig config) {
+    Duration requestTimeout = ScrapeTimeoutFilter.requestTimeout();
+    if (requestTimeout == null) {
+      return config.scrapeTimeout;
+    }
+    if (config.scrapeTimeout.isZero() || requestTimeout.compareTo(config.scrapeTimeout) < 0) {
+      return requestTimeout;
+    }
+    return config.scrapeTimeout;
+  }
+
+  /**
+   * Count the time spent on, dimensions resolved for and samples emitted by a rule, and whether it
+   * timed out. Rules are told apart by their index in the scraped rules, so rules of the same
+   * metric in different regions, accounts or with different settings are not added up.
+   */
+  private static void countRuleStats(
+      Map<List<String>, double[]> statsByRule, RuleResult result, int ruleIndex) {
+    MetricRule rule = result.rule;
+    double[] stats =
+        statsByRule.computeIfAbsent(
+            Arrays.asList(
+                rule.awsNamespace,
+                rule.awsMetricName,
+                rule.target.region,
+                rule.target.accountId == null ? "" : rule.target.accountId,
+                String.valueOf(ruleIndex)),
+            k -> new double[] {0, 0, 0, 0, Double.POSITIVE_INFINITY});
+    stats[0] += result.durationNanos / 1.0E9;
+    stats[1] += result.dimensions;
+    stats[2] += result.samples();
+    if (result.timedOut) {
+      stats[3] = 1;
+    }
+    stats[4] = Math.min(stats[4], result.lastSuccessMillis / 1000.0);
+  }
+
+  /** Report the stats counted for each rule by {@link #countRuleStats}. */
+  private static void addRuleStats(
+      List<MetricFamilySamples> mfs, Map<List<String>, double[]> statsByRule) {
+    mfs.add(
+        ruleStatsFamily(
+            "cloudwatch_exporter_rule_duration_seconds",
+            "Time spent resolving the dimensions of and requesting data for a metric in this"
+                + " scrape. Requests shared with other metrics are not included.",
+            statsByRule,
+            0));
+    mfs.add(
+        ruleStatsFamily(
+            "cloudwatch_exporter_rule_dimensions",
+            "Number of dimension combinations a metric resolved to in this scrape.",
+            statsByRule,
+            1));
+    mfs.add(
+        ruleStatsFamily(
+            "cloudwatch_exporter_rule_samples",
+            "Number of samples a metric emitted in this scrape.",
+            statsByRule,
+            2));
+    mfs.add(
+        ruleStatsFamily(
+            "cloudwatch_exporter_rule_timed_out",
+            "Whether a metric did not finish before the scrape timeout, its samples are then"
+                + " missing or incomplete.",
+            statsByRule,
+            3));
+    mfs.add(
+        ruleStatsFamily(
+            "cloudwatch_exporter_rule_last_success_timestamp_seconds",
+            "When a metric was last scraped without failing or timing out, 0 if it never was.",
+            statsByRule,
+            4));
+  }
+
+  private static MetricFamilySamples ruleStatsFamily(
+      String name, String help, Map<List<String>, double[]> statsByRule, int index) {
+    List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+    for (Entry<List<String>, double[]> entry : statsByRule.entrySet()) {
+      samples.add(
+          new MetricFamilySamples.Sample(
+              name,
+              Arrays.asList("namespace", "metric_name", "region", "account_id", "rule_index"),
+              entry.getKey(),
+              entry.getValue()[index]));
+    }
+    return new MetricFamilySamples(name, Type.GAUGE, help, samples);
   }
 
   public List<MetricFamilySamples> collect() {
+    if (activeConfig.backgroundScrapeIntervalSeconds > 0) {
+      return collectSnapshot();
+    }
+    return coalescedScrape();
+  }
+
+  /** Run the listener after every later config load. */
+  void onConfigLoaded(Runnable listener) {
+    configLoadedListener = listener;
+  }
+
+  /** The number of seconds between background scrapes, or 0 if scraping on every collect. */
+  int backgroundScrapeIntervalSeconds() {
+    return activeConfig.backgroundScrapeIntervalSeconds;
+  }
+
+  /** Run a full scrape and publish it as the snapshot returned by subsequent collects. */
+  synchronized void refreshSnapshot() {
+    List<MetricFamilySamples> mfs = scrapeWithStatus();
+    long generation = snapshot == null ? 1 : snapshot.generation + 1;
+    snapshot =
+        new Snapshot(Collections.unmodifiableList(mfs), System.currentTimeMillis(), generation);
+  }
+
+  private List<MetricFamilySamples> collectSnapshot() {
+    Snapshot current = snapshot;
+    List<MetricFamilySamples> mfs = new ArrayList<>();
+    List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+    if (current != null) {
+      mfs.addAll(current.metricFamilySamples);
+      samples.add(
+          new MetricFamilySamples.Sample(
+              "cloudwatch_exporter_snapshot_age_seconds",
+              new ArrayList<>(),
+              new ArrayList<>(),
+              (System.currentTimeMillis() - current.createdAtMillis) / 1000.0));
+    }
+    mfs.add(
+        new MetricFamilySamples(
+            "cloudwatch_exporter_snapshot_age_seconds",
+            Type.GAUGE,
+            "Time since the served background scrape completed, in seconds.",
+            samples));
+
+    samples = new ArrayList<>();
+    samples.add(
+        new MetricFamilySamples.Sample(
+            "cloudwatch_exporter_snapshot_generation",
+            new ArrayList<>(),
+            new ArrayList<>(),
+            current == null ? 0 : current.generation));
+    mfs.add(
+        new MetricFamilySamples(
+            "cloudwatch_exporter_snapshot_generation",
+            Type.GAUGE,
+            "Number of background scrapes completed, zero until the first one finishes.",
+            samples));
+    return mfs;
+  }
+
+  private List<MetricFamilySamples> coalescedScrape() {
+    return coalescedScrape(null, null);
+  }
+
+  /**
+   * Scrape, unless another request is already scraping, in which case wait for and return its
+   * result. A streamed scrape has no result to share, so requests arriving while it runs wait for
+   * it to finish and then scrape. Concurrent requests would otherwise each make the same requests
+   * to AWS at the same time.
+   *
+   * @param writer - where to stream the samples of each rule once it's scraped, or null to build
+   *     them
+   * @param format - the format to write them in
+   */
+  private List<MetricFamilySamples> coalescedScrape(Writer writer, RuleExposition.Format format) {
+    InFlightScrape scrape = new InFlightScrape(writer != null);
+    while (!inFlightScrape.compareAndSet(null, scrape)) {
+      InFlightScrape inFlight = inFlightScrape.get();
+      if (inFlight != null && inFlight.streamed) {
+        inFlight.result.join();
+      } else if (inFlight != null) {
+        scrapesCoalesced.inc();
+        return new ArrayList<>(inFlight.result.join());
+      }
+    }
+    try {
+      List<MetricFamilySamples> mfs = scrapeWithStatus(writer, format);
+      if (writer == null) {
+        scrape.result.complete(Collections.unmodifiableList(mfs));
+      }
+      return mfs;
+    } catch (RuntimeException | Error e) {
+      // A streamed scrape mostly fails as its client went away, which doesn't concern the others.
+      if (writer == null) {
+        scrape.result.completeExceptionally(e);
+      }
+      throw e;
+    } finally {
+      inFlightScrape.set(null);
+      scrape.result.complete(null);
+    }
+  }
+
+  /** A running scrape, which requests arriving while it runs wait for. */
+  private static final class InFlightScrape {
+    // The built samples, or null once a streamed scrape finishes.
+    final CompletableFuture<List<MetricFamilySamples>> result = new CompletableFuture<>();
+    final boolean streamed;
+
+    InFlightScrape(boolean streamed) {
+      this.streamed = streamed;
+    }
+  }
+
+  /**
+   * Scrape like {@link #collect()}, writing the samples to the writer in the format. Unless serving
+   * a snapshot or joining a scrape that builds its samples, the samples of each rule are written as
+   * soon as it's scraped, without building the samples of the whole scrape.
+   *
+   * @return the metric families still to be written, in the same format, followed by those of any
+   *     other collectors and the end of an OpenMetrics exposition
+   */
+  List<MetricFamilySamples> stream(Writer writer, RuleExposition.Format format) throws IOException {
+    if (activeConfig.backgroundScrapeIntervalSeconds > 0) {
+      return collectSnapshot();
+    }
+    try {
+      return coalescedScrape(writer, format);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private List<MetricFamilySamples> scrapeWithStatus() {
+    return scrapeWithStatus(null, null);
+  }
+
+  /**
+   * @param writer - where to write the samples of each rule once it's scraped, or null to return
+   *     them with the other samples
+   * @param format - the format to write them in
+   */
+  private List<MetricFamilySamples> scrapeWithStatus(Writer writer, RuleExposition.Format format) {
     long start = System.nanoTime();
     double error = 0;
     List<MetricFamilySamples> mfs = new ArrayList<>();
     try {
-      scrape(mfs);
+      if (scrape(mfs, writer, format)) {
+        error = 1;
+      }
+    } catch (UncheckedIOException e) {
+      // The response can't be written, so neither can the status.
+      throw e;
     } catch (Exception e) {
       error = 1;
       LOGGER.log(Level.WARNING, "CloudWatch scrape failed", e);
@@ -0,0 +1,119 @@
+package io.prometheus.cloudwatch;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+/**
+ * Runs the per-dimension GetMetricStatistics calls of a rule concurrently, with at most
+ * `get_metric_statistics_concurrency` calls in flight. On Java 21 and later the calls run on
+ * virtual threads, on older runtimes a pool of daemon platform threads is used instead.
+ */
+class ConcurrentGetMetricStatisticsDataGetter implements DataGetter {
+  private static final Logger LOGGER =
+      Logger.getLogger(ConcurrentGetMetricStatisticsDataGetter.class.getName());
+
+  private static final ExecutorService EXECUTOR = newExecutor();
+
+  private final Map<String, CompletableFuture<MetricRuleData>> results = new HashMap<>();
+  private final List<Future<?>> workers = new ArrayList<>();
+
+  ConcurrentGetMetricStatisticsDataGetter(
+      DataGetter delegate, int maxConcurrency, List<List<Dimension>> dimensionsList) {
+    Queue<Map.Entry<List<Dimension>, CompletableFuture<MetricRuleData>>> pending =
+        new ConcurrentLinkedQueue<>();
+    for (List<Dimension> dimensions : dimensionsList) {
+      CompletableFuture<MetricRuleData> result = new CompletableFuture<>();
+      pending.add(Map.entry(dimensions, result));
+      results.put(GetMetricDataDataGetter.dimensionsToKey(dimensions), result);
+    }
+    // Every worker has at most one call in flight and takes the next dimension once it is done, so
+    // the platform thread fallback never has more threads than calls, and nothing here blocks.
+    try {
+      for (int i = 0; i < Math.min(maxConcurrency, dimensionsList.size()); i++) {
+        workers.add(EXECUTOR.submit(() -> fetchPending(delegate, pending)));
+      }
+    } catch (RuntimeException e) {
+      cancel();
+      throw e;
+    }
+  }
+
+  private static void fetchPending(
+      DataGetter delegate,
+      Queue<Map.Entry<List<Dimension>, CompletableFuture<MetricRuleData>>> pending) {
+    Map.Entry<List<Dimension>, CompletableFuture<MetricRuleData>> next;
+    while (!Thread.currentThread().isInterrupted() && (next = pending.poll()) != null) {
+      if (next.getValue().isDone()) {
+        continue;
+      }
+      try {
+        next.getValue().complete(delegate.metricRuleDataFor(next.getKey()));
+      } catch (Throwable e) {
+        next.getValue().completeExceptionally(e);
+      }
+    }
+  }
+
+  @Override
+  public MetricRuleData metricRuleDataFor(List<Dimension> dimensions) {
+    CompletableFuture<MetricRuleData> result =
+        results.get(GetMetricDataDataGetter.dimensionsToKey(dimensions));
+    if (result == null) {
+      return null;
+    }
+    try {
+      return result.get();
+    } catch (InterruptedException e) {
+      // The scrape gave up on the rule, for example because its deadline passed.
+      cancel();
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while requesting metric statistics", e);
+    } catch (ExecutionException e) {
+      cancel();
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** Stop the calls still in flight and drop the ones not started yet. */
+  private void cancel() {
+    for (CompletableFuture<MetricRuleData> result : results.values()) {
+      result.cancel(true);
+    }
+    for (Future<?> worker : workers) {
+      worker.cancel(true);
+    }
+  }
+
+  private static ExecutorService newExecutor() {
+    try {
+      // Looked up reflectively so the exporter keeps running on Java 11.
+      Method newVirtualThreadPerTaskExecutor =
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      LOGGER.info("Using virtual threads for concurrent GetMetricStatistics requests");
+      return (ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      LOGGER.info("Using platform threads for concurrent GetMetricStatistics requests");
+      return Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread = new Thread(runnable, "cloudwatch-get-metric-statistics");
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+  }
+}
@@ -10,6 +10,14 @@ import software.amazon.awssdk.services.cloudwatch.model.Statistic;
 interface DataGetter {
   MetricRuleData metricRuleDataFor(List<Dimension> dimensions);
 
+  /**
+   * Whether CloudWatch answered for the dimensions. A missing datapoint only means the metric had
+   * none if it did, rather than its request failing or timing out.
+   */
+  default boolean fetched(List<Dimension> dimensions) {
+    return true;
+  }
+
   class MetricRuleData {
     Map<Statistic, Double> statisticValues;
     Map<String, Double> extendedValues;
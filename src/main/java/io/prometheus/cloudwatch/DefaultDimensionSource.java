@@ -19,13 +19,29 @@ final class DefaultDimensionSource implements DimensionSource {
   private static final Logger LOGGER = Logger.getLogger(DefaultDimensionSource.class.getName());
   private final Counter cloudwatchRequests;
   private final CloudWatchClient cloudWatchClient;
+  private final ListMetricsIndex listMetricsIndex;
+  private final ApiCallExecutor apiCalls;
 
   public DefaultDimensionSource(CloudWatchClient cloudWatchClient, Counter cloudwatchRequests) {
+    this(cloudWatchClient, cloudwatchRequests, null, new ApiCallExecutor(null));
+  }
+
+  /**
+   * @param listMetricsIndex - when not null, metrics are listed once per namespace and dimensions
+   *     through the index rather than once per rule
+   */
+  DefaultDimensionSource(
+      CloudWatchClient cloudWatchClient,
+      Counter cloudwatchRequests,
+      ListMetricsIndex listMetricsIndex,
+      ApiCallExecutor apiCalls) {
     this.cloudWatchClient = cloudWatchClient;
     this.cloudwatchRequests = cloudwatchRequests;
+    this.listMetricsIndex = listMetricsIndex;
+    this.apiCalls = apiCalls;
   }
 
-  public DimensionData getDimensions(MetricRule rule, List<String> tagBasedResourceIds) {
+  public DimensionData getDimensions(MetricRule rule, ResourceIdSet tagBasedResourceIds) {
     if (rule.awsDimensions != null
         && rule.awsDimensionSelect != null
         && !rule.awsDimensions.isEmpty()
@@ -63,19 +79,44 @@ final class DefaultDimensionSource implements DimensionSource {
   }
 
   private List<List<Dimension>> listDimensions(
-      MetricRule rule, List<String> tagBasedResourceIds, CloudWatchClient cloudWatchClient) {
+      MetricRule rule, ResourceIdSet tagBasedResourceIds, CloudWatchClient cloudWatchClient) {
     List<List<Dimension>> dimensions = new ArrayList<>();
     if (rule.awsDimensions == null) {
       dimensions.add(new ArrayList<>());
       return dimensions;
     }
 
+    // 10800 seconds is 3 hours, this setting causes metrics older than 3 hours to not be listed
+    boolean recentlyActive = rule.rangeSeconds < 10800;
+    List<Metric> metrics =
+        listMetricsIndex != null
+            ? listMetricsIndex.metricsFor(rule, recentlyActive)
+            : listMetrics(rule, recentlyActive, cloudWatchClient);
+    for (Metric metric : metrics) {
+      if (metric.dimensions().size() != rule.awsDimensions.size()) {
+        // AWS returns all the metrics with dimensions beyond the ones we ask for,
+        // so filter them out.
+        continue;
+      }
+      if (useMetric(rule, tagBasedResourceIds, metric)) {
+        dimensions.add(metric.dimensions());
+      }
+    }
+    if (rule.warnOnEmptyListDimensions && dimensions.isEmpty()) {
+      LOGGER.warning(
+          String.format(
+              "(listDimensions) ignoring metric %s:%s due to dimensions mismatch",
+              rule.awsNamespace, rule.awsMetricName));
+    }
+    return dimensions;
+  }
+
+  private List<Metric> listMetrics(
+      MetricRule rule, boolean recentlyActive, CloudWatchClient cloudWatchClient) {
     ListMetricsRequest.Builder requestBuilder = ListMetricsRequest.builder();
     requestBuilder.namespace(rule.awsNamespace);
     requestBuilder.metricName(rule.awsMetricName);
-
-    // 10800 seconds is 3 hours, this setting causes metrics older than 3 hours to not be listed
-    if (rule.rangeSeconds < 10800) {
+    if (recentlyActive) {
       requestBuilder.recentlyActive("PT3H");
     }
 
@@ -85,41 +126,31 @@ final class DefaultDimensionSource implements DimensionSource {
     }
     requestBuilder.dimensions(dimensionFilters);
 
+    List<Metric> metrics = new ArrayList<>();
     String nextToken = null;
     do {
       requestBuilder.nextToken(nextToken);
-      ListMetricsResponse response = cloudWatchClient.listMetrics(requestBuilder.build());
+      ListMetricsRequest request = requestBuilder.build();
+      ListMetricsResponse response =
+          apiCalls.call(
+              "listMetrics", rule.awsNamespace, () -> cloudWatchClient.listMetrics(request));
       cloudwatchRequests.labels("listMetrics", rule.awsNamespace).inc();
-      for (Metric metric : response.metrics()) {
-        if (metric.dimensions().size() != dimensionFilters.size()) {
-          // AWS returns all the metrics with dimensions beyond the ones we ask for,
-          // so filter them out.
-          continue;
-        }
-        if (useMetric(rule, tagBasedResourceIds, metric)) {
-          dimensions.add(metric.dimensions());
-        }
-      }
+      metrics.addAll(response.metrics());
       nextToken = response.nextToken();
     } while (nextToken != null);
-    if (rule.warnOnEmptyListDimensions && dimensions.isEmpty()) {
-      LOGGER.warning(
-          String.format(
-              "(listDimensions) ignoring metric %s:%s due to dimensions mismatch",
-              rule.awsNamespace, rule.awsMetricName));
-    }
-    return dimensions;
+    return metrics;
   }
 
   /**
    * Check if a metric should be used according to `aws_dimension_select`,
    * `aws_dimension_select_regex` and dynamic `aws_tag_select`
    */
-  private boolean useMetric(MetricRule rule, List<String> tagBasedResourceIds, Metric metric) {
-    if (rule.awsDimensionSelect != null && !metricsIsInAwsDimensionSelect(rule, metric)) {
+  static boolean useMetric(MetricRule rule, ResourceIdSet tagBasedResourceIds, Metric metric) {
+    if (rule.awsDimensionSelectValues != null && !metricsIsInAwsDimensionSelect(rule, metric)) {
       return false;
     }
-    if (rule.awsDimensionSelectRegex != null && !metricIsInAwsDimensionSelectRegex(rule, metric)) {
+    if (rule.awsDimensionSelectPatterns != null
+        && !metricIsInAwsDimensionSelectRegex(rule, metric)) {
       return false;
     }
     if (rule.awsTagSelect != null && !metricIsInAwsTagSelect(rule, tagBasedResourceIds, metric)) {
@@ -129,41 +160,32 @@ final class DefaultDimensionSource implements DimensionSource {
   }
 
   /** Check if a metric is matched in `aws_dimension_select` */
-  private boolean metricsIsInAwsDimensionSelect(MetricRule rule, Metric metric) {
-    Set<String> dimensionSelectKeys = rule.awsDimensionSelect.keySet();
+  private static boolean metricsIsInAwsDimensionSelect(MetricRule rule, Metric metric) {
     for (Dimension dimension : metric.dimensions()) {
-      String dimensionName = dimension.name();
-      String dimensionValue = dimension.value();
-      if (dimensionSelectKeys.contains(dimensionName)) {
-        List<String> allowedDimensionValues = rule.awsDimensionSelect.get(dimensionName);
-        if (!allowedDimensionValues.contains(dimensionValue)) {
-          return false;
-        }
+      Set<String> allowedDimensionValues = rule.awsDimensionSelectValues.get(dimension.name());
+      if (allowedDimensionValues != null && !allowedDimensionValues.contains(dimension.value())) {
+        return false;
       }
     }
     return true;
   }
 
   /** Check if a metric is matched in `aws_dimension_select_regex` */
-  private boolean metricIsInAwsDimensionSelectRegex(MetricRule rule, Metric metric) {
-    Set<String> dimensionSelectRegexKeys = rule.awsDimensionSelectRegex.keySet();
+  private static boolean metricIsInAwsDimensionSelectRegex(MetricRule rule, Metric metric) {
     for (Dimension dimension : metric.dimensions()) {
-      String dimensionName = dimension.name();
-      String dimensionValue = dimension.value();
-      if (dimensionSelectRegexKeys.contains(dimensionName)) {
-        List<String> allowedDimensionValues = rule.awsDimensionSelectRegex.get(dimensionName);
-        if (!regexListMatch(allowedDimensionValues, dimensionValue)) {
-          return false;
-        }
+      List<Pattern> allowedDimensionValues = rule.awsDimensionSelectPatterns.get(dimension.name());
+      if (allowedDimensionValues != null
+          && !regexListMatch(allowedDimensionValues, dimension.value())) {
+        return false;
       }
     }
     return true;
   }
 
-  /** Check if any regex string in a list matches a given input value */
-  protected static boolean regexListMatch(List<String> regexList, String input) {
-    for (String regex : regexList) {
-      if (Pattern.matches(regex, input)) {
+  /** Check if any regex in a list matches a given input value */
+  protected static boolean regexListMatch(List<Pattern> regexList, String input) {
+    for (Pattern regex : regexList) {
+      if (regex.matcher(input).matches()) {
         return true;
       }
     }
@@ -171,8 +193,8 @@ final class DefaultDimensionSource implements DimensionSource {
   }
 
   /** Check if a metric is matched in `aws_tag_select` */
-  private boolean metricIsInAwsTagSelect(
-      MetricRule rule, List<String> tagBasedResourceIds, Metric metric) {
+  private static boolean metricIsInAwsTagSelect(
+      MetricRule rule, ResourceIdSet tagBasedResourceIds, Metric metric) {
     if (rule.awsTagSelect.tagSelections == null) {
       return true;
     }
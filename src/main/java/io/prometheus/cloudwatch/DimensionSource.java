@@ -5,7 +5,7 @@ import software.amazon.awssdk.services.cloudwatch.model.Dimension;
 
 interface DimensionSource {
 
-  DimensionData getDimensions(MetricRule rule, List<String> tagBasedResourceIds);
+  DimensionData getDimensions(MetricRule rule, ResourceIdSet tagBasedResourceIds);
 
   class DimensionData {
     private final List<List<Dimension>> dimensions;
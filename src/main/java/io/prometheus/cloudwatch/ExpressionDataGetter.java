@@ -0,0 +1,300 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Counter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataResponse;
+import software.amazon.awssdk.services.cloudwatch.model.Metric;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataQuery;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
+import software.amazon.awssdk.services.cloudwatch.model.ScanBy;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+/**
+ * Finds the dimensions of a rule and fetches their data in the same GetMetricData request, with one
+ * expression per statistic that returns every series of the metric: a Metrics Insights query or a
+ * SEARCH expression, depending on the `discovery` of the rule.
+ *
+ * <p>The label of each query is a dynamic label holding the statistic and the dimension values of
+ * the series, in the format of {@link GetMetricDataDataGetter.MetricLabels}, so every returned
+ * series can be mapped back to its dimensions. The series are filtered by `aws_dimension_select`,
+ * `aws_dimension_select_regex` and `aws_tag_select` as listed metrics would be.
+ */
+class ExpressionDataGetter implements DataGetter {
+
+  private static final Logger LOGGER = Logger.getLogger(ExpressionDataGetter.class.getName());
+
+  // A Metrics Insights query or SEARCH expression returns at most this many series.
+  static final int MAX_EXPRESSION_SERIES = 500;
+  // Metrics Insights only queries the most recent 3 hours of data.
+  static final int MAX_INSIGHTS_RANGE_SECONDS = 10800;
+
+  private static final Map<Statistic, String> INSIGHTS_FUNCTIONS =
+      Map.of(
+          Statistic.AVERAGE, "AVG",
+          Statistic.SUM, "SUM",
+          Statistic.MINIMUM, "MIN",
+          Statistic.MAXIMUM, "MAX",
+          Statistic.SAMPLE_COUNT, "COUNT");
+
+  private final Map<String, MetricRuleData> results = new HashMap<>();
+  private final List<List<Dimension>> dimensionList = new ArrayList<>();
+
+  ExpressionDataGetter(
+      CloudWatchClient client,
+      long start,
+      MetricRule rule,
+      Counter apiRequestsCounter,
+      Counter metricsRequestedCounter,
+      ApiCallExecutor apiCalls,
+      ResourceIdSet tagBasedResourceIds) {
+    GetMetricDataRequest.Builder builder =
+        GetMetricDataRequest.builder()
+            .startTime(GetMetricDataDataGetter.startTimeFor(rule, start))
+            .endTime(GetMetricDataDataGetter.endTimeFor(rule, start))
+            .scanBy(ScanBy.TIMESTAMP_DESCENDING)
+            .metricDataQueries(buildMetricDataQueries(rule));
+    Map<String, Set<String>> seriesByStat = new HashMap<>();
+    Map<String, List<Dimension>> dimensionsByKey = new LinkedHashMap<>();
+    String nextToken = null;
+    do {
+      GetMetricDataRequest request = builder.nextToken(nextToken).build();
+      GetMetricDataResponse response =
+          apiCalls.call("getMetricData", rule.awsNamespace, () -> client.getMetricData(request));
+      apiRequestsCounter.labels("getMetricData", rule.awsNamespace).inc();
+      for (MetricDataResult dataResult : response.metricDataResults()) {
+        String[] label = dataResult.label().split("/", 2);
+        List<Dimension> dimensions =
+            label.length == 2 ? parseDimensions(rule.awsDimensions, label[1]) : null;
+        if (dimensions == null) {
+          LOGGER.log(
+              Level.WARNING,
+              String.format(
+                  "Ignoring series %s of %s:%s with an unexpected label",
+                  dataResult.label(), rule.awsNamespace, rule.awsMetricName));
+          continue;
+        }
+        String key = GetMetricDataDataGetter.dimensionsToKey(dimensions);
+        seriesByStat.computeIfAbsent(label[0], stat -> new HashSet<>()).add(key);
+        dimensionsByKey.putIfAbsent(key, dimensions);
+        addValue(label[0], key, dataResult);
+      }
+      nextToken = response.nextToken();
+    } while (nextToken != null);
+
+    int series = 0;
+    for (Set<String> keys : seriesByStat.values()) {
+      series += keys.size();
+      if (keys.size() >= MAX_EXPRESSION_SERIES) {
+        LOGGER.log(
+            Level.WARNING,
+            String.format(
+                "%s:%s returned %d series, the most a query returns, some may be missing",
+                rule.awsNamespace, rule.awsMetricName, keys.size()));
+      }
+    }
+    // Every series analyzed by an expression is billed as a requested metric.
+    metricsRequestedCounter.labels(rule.awsMetricName, rule.awsNamespace).inc(series);
+
+    for (List<Dimension> dimensions : dimensionsByKey.values()) {
+      Metric metric = Metric.builder().dimensions(dimensions).build();
+      if (DefaultDimensionSource.useMetric(rule, tagBasedResourceIds, metric)) {
+        dimensionList.add(dimensions);
+      }
+    }
+  }
+
+  /** The dimensions of the series found, in the order they were returned. */
+  List<List<Dimension>> dimensions() {
+    return dimensionList;
+  }
+
+  @Override
+  public MetricRuleData metricRuleDataFor(List<Dimension> dimensions) {
+    return results.get(GetMetricDataDataGetter.dimensionsToKey(dimensions));
+  }
+
+  private void addValue(String statString, String key, MetricDataResult dataResult) {
+    if (dataResult.timestamps().isEmpty() || dataResult.values().isEmpty()) {
+      return;
+    }
+    Instant timestamp = dataResult.timestamps().get(0);
+    MetricRuleData metricRuleData =
+        results.computeIfAbsent(key, k -> new MetricRuleData(timestamp, "N/A"));
+    // Later pages of a response hold older datapoints of the same series.
+    Double value = dataResult.values().get(0);
+    Statistic stat = Statistic.fromValue(statString);
+    if (stat == Statistic.UNKNOWN_TO_SDK_VERSION) {
+      metricRuleData.extendedValues.putIfAbsent(statString, value);
+    } else {
+      metricRuleData.statisticValues.putIfAbsent(stat, value);
+    }
+  }
+
+  static List<MetricDataQuery> buildMetricDataQueries(MetricRule rule) {
+    List<MetricDataQuery> queries = new ArrayList<>();
+    String dimensionsLabel = dimensionsLabel(rule.awsDimensions);
+    int id = 0;
+    for (String stat : GetMetricDataDataGetter.buildStatsList(rule)) {
+      String expression =
+          rule.discovery == MetricRule.Discovery.SEARCH
+              ? searchExpression(rule, stat)
+              : metricsInsightsQuery(rule, Statistic.fromValue(stat));
+      queries.add(
+          MetricDataQuery.builder()
+              .id("e" + id++)
+              .expression(expression)
+              .period(rule.periodSeconds)
+              .label(stat + "/" + dimensionsLabel)
+              .build());
+    }
+    return queries;
+  }
+
+  /**
+   * A Metrics Insights query for one statistic of every series of the rule, e.g. {@code SELECT
+   * AVG("CPUUtilization") FROM SCHEMA("AWS/EC2", "InstanceId") GROUP BY "InstanceId"}.
+   */
+  static String metricsInsightsQuery(MetricRule rule, Statistic stat) {
+    List<String> dimensions =
+        rule.awsDimensions == null
+            ? List.of()
+            : rule.awsDimensions.stream()
+                .map(ExpressionDataGetter::quote)
+                .collect(Collectors.toList());
+    StringBuilder query = new StringBuilder();
+    query.append("SELECT ").append(INSIGHTS_FUNCTIONS.get(stat));
+    query.append('(').append(quote(rule.awsMetricName)).append(')');
+    query.append(" FROM SCHEMA(").append(quote(rule.awsNamespace));
+    for (String dimension : dimensions) {
+      query.append(", ").append(dimension);
+    }
+    query.append(')');
+    String where = insightsWhereClause(rule);
+    if (!where.isEmpty()) {
+      query.append(" WHERE ").append(where);
+    }
+    if (!dimensions.isEmpty()) {
+      query.append(" GROUP BY ").append(String.join(", ", dimensions));
+    }
+    return query.toString();
+  }
+
+  /**
+   * A SEARCH expression for one statistic of the series with exactly the dimensions of the rule,
+   * e.g. {@code SEARCH('{"AWS/EC2","InstanceId"} MetricName="CPUUtilization"', 'p99', 60)}.
+   */
+  static String searchExpression(MetricRule rule, String stat) {
+    StringBuilder schema = new StringBuilder("{").append(quote(rule.awsNamespace));
+    if (rule.awsDimensions != null) {
+      for (String dimension : rule.awsDimensions) {
+        schema.append(',').append(quote(dimension));
+      }
+    }
+    schema.append('}');
+    StringBuilder search = new StringBuilder(schema);
+    search.append(" MetricName=").append(quote(rule.awsMetricName));
+    if (rule.awsDimensionSelect != null) {
+      for (Map.Entry<String, List<String>> entry : rule.awsDimensionSelect.entrySet()) {
+        if (!pushDown(entry.getValue())) {
+          continue;
+        }
+        search.append(" (");
+        search.append(
+            entry.getValue().stream()
+                .map(value -> entry.getKey() + "=" + quote(value))
+                .collect(Collectors.joining(" OR ")));
+        search.append(')');
+      }
+    }
+    return String.format(
+        "SEARCH('%s', '%s', %d)", search.toString().replace("'", "\\'"), stat, rule.periodSeconds);
+  }
+
+  /**
+   * Whether the selected values of a dimension can be written into an expression. Values that can't
+   * are left to the filter applied to the results.
+   */
+  private static boolean pushDown(List<String> values) {
+    return !values.isEmpty()
+        && values.stream().noneMatch(value -> value.contains("'") || value.contains("\""));
+  }
+
+  /** Narrows the query to the values of `aws_dimension_select`. */
+  private static String insightsWhereClause(MetricRule rule) {
+    if (rule.awsDimensionSelect == null) {
+      return "";
+    }
+    List<String> conditions = new ArrayList<>();
+    for (Map.Entry<String, List<String>> entry : rule.awsDimensionSelect.entrySet()) {
+      if (!pushDown(entry.getValue())) {
+        continue;
+      }
+      String condition =
+          entry.getValue().stream()
+              .map(value -> quote(entry.getKey()) + " = '" + value + "'")
+              .collect(Collectors.joining(" OR "));
+      conditions.add(entry.getValue().size() > 1 ? "(" + condition + ")" : condition);
+    }
+    return String.join(" AND ", conditions);
+  }
+
+  private static String quote(String identifier) {
+    return '"' + identifier.replace("\"", "\\\"") + '"';
+  }
+
+  /** A dynamic label expanding to the dimensions of each series, e.g. {@code InstanceId=i-1}. */
+  static String dimensionsLabel(List<String> dimensionNames) {
+    if (dimensionNames == null) {
+      return "";
+    }
+    return dimensionNames.stream()
+        .map(name -> name + "=${PROP('Dim." + name + "')}")
+        .collect(Collectors.joining(","));
+  }
+
+  /**
+   * The dimensions of an expanded {@link #dimensionsLabel(List)}, or null if the label does not
+   * match the dimension names.
+   */
+  static List<Dimension> parseDimensions(List<String> dimensionNames, String label) {
+    List<Dimension> dimensions = new ArrayList<>();
+    if (dimensionNames == null || dimensionNames.isEmpty()) {
+      return label.isEmpty() ? dimensions : null;
+    }
+    int position = 0;
+    for (int i = 0; i < dimensionNames.size(); i++) {
+      String prefix = (i == 0 ? "" : ",") + dimensionNames.get(i) + "=";
+      if (!label.startsWith(prefix, position)) {
+        return null;
+      }
+      int valueStart = position + prefix.length();
+      int valueEnd =
+          i + 1 < dimensionNames.size()
+              ? label.indexOf("," + dimensionNames.get(i + 1) + "=", valueStart)
+              : label.length();
+      if (valueEnd < 0) {
+        return null;
+      }
+      dimensions.add(
+          Dimension.builder()
+              .name(dimensionNames.get(i))
+              .value(label.substring(valueStart, valueEnd))
+              .build());
+      position = valueEnd;
+    }
+    return dimensions;
+  }
+}
@@ -3,7 +3,6 @@ package io.prometheus.cloudwatch;
 import io.prometheus.client.Counter;
 import java.time.Instant;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,21 +28,21 @@ class GetMetricDataDataGetter implements DataGetter {
   private final CloudWatchClient client;
   private final Counter apiRequestsCounter;
   private final Counter metricsRequestedCounter;
+  private final ApiCallExecutor apiCalls;
   private final Map<String, MetricRuleData> results;
-  private double metricRequestedForBilling;
 
   private static String dimensionToString(Dimension d) {
     return String.format("%s=%s", d.name(), d.value());
   }
 
-  private static String dimensionsToKey(List<Dimension> dimentions) {
+  static String dimensionsToKey(List<Dimension> dimentions) {
     return dimentions.stream()
         .map(GetMetricDataDataGetter::dimensionToString)
         .sorted()
         .collect(Collectors.joining(","));
   }
 
-  private List<String> buildStatsList(MetricRule rule) {
+  static List<String> buildStatsList(MetricRule rule) {
     List<String> stats = new ArrayList<>();
     if (rule.awsStatistics != null) {
       stats.addAll(
@@ -55,23 +54,27 @@ class GetMetricDataDataGetter implements DataGetter {
     return stats;
   }
 
-  private List<MetricDataQuery> buildMetricDataQueries(
+  /** The number of metrics billed for fetching a rule, as tracked by the requested counter. */
+  static double metricsRequestedForBilling(MetricRule rule) {
+    return buildStatsList(rule).size();
+  }
+
+  static List<MetricDataQuery> buildMetricDataQueries(
       MetricRule rule, List<List<Dimension>> dimensionsList) {
     List<MetricDataQuery> queries = new ArrayList<>();
     List<String> stats = buildStatsList(rule);
     for (String stat : stats) {
       for (List<Dimension> dl : dimensionsList) {
-        Metric metric = buildMetric(dl);
-        MetricStat metricStat = buildMetricStat(stat, metric);
+        Metric metric = buildMetric(rule, dl);
+        MetricStat metricStat = buildMetricStat(rule, stat, metric);
         MetricDataQuery query = buildQuery(stat, dl, metricStat);
         queries.add(query);
       }
     }
-    metricRequestedForBilling += stats.size();
     return queries;
   }
 
-  private MetricDataQuery buildQuery(String stat, List<Dimension> dl, MetricStat metric) {
+  private static MetricDataQuery buildQuery(String stat, List<Dimension> dl, MetricStat metric) {
     // random id - we don't care about it
     String id = "i" + UUID.randomUUID().toString().replace("-", "");
     MetricDataQuery.Builder builder = MetricDataQuery.builder();
@@ -84,7 +87,7 @@ class GetMetricDataDataGetter implements DataGetter {
     return builder.build();
   }
 
-  private MetricStat buildMetricStat(String stat, Metric metric) {
+  private static MetricStat buildMetricStat(MetricRule rule, String stat, Metric metric) {
     MetricStat.Builder builder = MetricStat.builder();
     builder.period(rule.periodSeconds);
     builder.stat(stat);
@@ -92,7 +95,7 @@ class GetMetricDataDataGetter implements DataGetter {
     return builder.build();
   }
 
-  private Metric buildMetric(List<Dimension> dl) {
+  private static Metric buildMetric(MetricRule rule, List<Dimension> dl) {
     Metric.Builder builder = Metric.builder();
     builder.namespace(rule.awsNamespace);
     builder.metricName(rule.awsMetricName);
@@ -115,13 +118,21 @@ class GetMetricDataDataGetter implements DataGetter {
     return partitions;
   }
 
-  private List<GetMetricDataRequest> buildMetricDataRequests(
-      MetricRule rule, List<List<Dimension>> dimensionsList) {
-    Date startDate = new Date(start - 1000L * rule.delaySeconds);
-    Date endDate = new Date(start - 1000L * (rule.delaySeconds + rule.rangeSeconds));
+  /** The newest data requested for a rule in a scrape started at the given time. */
+  static Instant endTimeFor(MetricRule rule, long start) {
+    return Instant.ofEpochMilli(start - 1000L * rule.delaySeconds);
+  }
+
+  /** The oldest data requested for a rule in a scrape started at the given time. */
+  static Instant startTimeFor(MetricRule rule, long start) {
+    return Instant.ofEpochMilli(start - 1000L * (rule.delaySeconds + rule.rangeSeconds));
+  }
+
+  static List<GetMetricDataRequest> buildMetricDataRequests(
+      MetricRule rule, long start, List<List<Dimension>> dimensionsList) {
     GetMetricDataRequest.Builder builder = GetMetricDataRequest.builder();
-    builder.endTime(startDate.toInstant());
-    builder.startTime(endDate.toInstant());
+    builder.endTime(endTimeFor(rule, start));
+    builder.startTime(startTimeFor(rule, start));
     builder.scanBy(ScanBy.TIMESTAMP_DESCENDING);
     List<MetricDataQuery> queries = buildMetricDataQueries(rule, dimensionsList);
     List<GetMetricDataRequest> requests = new ArrayList<>();
@@ -134,18 +145,19 @@ class GetMetricDataDataGetter implements DataGetter {
 
   private Map<String, MetricRuleData> fetchAllDataPoints(List<List<Dimension>> dimensionsList) {
     List<MetricDataResult> results = new ArrayList<>();
-    for (GetMetricDataRequest request : buildMetricDataRequests(rule, dimensionsList)) {
-      GetMetricDataResponse response = client.getMetricData(request);
+    for (GetMetricDataRequest request : buildMetricDataRequests(rule, start, dimensionsList)) {
+      GetMetricDataResponse response =
+          apiCalls.call("getMetricData", rule.awsNamespace, () -> client.getMetricData(request));
       apiRequestsCounter.labels("getMetricData", rule.awsNamespace).inc();
       results.addAll(response.metricDataResults());
     }
     metricsRequestedCounter
         .labels(rule.awsMetricName, rule.awsNamespace)
-        .inc(metricRequestedForBilling);
+        .inc(metricsRequestedForBilling(rule));
     return toMap(results);
   }
 
-  private Map<String, MetricRuleData> toMap(List<MetricDataResult> metricDataResults) {
+  static Map<String, MetricRuleData> toMap(List<MetricDataResult> metricDataResults) {
     Map<String, MetricRuleData> res = new HashMap<>();
     for (MetricDataResult dataResult : metricDataResults) {
       if (dataResult.timestamps().isEmpty() || dataResult.values().isEmpty()) {
@@ -175,13 +187,14 @@ class GetMetricDataDataGetter implements DataGetter {
       MetricRule rule,
       Counter apiRequestsCounter,
       Counter metricsRequestedCounter,
+      ApiCallExecutor apiCalls,
       List<List<Dimension>> dimensionsList) {
     this.client = client;
     this.start = start;
     this.rule = rule;
     this.apiRequestsCounter = apiRequestsCounter;
     this.metricsRequestedCounter = metricsRequestedCounter;
-    this.metricRequestedForBilling = 0d;
+    this.apiCalls = apiCalls;
     this.results = fetchAllDataPoints(dimensionsList);
   }
 
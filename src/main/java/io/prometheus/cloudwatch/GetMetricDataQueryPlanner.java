@@ -0,0 +1,235 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Counter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataRequest;
+import software.amazon.awssdk.services.cloudwatch.model.GetMetricDataResponse;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataQuery;
+import software.amazon.awssdk.services.cloudwatch.model.MetricDataResult;
+import software.amazon.awssdk.services.cloudwatch.model.ScanBy;
+
+/**
+ * Packs the GetMetricData queries of all rules in a scrape into as few requests as possible.
+ *
+ * <p>Queries of rules that request the same time window share requests of up to {@value
+ * #MAX_QUERIES_PER_REQUEST} queries. Every query is remembered by its id, so each {@link
+ * MetricDataResult} can be routed back to the {@link DataGetter} of the rule that asked for it.
+ */
+class GetMetricDataQueryPlanner {
+
+  private static final int MAX_QUERIES_PER_REQUEST = 500;
+
+  private final CloudWatchClient client;
+  private final long start;
+  private final Counter apiRequestsCounter;
+  private final Counter metricsRequestedCounter;
+  private final ApiCallExecutor apiCalls;
+  private final Map<Window, List<MetricDataQuery>> queriesByWindow = new LinkedHashMap<>();
+  private final Map<String, PlannedDataGetter> ownerByQueryId = new HashMap<>();
+  private final List<PlannedDataGetter> dataGetters = new ArrayList<>();
+  private final List<GetMetricDataRequest> requests = new ArrayList<>();
+
+  GetMetricDataQueryPlanner(
+      CloudWatchClient client,
+      long start,
+      Counter apiRequestsCounter,
+      Counter metricsRequestedCounter,
+      ApiCallExecutor apiCalls) {
+    this.client = client;
+    this.start = start;
+    this.apiRequestsCounter = apiRequestsCounter;
+    this.metricsRequestedCounter = metricsRequestedCounter;
+    this.apiCalls = apiCalls;
+  }
+
+  /**
+   * Plan the queries of a rule. The returned DataGetter answers once {@link #complete(Map)} has
+   * been called.
+   */
+  DataGetter add(MetricRule rule, List<List<Dimension>> dimensionsList) {
+    PlannedDataGetter dataGetter = new PlannedDataGetter(rule);
+    dataGetters.add(dataGetter);
+    Window window =
+        new Window(
+            GetMetricDataDataGetter.startTimeFor(rule, start),
+            GetMetricDataDataGetter.endTimeFor(rule, start));
+    List<MetricDataQuery> queries = queriesByWindow.computeIfAbsent(window, w -> new ArrayList<>());
+    for (MetricDataQuery query :
+        GetMetricDataDataGetter.buildMetricDataQueries(rule, dimensionsList)) {
+      queries.add(query);
+      ownerByQueryId.put(query.id(), dataGetter);
+    }
+    return dataGetter;
+  }
+
+  /** Build the requests for every planned query. */
+  List<GetMetricDataRequest> buildRequests() {
+    requests.clear();
+    for (Map.Entry<Window, List<MetricDataQuery>> entry : queriesByWindow.entrySet()) {
+      // Keeping namespaces together makes most requests carry, and be counted for, one namespace.
+      List<MetricDataQuery> queries = new ArrayList<>(entry.getValue());
+      queries.sort(Comparator.comparing(q -> q.metricStat().metric().namespace()));
+      GetMetricDataRequest.Builder builder =
+          GetMetricDataRequest.builder()
+              .startTime(entry.getKey().startTime)
+              .endTime(entry.getKey().endTime)
+              .scanBy(ScanBy.TIMESTAMP_DESCENDING);
+      for (List<MetricDataQuery> partition :
+          GetMetricDataDataGetter.partitionByMaxSize(queries, MAX_QUERIES_PER_REQUEST)) {
+        requests.add(builder.metricDataQueries(partition).build());
+      }
+    }
+    return new ArrayList<>(requests);
+  }
+
+  /** The rules with queries in a request built by this planner. */
+  Set<MetricRule> rulesOf(GetMetricDataRequest request) {
+    Set<MetricRule> rules = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (MetricDataQuery query : request.metricDataQueries()) {
+      PlannedDataGetter owner = ownerByQueryId.get(query.id());
+      if (owner != null) {
+        rules.add(owner.rule);
+      }
+    }
+    return rules;
+  }
+
+  /**
+   * Send a request, following pagination, and return all of its results. Each page is counted once
+   * for every namespace of the request's queries.
+   */
+  List<MetricDataResult> fetch(GetMetricDataRequest request) {
+    Set<String> namespaces = namespacesOf(request);
+    List<MetricDataResult> results = new ArrayList<>();
+    String nextToken = null;
+    do {
+      GetMetricDataRequest page = request.toBuilder().nextToken(nextToken).build();
+      GetMetricDataResponse response =
+          apiCalls.call("getMetricData", namespaces, () -> client.getMetricData(page));
+      for (String namespace : namespaces) {
+        apiRequestsCounter.labels("getMetricData", namespace).inc();
+      }
+      results.addAll(response.metricDataResults());
+      nextToken = response.nextToken();
+    } while (nextToken != null);
+    return results;
+  }
+
+  /**
+   * Route the results of all requests to the rules that own them.
+   *
+   * @param responses - the results of the requests that succeeded. The dimensions queried by other
+   *     requests are not {@link DataGetter#fetched fetched}.
+   */
+  void complete(Map<GetMetricDataRequest, List<MetricDataResult>> responses) {
+    // Results are newest first, later pages only contain older datapoints of the same query.
+    Map<String, MetricDataResult> newestById = new HashMap<>();
+    for (GetMetricDataRequest request : requests) {
+      List<MetricDataResult> results = responses.get(request);
+      if (results == null) {
+        for (MetricDataQuery query : request.metricDataQueries()) {
+          ownerByQueryId
+              .get(query.id())
+              .unfetched
+              .add(
+                  GetMetricDataDataGetter.dimensionsToKey(
+                      query.metricStat().metric().dimensions()));
+        }
+        continue;
+      }
+      for (MetricDataResult result : results) {
+        if (!result.timestamps().isEmpty() && !result.values().isEmpty()) {
+          newestById.putIfAbsent(result.id(), result);
+        }
+      }
+    }
+    Map<PlannedDataGetter, List<MetricDataResult>> resultsByOwner = new HashMap<>();
+    for (MetricDataResult result : newestById.values()) {
+      PlannedDataGetter owner = ownerByQueryId.get(result.id());
+      if (owner != null) {
+        resultsByOwner.computeIfAbsent(owner, o -> new ArrayList<>()).add(result);
+      }
+    }
+    for (PlannedDataGetter dataGetter : dataGetters) {
+      dataGetter.results =
+          GetMetricDataDataGetter.toMap(resultsByOwner.getOrDefault(dataGetter, List.of()));
+      // Like an unpacked rule, a rule is only counted once all of its requests succeeded.
+      if (!dataGetter.unfetched.isEmpty()) {
+        continue;
+      }
+      metricsRequestedCounter
+          .labels(dataGetter.rule.awsMetricName, dataGetter.rule.awsNamespace)
+          .inc(GetMetricDataDataGetter.metricsRequestedForBilling(dataGetter.rule));
+    }
+  }
+
+  private static Set<String> namespacesOf(GetMetricDataRequest request) {
+    Set<String> namespaces = new LinkedHashSet<>();
+    for (MetricDataQuery query : request.metricDataQueries()) {
+      namespaces.add(query.metricStat().metric().namespace());
+    }
+    return namespaces;
+  }
+
+  private static class PlannedDataGetter implements DataGetter {
+    private final MetricRule rule;
+    private final Set<String> unfetched = new HashSet<>();
+    private volatile Map<String, MetricRuleData> results;
+
+    PlannedDataGetter(MetricRule rule) {
+      this.rule = rule;
+    }
+
+    @Override
+    public MetricRuleData metricRuleDataFor(List<Dimension> dimensions) {
+      return results.get(GetMetricDataDataGetter.dimensionsToKey(dimensions));
+    }
+
+    @Override
+    public boolean fetched(List<Dimension> dimensions) {
+      return !unfetched.contains(GetMetricDataDataGetter.dimensionsToKey(dimensions));
+    }
+  }
+
+  private static class Window {
+    private final Instant startTime;
+    private final Instant endTime;
+
+    Window(Instant startTime, Instant endTime) {
+      this.startTime = startTime;
+      this.endTime = endTime;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      Window that = (Window) o;
+
+      if (!Objects.equals(startTime, that.startTime)) return false;
+      return Objects.equals(endTime, that.endTime);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = startTime != null ? startTime.hashCode() : 0;
+      result = 31 * result + (endTime != null ? endTime.hashCode() : 0);
+      return result;
+    }
+  }
+}
@@ -17,21 +17,25 @@ class GetMetricStatisticsDataGetter implements DataGetter {
   private CloudWatchClient client;
   private Counter apiRequestsCounter;
   private Counter metricsRequestedCounter;
+  private ApiCallExecutor apiCalls;
 
   GetMetricStatisticsDataGetter(
       CloudWatchClient client,
       long start,
       MetricRule rule,
       Counter apiRequestsCounter,
-      Counter metricsRequestedCounter) {
+      Counter metricsRequestedCounter,
+      ApiCallExecutor apiCalls) {
     this.client = client;
     this.start = start;
     this.rule = rule;
     this.apiRequestsCounter = apiRequestsCounter;
     this.metricsRequestedCounter = metricsRequestedCounter;
+    this.apiCalls = apiCalls;
   }
 
-  private GetMetricStatisticsRequest.Builder metricStatisticsRequestBuilder() {
+  static GetMetricStatisticsRequest.Builder metricStatisticsRequestBuilder(
+      MetricRule rule, long start) {
     Date startDate = new Date(start - 1000 * rule.delaySeconds);
     Date endDate = new Date(start - 1000 * (rule.delaySeconds + rule.rangeSeconds));
     GetMetricStatisticsRequest.Builder builder = GetMetricStatisticsRequest.builder();
@@ -47,16 +51,23 @@ class GetMetricStatisticsDataGetter implements DataGetter {
 
   @Override
   public MetricRuleData metricRuleDataFor(List<Dimension> dimensions) {
-    GetMetricStatisticsRequest.Builder builder = metricStatisticsRequestBuilder();
+    GetMetricStatisticsRequest.Builder builder = metricStatisticsRequestBuilder(rule, start);
     builder.dimensions(dimensions);
-    GetMetricStatisticsResponse response = client.getMetricStatistics(builder.build());
+    GetMetricStatisticsResponse response =
+        apiCalls.call(
+            "getMetricStatistics",
+            rule.awsNamespace,
+            () -> client.getMetricStatistics(builder.build()));
     apiRequestsCounter.labels("getMetricStatistics", rule.awsNamespace).inc();
     metricsRequestedCounter.labels(rule.awsMetricName, rule.awsNamespace).inc();
-    Datapoint latestDp = getNewestDatapoint(response.datapoints());
-    return toMetricValues(latestDp);
+    return toMetricValues(response);
   }
 
-  private Datapoint getNewestDatapoint(List<Datapoint> datapoints) {
+  static MetricRuleData toMetricValues(GetMetricStatisticsResponse response) {
+    return toMetricValues(getNewestDatapoint(response.datapoints()));
+  }
+
+  private static Datapoint getNewestDatapoint(List<Datapoint> datapoints) {
     Datapoint newest = null;
     for (Datapoint d : datapoints) {
       if (newest == null || newest.timestamp().isBefore(d.timestamp())) {
@@ -66,7 +77,7 @@ class GetMetricStatisticsDataGetter implements DataGetter {
     return newest;
   }
 
-  private MetricRuleData toMetricValues(Datapoint dp) {
+  private static MetricRuleData toMetricValues(Datapoint dp) {
     if (dp == null) {
       return null;
     }
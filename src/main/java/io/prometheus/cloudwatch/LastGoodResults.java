@@ -0,0 +1,65 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.cloudwatch.CloudWatchCollector.RuleResult;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The last successful result of every rule. A rule that fails or times out is served its last good
+ * result instead, for up to its `serve_last_good_result_seconds` after that result was scraped, so
+ * a failing rule keeps its samples without being retried within the scrape.
+ */
+final class LastGoodResults {
+
+  private final Map<MetricRule, Entry> entries = new ConcurrentHashMap<>();
+
+  /** Forget the results of rules that are no longer configured. */
+  void retain(List<MetricRule> rules) {
+    entries.keySet().retainAll(rules);
+  }
+
+  /**
+   * Record a successful result, or replace a failed one with the last good result of its rule where
+   * it's recent enough. Sets the last success time of the result.
+   */
+  RuleResult serve(RuleResult result, long nowMillis) {
+    if (result.succeeded()) {
+      // Rules that are never served their last good result only need the time of their success.
+      RuleResult kept = result.rule.servesLastGoodResult() ? result : null;
+      entries.put(result.rule, new Entry(kept, nowMillis));
+      result.lastSuccessMillis = nowMillis;
+      return result;
+    }
+    Entry entry = entries.get(result.rule);
+    if (entry == null) {
+      return result;
+    }
+    result.lastSuccessMillis = entry.scrapedAtMillis;
+    if (entry.result == null
+        || nowMillis - entry.scrapedAtMillis > result.rule.serveLastGoodResultFor.toMillis()) {
+      return result;
+    }
+    RuleResult lastGood = new RuleResult();
+    lastGood.metricFamilySamples.addAll(entry.result.metricFamilySamples);
+    lastGood.resourceInfoSamples.putAll(entry.result.resourceInfoSamples);
+    lastGood.rule = result.rule;
+    lastGood.durationNanos = result.durationNanos;
+    lastGood.dimensions = result.dimensions;
+    lastGood.timedOut = result.timedOut;
+    lastGood.failure = result.failure;
+    lastGood.lastSuccessMillis = entry.scrapedAtMillis;
+    return lastGood;
+  }
+
+  private static final class Entry {
+    // Null unless the rule is served its last good result.
+    final RuleResult result;
+    final long scrapedAtMillis;
+
+    Entry(RuleResult result, long scrapedAtMillis) {
+      this.result = result;
+      this.scrapedAtMillis = scrapedAtMillis;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Counter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.cloudwatch.model.DimensionFilter;
+import software.amazon.awssdk.services.cloudwatch.model.ListMetricsRequest;
+import software.amazon.awssdk.services.cloudwatch.model.ListMetricsResponse;
+import software.amazon.awssdk.services.cloudwatch.model.Metric;
+
+/**
+ * Lists the metrics of a namespace once for all rules asking for the same dimensions, instead of
+ * once per metric name, and indexes them by metric name.
+ *
+ * <p>Listings are kept until {@link #clear()} is called at the start of the next scrape.
+ */
+final class ListMetricsIndex {
+
+  private final CloudWatchClient cloudWatchClient;
+  private final Counter cloudwatchRequests;
+  private final ApiCallExecutor apiCalls;
+  private final Map<ListMetricsKey, CompletableFuture<Map<String, List<Metric>>>> listings =
+      new ConcurrentHashMap<>();
+
+  ListMetricsIndex(
+      CloudWatchClient cloudWatchClient, Counter cloudwatchRequests, ApiCallExecutor apiCalls) {
+    this.cloudWatchClient = cloudWatchClient;
+    this.cloudwatchRequests = cloudwatchRequests;
+    this.apiCalls = apiCalls;
+  }
+
+  /** Forget the listings of the previous scrape. */
+  void clear() {
+    listings.clear();
+  }
+
+  /**
+   * The metrics of the rule's namespace and metric name that have at least the rule's dimensions.
+   */
+  List<Metric> metricsFor(MetricRule rule, boolean recentlyActive) {
+    ListMetricsKey key =
+        new ListMetricsKey(rule.awsNamespace, new TreeSet<>(rule.awsDimensions), recentlyActive);
+    CompletableFuture<Map<String, List<Metric>>> listing = new CompletableFuture<>();
+    CompletableFuture<Map<String, List<Metric>>> existing = listings.putIfAbsent(key, listing);
+    if (existing != null) {
+      return AsyncGetMetricDataDataGetter.join(existing)
+          .getOrDefault(rule.awsMetricName, Collections.emptyList());
+    }
+    try {
+      Map<String, List<Metric>> metricsByName = list(key);
+      listing.complete(metricsByName);
+      return metricsByName.getOrDefault(rule.awsMetricName, Collections.emptyList());
+    } catch (RuntimeException e) {
+      listings.remove(key, listing);
+      listing.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  private Map<String, List<Metric>> list(ListMetricsKey key) {
+    ListMetricsRequest.Builder requestBuilder = ListMetricsRequest.builder();
+    requestBuilder.namespace(key.namespace);
+    if (key.recentlyActive) {
+      requestBuilder.recentlyActive("PT3H");
+    }
+    List<DimensionFilter> dimensionFilters = new ArrayList<>();
+    for (String dimension : key.dimensions) {
+      dimensionFilters.add(DimensionFilter.builder().name(dimension).build());
+    }
+    requestBuilder.dimensions(dimensionFilters);
+
+    Map<String, List<Metric>> metricsByName = new HashMap<>();
+    String nextToken = null;
+    do {
+      requestBuilder.nextToken(nextToken);
+      ListMetricsRequest request = requestBuilder.build();
+      ListMetricsResponse response =
+          apiCalls.call("listMetrics", key.namespace, () -> cloudWatchClient.listMetrics(request));
+      cloudwatchRequests.labels("listMetrics", key.namespace).inc();
+      for (Metric metric : response.metrics()) {
+        metricsByName.computeIfAbsent(metric.metricName(), n -> new ArrayList<>()).add(metric);
+      }
+      nextToken = response.nextToken();
+    } while (nextToken != null);
+    return metricsByName;
+  }
+
+  static class ListMetricsKey {
+    private final String namespace;
+    private final Set<String> dimensions;
+    private final boolean recentlyActive;
+
+    ListMetricsKey(String namespace, Set<String> dimensions, boolean recentlyActive) {
+      this.namespace = namespace;
+      this.dimensions = dimensions;
+      this.recentlyActive = recentlyActive;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      ListMetricsKey that = (ListMetricsKey) o;
+
+      if (recentlyActive != that.recentlyActive) return false;
+      if (!Objects.equals(namespace, that.namespace)) return false;
+      return Objects.equals(dimensions, that.dimensions);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = namespace != null ? namespace.hashCode() : 0;
+      result = 31 * result + (dimensions != null ? dimensions.hashCode() : 0);
+      result = 31 * result + (recentlyActive ? 1 : 0);
+      return result;
+    }
+  }
+}
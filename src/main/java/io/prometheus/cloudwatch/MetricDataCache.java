@@ -0,0 +1,190 @@
+package io.prometheus.cloudwatch;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import io.prometheus.client.Counter;
+import io.prometheus.cloudwatch.DataGetter.MetricRuleData;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+/**
+ * Remembers the datapoints fetched for a rule until CloudWatch can have a newer one.
+ *
+ * <p>A rule asks for the latest complete period ending {@link MetricRule#delaySeconds} before the
+ * scrape, so the answer cannot change before the next period boundary plus that delay. Dimensions
+ * without datapoints are remembered as well, so sparse metrics are not asked for again either.
+ * Dimensions whose request failed or timed out are not remembered.
+ */
+final class MetricDataCache {
+
+  private final Cache<MetricDataCacheKey, CachedData> cache;
+  private final Counter hitsCounter;
+  private final Counter missesCounter;
+  private final Counter savedCounter;
+
+  MetricDataCache(Counter hitsCounter, Counter missesCounter, Counter savedCounter) {
+    this.cache = Caffeine.newBuilder().expireAfter(new CachedDataExpiry()).build();
+    this.hitsCounter = hitsCounter;
+    this.missesCounter = missesCounter;
+    this.savedCounter = savedCounter;
+  }
+
+  /**
+   * Get a DataGetter for the given dimensions that only asks CloudWatch for the dimensions that are
+   * not cached.
+   *
+   * @param fetcher - creates a DataGetter for the dimensions missing from the cache, it is not
+   *     called when all dimensions are cached
+   */
+  DataGetter dataGetterFor(
+      MetricRule rule,
+      long start,
+      List<List<Dimension>> dimensionsList,
+      Function<List<List<Dimension>>, DataGetter> fetcher) {
+    Map<String, CachedData> hits = new HashMap<>();
+    List<List<Dimension>> misses = new ArrayList<>();
+    for (List<Dimension> dimensions : dimensionsList) {
+      String dimensionsKey = GetMetricDataDataGetter.dimensionsToKey(dimensions);
+      CachedData cached = cache.getIfPresent(new MetricDataCacheKey(rule, dimensionsKey));
+      if (cached != null) {
+        hits.put(dimensionsKey, cached);
+      } else {
+        misses.add(dimensions);
+      }
+    }
+
+    hitsCounter.labels(rule.awsMetricName, rule.awsNamespace).inc(hits.size());
+    missesCounter.labels(rule.awsMetricName, rule.awsNamespace).inc(misses.size());
+    savedCounter
+        .labels(rule.awsMetricName, rule.awsNamespace)
+        .inc(hits.size() * metricsRequestedPerDimension(rule));
+
+    DataGetter delegate = misses.isEmpty() ? null : fetcher.apply(misses);
+    long expiresAfterMillis = expiresAfterMillis(rule, start);
+    return dimensions -> {
+      String dimensionsKey = GetMetricDataDataGetter.dimensionsToKey(dimensions);
+      CachedData cached = hits.get(dimensionsKey);
+      if (cached != null) {
+        return cached.data;
+      }
+      if (delegate == null) {
+        return null;
+      }
+      MetricRuleData data = delegate.metricRuleDataFor(dimensions);
+      if (delegate.fetched(dimensions)) {
+        cache.put(
+            new MetricDataCacheKey(rule, dimensionsKey), new CachedData(data, expiresAfterMillis));
+      }
+      return data;
+    };
+  }
+
+  /** Take over the cached results of rules that are still configured after a reload. */
+  void carryOver(MetricDataCache previous, Collection<MetricRule> rules) {
+    Map<MetricRule, MetricRule> currentRules = new HashMap<>();
+    for (MetricRule rule : rules) {
+      currentRules.put(rule, rule);
+    }
+    for (Map.Entry<MetricDataCacheKey, CachedData> entry : previous.cache.asMap().entrySet()) {
+      MetricRule rule = currentRules.get(entry.getKey().rule);
+      if (rule == null) {
+        continue;
+      }
+      // Keep the entry's remaining time rather than its original one.
+      previous
+          .cache
+          .policy()
+          .expireVariably()
+          .flatMap(expiration -> expiration.getExpiresAfter(entry.getKey()))
+          .ifPresent(
+              expiresAfter ->
+                  cache.put(
+                      new MetricDataCacheKey(rule, entry.getKey().dimensionsKey),
+                      new CachedData(entry.getValue().data, expiresAfter.toMillis())));
+    }
+  }
+
+  /**
+   * The time from the scrape start until the next period boundary, plus the delay, has passed. Up
+   * to then CloudWatch returns the same newest datapoint.
+   */
+  static long expiresAfterMillis(MetricRule rule, long start) {
+    long periodMillis = rule.periodSeconds * 1000L;
+    long delayMillis = rule.delaySeconds * 1000L;
+    long nextBoundary = ((start - delayMillis) / periodMillis + 1) * periodMillis;
+    return nextBoundary + delayMillis - start;
+  }
+
+  private static double metricsRequestedPerDimension(MetricRule rule) {
+    // Matches what the data getters add to cloudwatch_metrics_requested_total.
+    if (rule.useGetMetricData) {
+      return GetMetricDataDataGetter.metricsRequestedForBilling(rule);
+    }
+    return 1;
+  }
+
+  private static class CachedData {
+    private final MetricRuleData data;
+    private final long expiresAfterMillis;
+
+    CachedData(MetricRuleData data, long expiresAfterMillis) {
+      this.data = data;
+      this.expiresAfterMillis = expiresAfterMillis;
+    }
+  }
+
+  private static class CachedDataExpiry implements Expiry<MetricDataCacheKey, CachedData> {
+    @Override
+    public long expireAfterCreate(MetricDataCacheKey key, CachedData value, long currentTime) {
+      return TimeUnit.MILLISECONDS.toNanos(value.expiresAfterMillis);
+    }
+
+    @Override
+    public long expireAfterUpdate(
+        MetricDataCacheKey key, CachedData value, long currentTime, long currentDuration) {
+      return TimeUnit.MILLISECONDS.toNanos(value.expiresAfterMillis);
+    }
+
+    @Override
+    public long expireAfterRead(
+        MetricDataCacheKey key, CachedData value, long currentTime, long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+  static class MetricDataCacheKey {
+    private final MetricRule rule;
+    private final String dimensionsKey;
+
+    MetricDataCacheKey(MetricRule rule, String dimensionsKey) {
+      this.rule = rule;
+      this.dimensionsKey = dimensionsKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      MetricDataCacheKey that = (MetricDataCacheKey) o;
+
+      if (!Objects.equals(rule, that.rule)) return false;
+      return Objects.equals(dimensionsKey, that.dimensionsKey);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = rule != null ? rule.hashCode() : 0;
+      result = 31 * result + (dimensionsKey != null ? dimensionsKey.hashCode() : 0);
+      return result;
+    }
+  }
+}
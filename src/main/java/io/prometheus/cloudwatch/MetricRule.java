@@ -4,11 +4,37 @@ import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.apache.commons.codec.digest.DigestUtils;
 import software.amazon.awssdk.services.cloudwatch.model.Statistic;
 
 class MetricRule {
+
+  /** How the dimensions of a rule are found. */
+  enum Discovery {
+    // ListMetrics, then a query per dimension set and statistic.
+    LIST_METRICS,
+    // A Metrics Insights query per statistic, returning every series with its data.
+    METRICS_INSIGHTS,
+    // A SEARCH expression per statistic, returning every series with its data.
+    SEARCH;
+
+    static Discovery fromConfig(String value) {
+      for (Discovery discovery : values()) {
+        if (discovery.name().equalsIgnoreCase(value)) {
+          return discovery;
+        }
+      }
+      throw new IllegalArgumentException("Unknown discovery: " + value);
+    }
+  }
+
   String awsNamespace;
   String awsMetricName;
+  // The region and role to scrape from, null for the SDK defaults.
+  String region;
+  String roleArn;
   int periodSeconds;
   int rangeSeconds;
   int delaySeconds;
@@ -21,8 +47,60 @@ class MetricRule {
   String help;
   boolean cloudwatchTimestamp;
   boolean useGetMetricData;
+  boolean useAsyncClient;
+  int getMetricStatisticsConcurrency;
+  boolean cacheMetricData;
   Duration listMetricsCacheTtl;
   boolean warnOnEmptyListDimensions;
+  Discovery discovery;
+  // How long the samples of the last successful scrape are served while the rule fails.
+  Duration serveLastGoodResultFor;
+  // Split the dimensions rather than the whole rule between the shards of a sharded exporter.
+  boolean shardByDimensions;
+  // Derived from the fields above when the config is loaded.
+  RulePlan plan;
+  CloudWatchCollector.ScrapeTarget target;
+  Map<String, Set<String>> awsDimensionSelectValues;
+  Map<String, List<Pattern>> awsDimensionSelectPatterns;
+
+  /** Whether the rule is served its last good result while it fails. */
+  boolean servesLastGoodResult() {
+    return serveLastGoodResultFor != null && !serveLastGoodResultFor.isZero();
+  }
+
+  /**
+   * A hash of the fields compared by {@link #equals(Object)} that is stable across restarts, to
+   * recognize the rule in data persisted by an earlier run.
+   */
+  String fingerprint() {
+    StringBuilder fields = new StringBuilder();
+    fields.append(awsNamespace).append('\n');
+    fields.append(awsMetricName).append('\n');
+    fields.append(periodSeconds).append('\n');
+    fields.append(rangeSeconds).append('\n');
+    fields.append(delaySeconds).append('\n');
+    fields.append(awsStatistics).append('\n');
+    fields.append(awsExtendedStatistics).append('\n');
+    fields.append(awsDimensions).append('\n');
+    fields.append(awsDimensionSelect).append('\n');
+    fields.append(awsDimensionSelectRegex).append('\n');
+    if (awsTagSelect != null) {
+      fields.append(awsTagSelect.resourceTypeSelection).append('\n');
+      fields.append(awsTagSelect.resourceIdDimension).append('\n');
+      fields.append(awsTagSelect.tagSelections).append('\n');
+      fields.append(awsTagSelect.arnResourceIdRegexp).append('\n');
+    }
+    fields.append(help).append('\n');
+    fields.append(cloudwatchTimestamp).append('\n');
+    fields.append(useGetMetricData).append('\n');
+    fields.append(useAsyncClient).append('\n');
+    fields.append(cacheMetricData).append('\n');
+    fields.append(listMetricsCacheTtl).append('\n');
+    fields.append(region).append('\n');
+    fields.append(roleArn).append('\n');
+    fields.append(discovery);
+    return DigestUtils.sha256Hex(fields.toString());
+  }
 
   @Override
   public boolean equals(Object o) {
@@ -36,8 +114,13 @@ class MetricRule {
     if (delaySeconds != that.delaySeconds) return false;
     if (cloudwatchTimestamp != that.cloudwatchTimestamp) return false;
     if (useGetMetricData != that.useGetMetricData) return false;
+    if (useAsyncClient != that.useAsyncClient) return false;
+    if (cacheMetricData != that.cacheMetricData) return false;
     if (!Objects.equals(awsNamespace, that.awsNamespace)) return false;
     if (!Objects.equals(awsMetricName, that.awsMetricName)) return false;
+    if (!Objects.equals(region, that.region)) return false;
+    if (!Objects.equals(roleArn, that.roleArn)) return false;
+    if (discovery != that.discovery) return false;
     if (!Objects.equals(awsStatistics, that.awsStatistics)) return false;
     if (!Objects.equals(awsExtendedStatistics, that.awsExtendedStatistics)) return false;
     if (!Objects.equals(awsDimensions, that.awsDimensions)) return false;
@@ -52,6 +135,8 @@ class MetricRule {
   public int hashCode() {
     int result = awsNamespace != null ? awsNamespace.hashCode() : 0;
     result = 31 * result + (awsMetricName != null ? awsMetricName.hashCode() : 0);
+    result = 31 * result + (region != null ? region.hashCode() : 0);
+    result = 31 * result + (roleArn != null ? roleArn.hashCode() : 0);
     result = 31 * result + periodSeconds;
     result = 31 * result + rangeSeconds;
     result = 31 * result + delaySeconds;
@@ -65,7 +150,10 @@ class MetricRule {
     result = 31 * result + (help != null ? help.hashCode() : 0);
     result = 31 * result + (cloudwatchTimestamp ? 1 : 0);
     result = 31 * result + (useGetMetricData ? 1 : 0);
+    result = 31 * result + (useAsyncClient ? 1 : 0);
+    result = 31 * result + (cacheMetricData ? 1 : 0);
     result = 31 * result + (listMetricsCacheTtl != null ? listMetricsCacheTtl.hashCode() : 0);
+    result = 31 * result + (discovery != null ? discovery.hashCode() : 0);
     return result;
   }
 }
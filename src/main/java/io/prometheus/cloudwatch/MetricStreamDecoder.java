@@ -0,0 +1,487 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.cloudwatch.MetricStreamStore.Datapoint;
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import software.amazon.awssdk.protocols.jsoncore.JsonNode;
+import software.amazon.awssdk.protocols.jsoncore.JsonNodeParser;
+
+/**
+ * Decodes the records of CloudWatch Metric Streams in the JSON and OpenTelemetry 0.7 output formats
+ * into datapoints.
+ *
+ * <p>A JSON record holds one JSON object per line. An OpenTelemetry record holds length-delimited
+ * `ExportMetricsServiceRequest` protobuf messages, which are read field by field here rather than
+ * with generated code, as only the few fields CloudWatch fills are needed.
+ */
+final class MetricStreamDecoder {
+
+  static final String JSON = "json";
+  static final String OPENTELEMETRY = "opentelemetry0.7";
+  static final int MAX_JSON_DEPTH = 64;
+
+  private static final JsonNodeParser JSON_PARSER = JsonNode.parser();
+
+  private MetricStreamDecoder() {}
+
+  /** The format of a record, JSON records start with an object while protobuf ones can't. */
+  static String format(byte[] record) {
+    for (byte b : record) {
+      if (!Character.isWhitespace(b)) {
+        return b == '{' ? JSON : OPENTELEMETRY;
+      }
+    }
+    return JSON;
+  }
+
+  /**
+   * Parse a JSON document with the SDK's parser, which recurses for every level of nesting.
+   * Deliveries and records nest a few levels deep, so deeper input is rejected before parsing
+   * rather than left to overflow the stack.
+   *
+   * @throws IllegalArgumentException if the JSON is malformed or nested more than {@value
+   *     #MAX_JSON_DEPTH} levels deep
+   */
+  static JsonNode parseJson(byte[] json, int offset, int length) {
+    int depth = 0;
+    boolean inString = false;
+    for (int i = offset; i < offset + length; i++) {
+      byte b = json[i];
+      if (inString) {
+        if (b == '\\') {
+          i++;
+        } else if (b == '"') {
+          inString = false;
+        }
+      } else if (b == '"') {
+        inString = true;
+      } else if (b == '[' || b == '{') {
+        if (++depth > MAX_JSON_DEPTH) {
+          throw new IllegalArgumentException("JSON nested too deeply");
+        }
+      } else if (b == ']' || b == '}') {
+        depth--;
+      }
+    }
+    try {
+      return JSON_PARSER.parse(new ByteArrayInputStream(json, offset, length));
+    } catch (RuntimeException e) {
+      throw new IllegalArgumentException("Malformed JSON: " + e.getMessage(), e);
+    }
+  }
+
+  // {"metric_stream_name":"s","account_id":"1","region":"us-east-1","namespace":"AWS/EC2",
+  // "metric_name":"CPUUtilization","dimensions":{"InstanceId":"i-1"},"timestamp":1611929698000,
+  // "value":{"max":1.0,"min":0.0,"sum":1.0,"count":2.0,"p99":1.0},"unit":"Percent"}
+  /**
+   * @throws IllegalArgumentException if the record is malformed
+   */
+  static List<Datapoint> decodeJson(byte[] record, long receivedMillis) {
+    List<Datapoint> datapoints = new ArrayList<>();
+    int lineStart = 0;
+    while (lineStart < record.length) {
+      int lineEnd = lineStart;
+      while (lineEnd < record.length && record[lineEnd] != '\n') {
+        lineEnd++;
+      }
+      if (!isBlank(record, lineStart, lineEnd)) {
+        datapoints.add(decodeJsonLine(record, lineStart, lineEnd, receivedMillis));
+      }
+      lineStart = lineEnd + 1;
+    }
+    return datapoints;
+  }
+
+  private static Datapoint decodeJsonLine(
+      byte[] record, int lineStart, int lineEnd, long receivedMillis) {
+    JsonNode parsed = parseJson(record, lineStart, lineEnd - lineStart);
+    if (!parsed.isObject()) {
+      throw new IllegalArgumentException("Expected a JSON object per line");
+    }
+    Map<String, JsonNode> object = parsed.asObject();
+    Datapoint datapoint = new Datapoint();
+    datapoint.receivedMillis = receivedMillis;
+    datapoint.accountId = string(object.get("account_id"));
+    datapoint.region = string(object.get("region"));
+    datapoint.namespace = string(object.get("namespace"));
+    datapoint.metricName = string(object.get("metric_name"));
+    datapoint.unit = string(object.get("unit"));
+    if (datapoint.namespace.isEmpty() || datapoint.metricName.isEmpty()) {
+      throw new IllegalArgumentException("Missing namespace or metric_name");
+    }
+    JsonNode dimensions = object.get("dimensions");
+    if (dimensions != null && dimensions.isObject()) {
+      for (Map.Entry<String, JsonNode> dimension : dimensions.asObject().entrySet()) {
+        datapoint.dimensions.put(dimension.getKey(), string(dimension.getValue()));
+      }
+    }
+    JsonNode timestamp = object.get("timestamp");
+    if (timestamp != null && timestamp.isNumber()) {
+      datapoint.timestampMillis = new BigDecimal(timestamp.asNumber()).longValue();
+    }
+    JsonNode values = object.get("value");
+    if (values != null && values.isObject()) {
+      for (Map.Entry<String, JsonNode> value : values.asObject().entrySet()) {
+        if (!value.getValue().isNumber()) {
+          continue;
+        }
+        double number = Double.parseDouble(value.getValue().asNumber());
+        switch (value.getKey()) {
+          case "sum":
+            datapoint.sum = number;
+            break;
+          case "count":
+            datapoint.count = number;
+            break;
+          case "min":
+            datapoint.min = number;
+            break;
+          case "max":
+            datapoint.max = number;
+            break;
+          default:
+            datapoint.percentiles.put(value.getKey(), number);
+        }
+      }
+    }
+    return datapoint;
+  }
+
+  private static boolean isBlank(byte[] record, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (!Character.isWhitespace(record[i])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static String string(JsonNode value) {
+    if (value == null || value.isNull()) {
+      return "";
+    }
+    if (value.isString()) {
+      return value.asString();
+    }
+    return value.isNumber() ? value.asNumber() : value.toString();
+  }
+
+  /**
+   * @throws IllegalArgumentException if the record is malformed
+   */
+  static List<Datapoint> decodeOpenTelemetry(byte[] record, long receivedMillis) {
+    List<Datapoint> datapoints = new ArrayList<>();
+    ProtoReader reader = new ProtoReader(record, 0, record.length);
+    while (reader.hasMore()) {
+      // ExportMetricsServiceRequest
+      ProtoReader request = reader.readMessage();
+      while (request.hasMore()) {
+        int tag = request.readTag();
+        if (tag >>> 3 == 1) {
+          readResourceMetrics(request.readMessage(), receivedMillis, datapoints);
+        } else {
+          request.skip(tag);
+        }
+      }
+    }
+    return datapoints;
+  }
+
+  private static void readResourceMetrics(
+      ProtoReader resourceMetrics, long receivedMillis, List<Datapoint> datapoints) {
+    String accountId = "";
+    String region = "";
+    List<ProtoReader> libraryMetrics = new ArrayList<>();
+    while (resourceMetrics.hasMore()) {
+      int tag = resourceMetrics.readTag();
+      if (tag >>> 3 == 1) {
+        // Resource
+        ProtoReader resource = resourceMetrics.readMessage();
+        while (resource.hasMore()) {
+          int resourceTag = resource.readTag();
+          if (resourceTag >>> 3 != 1) {
+            resource.skip(resourceTag);
+            continue;
+          }
+          String[] attribute = readKeyValue(resource.readMessage());
+          if ("cloud.account.id".equals(attribute[0])) {
+            accountId = attribute[1];
+          } else if ("cloud.region".equals(attribute[0])) {
+            region = attribute[1];
+          }
+        }
+      } else if (tag >>> 3 == 2) {
+        libraryMetrics.add(resourceMetrics.readMessage());
+      } else {
+        resourceMetrics.skip(tag);
+      }
+    }
+    // The metrics are read once the resource is known, whatever the order of the fields.
+    for (ProtoReader library : libraryMetrics) {
+      while (library.hasMore()) {
+        int tag = library.readTag();
+        if (tag >>> 3 == 2) {
+          readMetric(library.readMessage(), accountId, region, receivedMillis, datapoints);
+        } else {
+          library.skip(tag);
+        }
+      }
+    }
+  }
+
+  private static void readMetric(
+      ProtoReader metric,
+      String accountId,
+      String region,
+      long receivedMillis,
+      List<Datapoint> datapoints) {
+    String name = "";
+    String unit = "";
+    List<ProtoReader> dataPoints = new ArrayList<>();
+    while (metric.hasMore()) {
+      int tag = metric.readTag();
+      switch (tag >>> 3) {
+        case 1:
+          name = metric.readString();
+          break;
+        case 3:
+          unit = metric.readString();
+          break;
+        case 11:
+          // DoubleSummary, the only type CloudWatch streams.
+          ProtoReader summary = metric.readMessage();
+          while (summary.hasMore()) {
+            int summaryTag = summary.readTag();
+            if (summaryTag >>> 3 == 1) {
+              dataPoints.add(summary.readMessage());
+            } else {
+              summary.skip(summaryTag);
+            }
+          }
+          break;
+        default:
+          metric.skip(tag);
+      }
+    }
+    for (ProtoReader dataPoint : dataPoints) {
+      Datapoint datapoint = new Datapoint();
+      datapoint.receivedMillis = receivedMillis;
+      datapoint.accountId = accountId;
+      datapoint.region = region;
+      datapoint.unit = unit;
+      readDataPoint(dataPoint, datapoint);
+      datapoint.namespace = datapoint.dimensions.remove("Namespace");
+      datapoint.metricName = datapoint.dimensions.remove("MetricName");
+      if (datapoint.namespace == null || datapoint.metricName == null) {
+        // amazonaws.com/AWS/EC2/CPUUtilization
+        String path = name.startsWith("amazonaws.com/") ? name.substring(14) : name;
+        int slash = path.lastIndexOf('/');
+        if (slash <= 0) {
+          throw new IllegalArgumentException("Missing namespace of metric " + name);
+        }
+        datapoint.namespace = path.substring(0, slash);
+        datapoint.metricName = path.substring(slash + 1);
+      }
+      datapoints.add(datapoint);
+    }
+  }
+
+  private static void readDataPoint(ProtoReader dataPoint, Datapoint datapoint) {
+    while (dataPoint.hasMore()) {
+      int tag = dataPoint.readTag();
+      switch (tag >>> 3) {
+        case 1:
+          String[] label = readStringKeyValue(dataPoint.readMessage());
+          datapoint.dimensions.put(label[0], label[1]);
+          break;
+        case 3:
+          datapoint.timestampMillis = dataPoint.readFixed64() / 1_000_000;
+          break;
+        case 4:
+          datapoint.count = (double) dataPoint.readFixed64();
+          break;
+        case 5:
+          datapoint.sum = dataPoint.readDouble();
+          break;
+        case 6:
+          readQuantile(dataPoint.readMessage(), datapoint);
+          break;
+        default:
+          dataPoint.skip(tag);
+      }
+    }
+  }
+
+  private static void readQuantile(ProtoReader valueAtQuantile, Datapoint datapoint) {
+    double quantile = 0;
+    double value = 0;
+    while (valueAtQuantile.hasMore()) {
+      int tag = valueAtQuantile.readTag();
+      if (tag >>> 3 == 1) {
+        quantile = valueAtQuantile.readDouble();
+      } else if (tag >>> 3 == 2) {
+        value = valueAtQuantile.readDouble();
+      } else {
+        valueAtQuantile.skip(tag);
+      }
+    }
+    if (quantile == 0) {
+      datapoint.min = value;
+    } else if (quantile == 1) {
+      datapoint.max = value;
+    } else {
+      // 0.99 is p99 and 0.999 is p99.9, as in the JSON format.
+      String percentile =
+          BigDecimal.valueOf(quantile).movePointRight(2).stripTrailingZeros().toPlainString();
+      datapoint.percentiles.put("p" + percentile, value);
+    }
+  }
+
+  /** The key and value of a StringKeyValue. */
+  private static String[] readStringKeyValue(ProtoReader keyValue) {
+    String[] pair = {"", ""};
+    while (keyValue.hasMore()) {
+      int tag = keyValue.readTag();
+      if (tag >>> 3 == 1) {
+        pair[0] = keyValue.readString();
+      } else if (tag >>> 3 == 2) {
+        pair[1] = keyValue.readString();
+      } else {
+        keyValue.skip(tag);
+      }
+    }
+    return pair;
+  }
+
+  /** The key and string value of a KeyValue, whose AnyValue holds a string as field 1. */
+  private static String[] readKeyValue(ProtoReader keyValue) {
+    String[] pair = {"", ""};
+    while (keyValue.hasMore()) {
+      int tag = keyValue.readTag();
+      if (tag >>> 3 == 1) {
+        pair[0] = keyValue.readString();
+      } else if (tag >>> 3 == 2) {
+        ProtoReader value = keyValue.readMessage();
+        while (value.hasMore()) {
+          int valueTag = value.readTag();
+          if (valueTag >>> 3 == 1) {
+            pair[1] = value.readString();
+          } else {
+            value.skip(valueTag);
+          }
+        }
+      } else {
+        keyValue.skip(tag);
+      }
+    }
+    return pair;
+  }
+
+  /** Reads the fields of one protobuf message. */
+  private static final class ProtoReader {
+    private final byte[] buffer;
+    private int position;
+    private final int limit;
+
+    ProtoReader(byte[] buffer, int position, int limit) {
+      this.buffer = buffer;
+      this.position = position;
+      this.limit = limit;
+    }
+
+    boolean hasMore() {
+      return position < limit;
+    }
+
+    int readTag() {
+      return (int) readVarint();
+    }
+
+    long readVarint() {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = readByte();
+        result |= (long) (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+      throw malformed();
+    }
+
+    long readFixed64() {
+      long result = 0;
+      for (int i = 0; i < 8; i++) {
+        result |= (readByte() & 0xffL) << (8 * i);
+      }
+      return result;
+    }
+
+    double readDouble() {
+      return Double.longBitsToDouble(readFixed64());
+    }
+
+    ProtoReader readMessage() {
+      int length = readLength();
+      ProtoReader message = new ProtoReader(buffer, position, position + length);
+      position += length;
+      return message;
+    }
+
+    String readString() {
+      int length = readLength();
+      String string = new String(buffer, position, length, StandardCharsets.UTF_8);
+      position += length;
+      return string;
+    }
+
+    void skip(int tag) {
+      switch (tag & 7) {
+        case 0:
+          readVarint();
+          break;
+        case 1:
+          advance(8);
+          break;
+        case 2:
+          advance(readLength());
+          break;
+        case 5:
+          advance(4);
+          break;
+        default:
+          throw malformed();
+      }
+    }
+
+    private int readLength() {
+      long length = readVarint();
+      if (length < 0 || length > limit - position) {
+        throw malformed();
+      }
+      return (int) length;
+    }
+
+    private void advance(int bytes) {
+      if (bytes > limit - position) {
+        throw malformed();
+      }
+      position += bytes;
+    }
+
+    private byte readByte() {
+      if (position >= limit) {
+        throw malformed();
+      }
+      return buffer[position++];
+    }
+
+    private static IllegalArgumentException malformed() {
+      return new IllegalArgumentException("Malformed OpenTelemetry record");
+    }
+  }
+}
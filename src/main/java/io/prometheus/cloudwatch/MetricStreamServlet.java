@@ -0,0 +1,166 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.cloudwatch.MetricStreamStore.Datapoint;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import software.amazon.awssdk.protocols.jsoncore.JsonNode;
+
+/**
+ * Receives CloudWatch Metric Streams data delivered by a Kinesis Data Firehose HTTP endpoint
+ * destination, and keeps it in a {@link MetricStreamStore} for {@code /metrics}.
+ *
+ * <p>Firehose retries a delivery until it's answered with 200, so a malformed delivery is answered
+ * with 400 and left for Firehose to back up rather than partially stored.
+ */
+public class MetricStreamServlet extends HttpServlet {
+  private static final long serialVersionUID = 2841905217604628233L;
+
+  private static final Logger LOGGER = Logger.getLogger(MetricStreamServlet.class.getName());
+
+  static final String ACCESS_KEY_HEADER = "X-Amz-Firehose-Access-Key";
+  static final String REQUEST_ID_HEADER = "X-Amz-Firehose-Request-Id";
+  // Firehose delivers at most 64 MiB at once.
+  static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
+
+  private final transient MetricStreamStore store;
+
+  public MetricStreamServlet(CloudWatchCollector collector) {
+    this(collector.metricStreams());
+  }
+
+  MetricStreamServlet(MetricStreamStore store) {
+    this.store = store;
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    String requestId = req.getHeader(REQUEST_ID_HEADER);
+    if (!store.isEnabled()) {
+      respond(resp, HttpServletResponse.SC_NOT_FOUND, requestId, "Metric streams are disabled");
+      return;
+    }
+    if (!store.acceptsAccessKey(req.getHeader(ACCESS_KEY_HEADER))) {
+      respond(resp, HttpServletResponse.SC_UNAUTHORIZED, requestId, "Invalid access key");
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    List<Datapoint> json = new ArrayList<>();
+    List<Datapoint> openTelemetry = new ArrayList<>();
+    try {
+      BodyBuffer body = readBody(req);
+      JsonNode delivery = MetricStreamDecoder.parseJson(body.buffer(), 0, body.size());
+      JsonNode records = delivery.isObject() ? delivery.asObject().get("records") : null;
+      if (records == null || !records.isArray()) {
+        throw new IllegalArgumentException("Expected a Firehose delivery with records");
+      }
+      JsonNode deliveryRequestId = delivery.asObject().get("requestId");
+      if (deliveryRequestId != null && deliveryRequestId.isString()) {
+        requestId = deliveryRequestId.asString();
+      }
+      for (JsonNode record : records.asArray()) {
+        JsonNode data = record.isObject() ? record.asObject().get("data") : null;
+        if (data == null || !data.isString()) {
+          throw new IllegalArgumentException("Expected records with data");
+        }
+        byte[] decoded = Base64.getDecoder().decode(data.asString());
+        if (MetricStreamDecoder.JSON.equals(MetricStreamDecoder.format(decoded))) {
+          json.addAll(MetricStreamDecoder.decodeJson(decoded, now));
+        } else {
+          openTelemetry.addAll(MetricStreamDecoder.decodeOpenTelemetry(decoded, now));
+        }
+      }
+    } catch (BodyTooLargeException e) {
+      respond(resp, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, requestId, e.getMessage());
+      return;
+    } catch (IllegalArgumentException e) {
+      LOGGER.log(Level.WARNING, "Rejected a malformed metric stream delivery", e);
+      respond(resp, HttpServletResponse.SC_BAD_REQUEST, requestId, e.getMessage());
+      return;
+    }
+
+    store.putAll(json, MetricStreamDecoder.JSON, now);
+    store.putAll(openTelemetry, MetricStreamDecoder.OPENTELEMETRY, now);
+    respond(resp, HttpServletResponse.SC_OK, requestId, null);
+  }
+
+  /**
+   * Read the body, once unzipped, into the only copy of it that's parsed, limited to {@link
+   * #MAX_BODY_BYTES}.
+   */
+  private static BodyBuffer readBody(HttpServletRequest req) throws IOException {
+    InputStream in = req.getInputStream();
+    if ("gzip".equalsIgnoreCase(req.getHeader("Content-Encoding"))) {
+      in = new GZIPInputStream(in);
+    }
+    BodyBuffer body = new BodyBuffer();
+    byte[] buffer = new byte[64 * 1024];
+    for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+      if (body.size() + read > MAX_BODY_BYTES) {
+        throw new BodyTooLargeException();
+      }
+      body.write(buffer, 0, read);
+    }
+    return body;
+  }
+
+  /** Gives the parser the read bytes without copying them. */
+  private static class BodyBuffer extends ByteArrayOutputStream {
+    byte[] buffer() {
+      return buf;
+    }
+  }
+
+  /** Answers in the format Firehose expects, with an error message unless the status is 200. */
+  private static void respond(
+      HttpServletResponse resp, int status, String requestId, String errorMessage) {
+    resp.setStatus(status);
+    resp.setContentType("application/json");
+    StringBuilder body = new StringBuilder();
+    body.append("{\"requestId\":\"").append(escape(requestId == null ? "" : requestId));
+    body.append("\",\"timestamp\":").append(System.currentTimeMillis());
+    if (errorMessage != null) {
+      body.append(",\"errorMessage\":\"").append(escape(errorMessage)).append('"');
+    }
+    body.append('}');
+    try {
+      resp.getWriter().print(body);
+    } catch (IOException e) {
+      // Ignored
+    }
+  }
+
+  private static String escape(String s) {
+    StringBuilder escaped = new StringBuilder();
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        escaped.append('\\').append(c);
+      } else if (c < 0x20) {
+        escaped.append(String.format("\\u%04x", (int) c));
+      } else {
+        escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+
+  private static final class BodyTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    BodyTooLargeException() {
+      super("Delivery larger than " + MAX_BODY_BYTES + " bytes");
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.Describable;
+import io.prometheus.client.Counter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The latest datapoint of every series pushed by CloudWatch Metric Streams, exported on every
+ * scrape without calling CloudWatch.
+ *
+ * <p>Series are spread over {@value #STRIPES} independently locked stripes, so Firehose deliveries
+ * and scrapes running at the same time rarely wait for each other. The store holds at most
+ * `metric_streams_max_series` series. Datapoints of new series are dropped while it's full, and
+ * series that received no datapoint for `metric_streams_max_age_seconds` are removed.
+ */
+final class MetricStreamStore extends Collector implements Describable {
+
+  private static final int STRIPES = 16;
+
+  private final Counter datapointsReceived;
+  private final Counter datapointsDropped;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  private volatile boolean enabled;
+  private volatile byte[] accessKey;
+  private volatile int maxSeriesPerStripe = 100_000 / STRIPES;
+  private volatile long maxAgeMillis = Duration.ofMinutes(10).toMillis();
+  private volatile Set<String> polledFamilies = Set.of();
+
+  MetricStreamStore(Counter datapointsReceived, Counter datapointsDropped) {
+    this.datapointsReceived = datapointsReceived;
+    this.datapointsDropped = datapointsDropped;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+  }
+
+  /**
+   * Apply the `metric_streams_*` settings of a loaded config. Series beyond a lowered limit are
+   * kept until they expire.
+   *
+   * @param accessKey - the access key Firehose must send, null to accept any delivery
+   */
+  void configure(boolean enabled, String accessKey, int maxSeries, Duration maxAge) {
+    this.enabled = enabled;
+    this.accessKey = accessKey == null ? null : accessKey.getBytes(StandardCharsets.UTF_8);
+    this.maxSeriesPerStripe = Math.max(1, maxSeries / STRIPES);
+    this.maxAgeMillis = maxAge.toMillis();
+    if (!enabled) {
+      for (Stripe stripe : stripes) {
+        synchronized (stripe) {
+          stripe.series.clear();
+        }
+      }
+    }
+  }
+
+  /**
+   * Leave out the streamed samples of the families the polled rules export, as a family can only be
+   * exposed once per scrape.
+   */
+  void excludePolledFamilies(Set<String> names) {
+    this.polledFamilies = Set.copyOf(names);
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Whether a delivery sent with the given access key header is accepted. */
+  boolean acceptsAccessKey(String header) {
+    byte[] expected = accessKey;
+    if (expected == null) {
+      return true;
+    }
+    return header != null
+        && MessageDigest.isEqual(expected, header.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Keep the datapoints that are newer than the stored ones of their series. */
+  void putAll(List<Datapoint> datapoints, String format, long nowMillis) {
+    datapointsReceived.labels(format).inc(datapoints.size());
+    int dropped = 0;
+    for (Datapoint datapoint : datapoints) {
+      String key = datapoint.seriesKey();
+      Stripe stripe = stripes[Math.floorMod(key.hashCode(), STRIPES)];
+      synchronized (stripe) {
+        Datapoint stored = stripe.series.get(key);
+        if (stored != null) {
+          if (datapoint.timestampMillis >= stored.timestampMillis) {
+            stripe.series.put(key, datapoint);
+          }
+          continue;
+        }
+        if (stripe.series.size() >= maxSeriesPerStripe) {
+          stripe.removeExpired(nowMillis - maxAgeMillis);
+        }
+        if (stripe.series.size() >= maxSeriesPerStripe) {
+          dropped++;
+          continue;
+        }
+        stripe.series.put(key, datapoint);
+      }
+    }
+    if (dropped > 0) {
+      datapointsDropped.inc(dropped);
+    }
+  }
+
+  @Override
+  public List<MetricFamilySamples> describe() {
+    return Collections.emptyList();
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    if (!enabled) {
+      return Collections.emptyList();
+    }
+    return collect(System.currentTimeMillis());
+  }
+
+  List<MetricFamilySamples> collect(long nowMillis) {
+    long expiredBefore = nowMillis - maxAgeMillis;
+    List<Datapoint> datapoints = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        stripe.removeExpired(expiredBefore);
+        datapoints.addAll(stripe.series.values());
+      }
+    }
+
+    Set<String> excluded = polledFamilies;
+    Map<String, MetricFamilySamples> families = new LinkedHashMap<>();
+    Map<String, String> names = new HashMap<>();
+    for (Datapoint datapoint : datapoints) {
+      String baseName =
+          names.computeIfAbsent(
+              datapoint.namespace + '\n' + datapoint.metricName,
+              k ->
+                  RulePlan.safeName(
+                      datapoint.namespace.toLowerCase()
+                          + "_"
+                          + RulePlan.toSnakeCase(datapoint.metricName)));
+      List<String> labelNames = new ArrayList<>();
+      List<String> labelValues = new ArrayList<>();
+      labelNames.add("job");
+      labelValues.add(RulePlan.safeName(datapoint.namespace.toLowerCase()));
+      labelNames.add("instance");
+      labelValues.add("");
+      labelNames.add("region");
+      labelValues.add(datapoint.region);
+      labelNames.add("account_id");
+      labelValues.add(datapoint.accountId);
+      for (Map.Entry<String, String> dimension : datapoint.dimensions.entrySet()) {
+        labelNames.add(RulePlan.safeLabelName(RulePlan.toSnakeCase(dimension.getKey())));
+        labelValues.add(dimension.getValue());
+      }
+      for (Map.Entry<String, Double> statistic : datapoint.statistics().entrySet()) {
+        String name = baseName + "_" + RulePlan.safeName(RulePlan.toSnakeCase(statistic.getKey()));
+        if (excluded.contains(name)) {
+          continue;
+        }
+        MetricFamilySamples family =
+            families.computeIfAbsent(
+                name,
+                n ->
+                    new MetricFamilySamples(
+                        n,
+                        Type.GAUGE,
+                        "CloudWatch Metric Streams metric "
+                            + datapoint.namespace
+                            + " "
+                            + datapoint.metricName
+                            + " Statistic: "
+                            + statistic.getKey()
+                            + " Unit: "
+                            + datapoint.unit,
+                        new ArrayList<>()));
+        family.samples.add(
+            new MetricFamilySamples.Sample(
+                name, labelNames, labelValues, statistic.getValue(), datapoint.timestampMillis));
+      }
+    }
+
+    List<MetricFamilySamples> mfs = new ArrayList<>(families.values());
+    List<MetricFamilySamples.Sample> series = new ArrayList<>();
+    series.add(
+        new MetricFamilySamples.Sample(
+            "cloudwatch_exporter_metric_stream_series", List.of(), List.of(), datapoints.size()));
+    mfs.add(
+        new MetricFamilySamples(
+            "cloudwatch_exporter_metric_stream_series",
+            Type.GAUGE,
+            "Series received from CloudWatch Metric Streams and still exported",
+            series));
+    return mfs;
+  }
+
+  private static final class Stripe {
+    // Guarded by this.
+    final Map<String, Datapoint> series = new HashMap<>();
+
+    void removeExpired(long expiredBefore) {
+      for (Iterator<Datapoint> it = series.values().iterator(); it.hasNext(); ) {
+        if (it.next().receivedMillis < expiredBefore) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /** One datapoint of a streamed metric, holding the statistics of a period. */
+  static final class Datapoint {
+    String accountId = "";
+    String region = "";
+    String namespace;
+    String metricName;
+    SortedMap<String, String> dimensions = new TreeMap<>();
+    long timestampMillis;
+    long receivedMillis;
+    String unit = "";
+    Double sum;
+    Double count;
+    Double min;
+    Double max;
+    // By extended statistic, like p99.
+    Map<String, Double> percentiles = new TreeMap<>();
+
+    String seriesKey() {
+      StringBuilder key = new StringBuilder();
+      key.append(accountId).append('\n');
+      key.append(region).append('\n');
+      key.append(namespace).append('\n');
+      key.append(metricName).append('\n');
+      for (Map.Entry<String, String> dimension : dimensions.entrySet()) {
+        key.append(dimension.getKey()).append('=').append(dimension.getValue()).append('\n');
+      }
+      return key.toString();
+    }
+
+    /** The statistics in the order polled metrics export them, by CloudWatch name. */
+    Map<String, Double> statistics() {
+      Map<String, Double> statistics = new LinkedHashMap<>();
+      if (sum != null) {
+        statistics.put("Sum", sum);
+      }
+      if (count != null) {
+        statistics.put("SampleCount", count);
+      }
+      if (min != null) {
+        statistics.put("Minimum", min);
+      }
+      if (max != null) {
+        statistics.put("Maximum", max);
+      }
+      if (sum != null && count != null && count > 0) {
+        statistics.put("Average", sum / count);
+      }
+      statistics.putAll(percentiles);
+      return statistics;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package io.prometheus.cloudwatch;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * The IDs of the resources selected by `aws_tag_select`. Lookups are constant time and the hash
+ * code is computed once, as the set can hold tens of thousands of IDs and is part of the dimension
+ * cache key.
+ */
+final class ResourceIdSet implements Iterable<String> {
+
+  static final ResourceIdSet EMPTY = new ResourceIdSet(Collections.emptySet());
+
+  private final Set<String> resourceIds;
+  private final int hashCode;
+
+  private ResourceIdSet(Set<String> resourceIds) {
+    this.resourceIds = resourceIds;
+    this.hashCode = resourceIds.hashCode();
+  }
+
+  static ResourceIdSet of(Collection<String> resourceIds) {
+    if (resourceIds.isEmpty()) {
+      return EMPTY;
+    }
+    return new ResourceIdSet(Collections.unmodifiableSet(new HashSet<>(resourceIds)));
+  }
+
+  boolean contains(String resourceId) {
+    return resourceIds.contains(resourceId);
+  }
+
+  int size() {
+    return resourceIds.size();
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    return resourceIds.iterator();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    ResourceIdSet that = (ResourceIdSet) o;
+
+    if (hashCode != that.hashCode) return false;
+    return resourceIds.equals(that.resourceIds);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+}
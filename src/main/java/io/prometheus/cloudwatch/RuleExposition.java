@@ -0,0 +1,210 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.exporter.common.TextFormat;
+import io.prometheus.cloudwatch.DataGetter.MetricRuleData;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+/**
+ * The samples of one rule rendered in the text format 0.0.4 or OpenMetrics, for scrapes written
+ * straight to a response. The output is the same as the client library's TextFormat writes for the
+ * samples the rule would otherwise have built, without a Sample and label lists per value.
+ */
+final class RuleExposition {
+
+  /** The formats samples are rendered in. */
+  enum Format {
+    TEXT_004,
+    OPEN_METRICS_100;
+
+    /** The format of a content type chosen by {@link TextFormat#chooseContentType}. */
+    static Format of(String contentType) {
+      return TextFormat.CONTENT_TYPE_OPENMETRICS_100.equals(contentType)
+          ? OPEN_METRICS_100
+          : TEXT_004;
+    }
+  }
+
+  private final MetricRule rule;
+  private final Format format;
+  // The job, instance, region and account labels, the same for every sample of the rule.
+  private final String ruleLabels;
+  // The rendered samples of each statistic, null for those without samples.
+  private final StringBuilder[] statistics = new StringBuilder[RulePlan.statisticsCount()];
+  private final Map<String, StringBuilder> extendedStatistics = new HashMap<>();
+  private final StringBuilder labels = new StringBuilder();
+  private String unit;
+  private int samples;
+
+  RuleExposition(MetricRule rule, Format format) {
+    this.rule = rule;
+    this.format = format;
+    StringBuilder ruleLabels = new StringBuilder();
+    appendLabel(ruleLabels, "job", rule.plan.jobName);
+    appendLabel(ruleLabels, "instance", "");
+    if (rule.target.labelled) {
+      appendLabel(ruleLabels, "region", rule.target.region);
+      appendLabel(ruleLabels, "account_id", rule.target.accountId);
+    }
+    this.ruleLabels = ruleLabels.toString();
+  }
+
+  /** Render the values of one dimension combination. */
+  void add(List<Dimension> dimensions, MetricRuleData values) {
+    unit = values.unit;
+    labels.setLength(0);
+    labels.append('{').append(ruleLabels);
+    for (Dimension d : dimensions) {
+      appendLabel(labels, rule.plan.labelName(d.name()), d.value());
+    }
+    if (format == Format.OPEN_METRICS_100) {
+      // Its labels are separated by commas, with none after the last.
+      labels.setLength(labels.length() - 1);
+    }
+    labels.append('}');
+    String timestamp = rule.cloudwatchTimestamp ? timestamp(values.timestamp.toEpochMilli()) : null;
+
+    for (Entry<Statistic, Double> e : values.statisticValues.entrySet()) {
+      int index = RulePlan.indexOf(e.getKey());
+      if (statistics[index] == null) {
+        statistics[index] = new StringBuilder();
+      }
+      String name = rule.plan.statistics.get(index).name;
+      appendSample(statistics[index], name, e.getValue(), timestamp);
+    }
+    for (Entry<String, Double> e : values.extendedValues.entrySet()) {
+      appendSample(
+          extendedStatistics.computeIfAbsent(e.getKey(), k -> new StringBuilder()),
+          rule.plan.extendedStatistic(rule, e.getKey()).name,
+          e.getValue(),
+          timestamp);
+    }
+  }
+
+  int samples() {
+    return samples;
+  }
+
+  /**
+   * Write the rendered metric families, in the order the built ones are exported. The rendered
+   * samples are released, as the rule's result may be kept until the end of the scrape.
+   */
+  void writeTo(Writer writer) throws IOException {
+    char[] buffer = new char[8192];
+    for (int i = 0; i < statistics.length; i++) {
+      if (statistics[i] != null) {
+        writeFamily(writer, rule.plan.statistics.get(i), statistics[i], buffer);
+        statistics[i] = null;
+      }
+    }
+    for (Entry<String, StringBuilder> e : extendedStatistics.entrySet()) {
+      writeFamily(writer, rule.plan.extendedStatistic(rule, e.getKey()), e.getValue(), buffer);
+    }
+    extendedStatistics.clear();
+  }
+
+  /**
+   * Write built metric families in the format, without the end of an OpenMetrics exposition, as
+   * more families follow them.
+   */
+  static void writeFamilies(Writer writer, List<MetricFamilySamples> families, Format format)
+      throws IOException {
+    if (families.isEmpty()) {
+      return;
+    }
+    if (format == Format.TEXT_004) {
+      TextFormat.write004(writer, Collections.enumeration(families));
+      return;
+    }
+    StringWriter rendered = new StringWriter();
+    TextFormat.writeOpenMetrics100(rendered, Collections.enumeration(families));
+    StringBuffer buffer = rendered.getBuffer();
+    writer.write(buffer.substring(0, buffer.length() - "# EOF\n".length()));
+  }
+
+  private void writeFamily(
+      Writer writer, RulePlan.StatisticPlan statistic, StringBuilder rendered, char[] buffer)
+      throws IOException {
+    if (format == Format.OPEN_METRICS_100) {
+      writeType(writer, statistic);
+    }
+    writer.write("# HELP ");
+    writer.write(statistic.name);
+    writer.write(' ');
+    String help = statistic.help(unit);
+    for (int i = 0; i < help.length(); i++) {
+      char c = help.charAt(i);
+      if (c == '\\') {
+        writer.write("\\\\");
+      } else if (c == '\n') {
+        writer.write("\\n");
+      } else if (c == '"' && format == Format.OPEN_METRICS_100) {
+        writer.write("\\\"");
+      } else {
+        writer.write(c);
+      }
+    }
+    writer.write('\n');
+    if (format == Format.TEXT_004) {
+      writeType(writer, statistic);
+    }
+    // Copied in chunks, as Writer.append would copy the whole family into a String first.
+    for (int start = 0; start < rendered.length(); start += buffer.length) {
+      int end = Math.min(rendered.length(), start + buffer.length);
+      rendered.getChars(start, end, buffer, 0);
+      writer.write(buffer, 0, end - start);
+    }
+  }
+
+  private static void writeType(Writer writer, RulePlan.StatisticPlan statistic)
+      throws IOException {
+    writer.write("# TYPE ");
+    writer.write(statistic.name);
+    writer.write(" gauge\n");
+  }
+
+  /** A timestamp in milliseconds as the format writes it, OpenMetrics in seconds. */
+  private String timestamp(long millis) {
+    if (format == Format.TEXT_004) {
+      return Long.toString(millis);
+    }
+    long fraction = millis % 1000;
+    return millis / 1000 + (fraction < 10 ? ".00" : fraction < 100 ? ".0" : ".") + fraction;
+  }
+
+  private void appendSample(StringBuilder family, String name, double value, String timestamp) {
+    family.append(name).append(labels).append(' ').append(Collector.doubleToGoString(value));
+    if (timestamp != null) {
+      family.append(' ').append(timestamp);
+    }
+    family.append('\n');
+    samples++;
+  }
+
+  private static void appendLabel(StringBuilder labels, String name, String value) {
+    labels.append(name).append("=\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\') {
+        labels.append("\\\\");
+      } else if (c == '"') {
+        labels.append("\\\"");
+      } else if (c == '\n') {
+        labels.append("\\n");
+      } else {
+        labels.append(c);
+      }
+    }
+    labels.append("\",");
+  }
+}
@@ -0,0 +1,214 @@
+package io.prometheus.cloudwatch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+/**
+ * The names and help texts a {@link MetricRule} exports, derived once when the configuration is
+ * loaded so scrapes don't need to sanitize names.
+ */
+final class RulePlan {
+
+  private static final List<Statistic> STATISTICS_ORDER =
+      List.of(
+          Statistic.SUM,
+          Statistic.SAMPLE_COUNT,
+          Statistic.MINIMUM,
+          Statistic.MAXIMUM,
+          Statistic.AVERAGE);
+
+  private static final List<String> brokenDynamoMetrics =
+      Arrays.asList(
+          "ConsumedReadCapacityUnits", "ConsumedWriteCapacityUnits",
+          "ProvisionedReadCapacityUnits", "ProvisionedWriteCapacityUnits",
+          "ReadThrottleEvents", "WriteThrottleEvents");
+
+  final String jobName;
+  final String baseName;
+  final List<StatisticPlan> statistics;
+  final Map<String, StatisticPlan> extendedStatistics;
+  final String resourceIdLabelName;
+  private final Map<String, String> labelNames;
+  // Tag keys are only known once resources are scraped, so their label names are cached then.
+  private final Map<String, String> tagLabelNames = new ConcurrentHashMap<>();
+
+  RulePlan(MetricRule rule) {
+    jobName = safeName(rule.awsNamespace.toLowerCase());
+    String name = safeName(rule.awsNamespace.toLowerCase() + "_" + toSnakeCase(rule.awsMetricName));
+    if (rule.awsNamespace.equals("AWS/DynamoDB")
+        && rule.awsDimensions != null
+        && rule.awsDimensions.contains("GlobalSecondaryIndexName")
+        && brokenDynamoMetrics.contains(rule.awsMetricName)) {
+      name += "_index";
+    }
+    baseName = name;
+
+    List<StatisticPlan> statisticPlans = new ArrayList<>();
+    for (Statistic statistic : STATISTICS_ORDER) {
+      statisticPlans.add(
+          new StatisticPlan(
+              baseName + sampleLabelSuffixBy(statistic),
+              help(rule, statistic.toString()),
+              rule.help != null));
+    }
+    statistics = Collections.unmodifiableList(statisticPlans);
+
+    Map<String, StatisticPlan> extendedPlans = new HashMap<>();
+    if (rule.awsExtendedStatistics != null) {
+      for (String extendedStatistic : rule.awsExtendedStatistics) {
+        extendedPlans.put(extendedStatistic, extendedStatisticPlan(rule, extendedStatistic));
+      }
+    }
+    extendedStatistics = Collections.unmodifiableMap(extendedPlans);
+
+    Map<String, String> dimensionLabelNames = new HashMap<>();
+    if (rule.awsDimensions != null) {
+      for (String dimension : rule.awsDimensions) {
+        dimensionLabelNames.put(dimension, safeLabelName(toSnakeCase(dimension)));
+      }
+    }
+    labelNames = Collections.unmodifiableMap(dimensionLabelNames);
+
+    resourceIdLabelName =
+        rule.awsTagSelect == null || rule.awsTagSelect.resourceIdDimension == null
+            ? null
+            : safeLabelName(toSnakeCase(rule.awsTagSelect.resourceIdDimension));
+  }
+
+  /** The names of the metric families the rule exports. */
+  List<String> familyNames(MetricRule rule) {
+    List<String> names = new ArrayList<>();
+    if (rule.awsStatistics != null) {
+      for (Statistic statistic : rule.awsStatistics) {
+        // Statistics unknown to the SDK are never exported.
+        int index = STATISTICS_ORDER.indexOf(statistic);
+        if (index >= 0) {
+          names.add(statistics.get(index).name);
+        }
+      }
+    }
+    for (StatisticPlan extendedStatistic : extendedStatistics.values()) {
+      names.add(extendedStatistic.name);
+    }
+    return names;
+  }
+
+  /** The position of a statistic in {@link #statistics}, which is also the export order. */
+  static int indexOf(Statistic statistic) {
+    int index = STATISTICS_ORDER.indexOf(statistic);
+    if (index < 0) {
+      throw new RuntimeException("I did not expect this stats!");
+    }
+    return index;
+  }
+
+  static int statisticsCount() {
+    return STATISTICS_ORDER.size();
+  }
+
+  /** The label name of a dimension. */
+  String labelName(String dimension) {
+    String labelName = labelNames.get(dimension);
+    if (labelName == null) {
+      return safeLabelName(toSnakeCase(dimension));
+    }
+    return labelName;
+  }
+
+  /**
+   * The label name of a resource tag. Tag keys are prefixed to avoid collisions with the other
+   * labels, and not snake cased as they are case sensitive.
+   */
+  String tagLabelName(String tagKey) {
+    return tagLabelNames.computeIfAbsent(tagKey, k -> "tag_" + safeLabelName(k));
+  }
+
+  /** The plan of an extended statistic, which is usually one configured for the rule. */
+  StatisticPlan extendedStatistic(MetricRule rule, String extendedStatistic) {
+    StatisticPlan plan = extendedStatistics.get(extendedStatistic);
+    if (plan == null) {
+      return extendedStatisticPlan(rule, extendedStatistic);
+    }
+    return plan;
+  }
+
+  private StatisticPlan extendedStatisticPlan(MetricRule rule, String extendedStatistic) {
+    return new StatisticPlan(
+        baseName + "_" + safeName(toSnakeCase(extendedStatistic)),
+        help(rule, extendedStatistic),
+        rule.help != null);
+  }
+
+  /** The name and help text of the metric family exported for a statistic. */
+  static final class StatisticPlan {
+    final String name;
+    // Either the configured help, or the generated help missing the unit.
+    private final String help;
+    private final boolean configuredHelp;
+
+    StatisticPlan(String name, String help, boolean configuredHelp) {
+      this.name = name;
+      this.help = help;
+      this.configuredHelp = configuredHelp;
+    }
+
+    String help(String unit) {
+      if (configuredHelp) {
+        return help;
+      }
+      return help + unit;
+    }
+  }
+
+  private static String help(MetricRule rule, String statistic) {
+    if (rule.help != null) {
+      return rule.help;
+    }
+    return "CloudWatch metric "
+        + rule.awsNamespace
+        + " "
+        + rule.awsMetricName
+        + " Dimensions: "
+        + rule.awsDimensions
+        + " Statistic: "
+        + statistic
+        + " Unit: ";
+  }
+
+  private static String sampleLabelSuffixBy(Statistic s) {
+    switch (s) {
+      case SUM:
+        return "_sum";
+      case SAMPLE_COUNT:
+        return "_sample_count";
+      case MINIMUM:
+        return "_minimum";
+      case MAXIMUM:
+        return "_maximum";
+      case AVERAGE:
+        return "_average";
+      default:
+        throw new RuntimeException("I did not expect this stats!");
+    }
+  }
+
+  static String toSnakeCase(String str) {
+    return str.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase();
+  }
+
+  static String safeName(String s) {
+    // Change invalid chars to underscore, and merge underscores.
+    return s.replaceAll("[^a-zA-Z0-9:_]", "_").replaceAll("__+", "_");
+  }
+
+  static String safeLabelName(String s) {
+    // Change invalid chars to underscore, and merge underscores.
+    return s.replaceAll("[^a-zA-Z0-9_]", "_").replaceAll("__+", "_");
+  }
+}
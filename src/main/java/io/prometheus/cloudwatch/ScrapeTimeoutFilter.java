@@ -0,0 +1,64 @@
+package io.prometheus.cloudwatch;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Passes the scrape timeout Prometheus sends in the `X-Prometheus-Scrape-Timeout-Seconds` header to
+ * {@link CloudWatchCollector#collect()}, which runs on the request thread.
+ */
+public class ScrapeTimeoutFilter implements Filter {
+
+  static final String TIMEOUT_HEADER = "X-Prometheus-Scrape-Timeout-Seconds";
+
+  // Left for writing the response, as Prometheus times out at exactly the sent timeout.
+  private static final Duration OFFSET = Duration.ofMillis(500);
+
+  private static final ThreadLocal<Duration> requestTimeout = new ThreadLocal<>();
+
+  /** The time left for the scrape of the current request, or null if there is no request. */
+  static Duration requestTimeout() {
+    return requestTimeout.get();
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    Duration timeout = parseTimeout(((HttpServletRequest) request).getHeader(TIMEOUT_HEADER));
+    if (timeout == null) {
+      chain.doFilter(request, response);
+      return;
+    }
+    requestTimeout.set(timeout);
+    try {
+      chain.doFilter(request, response);
+    } finally {
+      requestTimeout.remove();
+    }
+  }
+
+  static Duration parseTimeout(String header) {
+    if (header == null) {
+      return null;
+    }
+    double seconds;
+    try {
+      seconds = Double.parseDouble(header);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (!(seconds > 0)) {
+      return null;
+    }
+    Duration timeout = Duration.ofNanos((long) (seconds * 1.0E9));
+    // Short timeouts keep half of their time rather than none.
+    Duration offset = timeout.compareTo(OFFSET.multipliedBy(2)) > 0 ? OFFSET : timeout.dividedBy(2);
+    return timeout.minus(offset);
+  }
+}
@@ -0,0 +1,114 @@
+package io.prometheus.cloudwatch;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+import org.apache.commons.codec.digest.MurmurHash3;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+/**
+ * Splits the work of a config between the replicas of a sharded exporter, each running with the
+ * same config and its own `shard_index`.
+ *
+ * <p>A replica takes the rules whose {@link MetricRule#fingerprint()} hashes to its index. Rules
+ * with `shard_by_dimensions` are taken by every replica instead, each exporting the dimensions
+ * whose values hash to its index. Both hashes depend only on the content of the rule or dimension,
+ * so replicas agree without coordinating and a reload only moves the rules that changed.
+ */
+final class Sharding {
+
+  static final Sharding NONE = new Sharding(0, 1);
+
+  // The system property overrides the environment variable, which overrides the config.
+  static final String INDEX_PROPERTY = "cloudwatch_exporter.shard_index";
+  static final String COUNT_PROPERTY = "cloudwatch_exporter.shard_count";
+  static final String INDEX_ENV = "CLOUDWATCH_EXPORTER_SHARD_INDEX";
+  static final String COUNT_ENV = "CLOUDWATCH_EXPORTER_SHARD_COUNT";
+
+  final int index;
+  final int count;
+
+  Sharding(int index, int count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("shard_count must be at least 1, got " + count);
+    }
+    if (index < 0 || index >= count) {
+      throw new IllegalArgumentException(
+          "shard_index must be between 0 and shard_count - 1, got " + index);
+    }
+    this.index = index;
+    this.count = count;
+  }
+
+  static Sharding fromConfig(Map<String, Object> config) {
+    return fromConfig(
+        config,
+        name -> {
+          String property = System.getProperty(name);
+          if (property != null) {
+            return property;
+          }
+          return System.getenv(INDEX_PROPERTY.equals(name) ? INDEX_ENV : COUNT_ENV);
+        });
+  }
+
+  /**
+   * @param overrides - looks up the value of a system property name, null if it's not set
+   */
+  static Sharding fromConfig(Map<String, Object> config, UnaryOperator<String> overrides) {
+    int index = setting(config, "shard_index", overrides.apply(INDEX_PROPERTY), 0);
+    int count = setting(config, "shard_count", overrides.apply(COUNT_PROPERTY), 1);
+    if (index == 0 && count == 1) {
+      return NONE;
+    }
+    return new Sharding(index, count);
+  }
+
+  private static int setting(Map<String, Object> config, String key, String override, int def) {
+    if (override != null && !override.isEmpty()) {
+      try {
+        return Integer.parseInt(override.trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid " + key + ": " + override, e);
+      }
+    }
+    if (config.containsKey(key)) {
+      return ((Number) config.get(key)).intValue();
+    }
+    return def;
+  }
+
+  boolean isSharded() {
+    return count > 1;
+  }
+
+  /** Whether this replica scrapes the rule, for some of its dimensions at least. */
+  boolean ownsRule(MetricRule rule) {
+    return !isSharded() || rule.shardByDimensions || owns(rule.fingerprint());
+  }
+
+  /** The dimensions of the rule this replica exports. */
+  List<List<Dimension>> ownDimensions(MetricRule rule, List<List<Dimension>> dimensionList) {
+    if (!isSharded() || !rule.shardByDimensions) {
+      return dimensionList;
+    }
+    List<List<Dimension>> owned = new ArrayList<>();
+    for (List<Dimension> dimensions : dimensionList) {
+      StringBuilder key = new StringBuilder();
+      for (Dimension dimension : dimensions) {
+        key.append(dimension.name()).append('=').append(dimension.value()).append('\n');
+      }
+      if (owns(key.toString())) {
+        owned.add(dimensions);
+      }
+    }
+    return owned;
+  }
+
+  private boolean owns(String key) {
+    int hash = MurmurHash3.hash32x86(key.getBytes(StandardCharsets.UTF_8));
+    return Math.floorMod(hash, count) == index;
+  }
+}
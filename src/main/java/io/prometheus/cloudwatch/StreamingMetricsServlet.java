@@ -0,0 +1,79 @@
+package io.prometheus.cloudwatch;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Serves the metrics of a {@link CloudWatchCollector}, which is not registered, followed by those
+ * of a registry. The samples of each rule are written to the response as soon as the rule is
+ * scraped, in the text format 0.0.4 or OpenMetrics, so the samples of a whole scrape are never held
+ * in memory.
+ *
+ * <p>Requests with a {@code name[]} filter are served the same way as by the client library's
+ * MetricsServlet, from the built samples.
+ */
+public class StreamingMetricsServlet extends HttpServlet {
+  private static final long serialVersionUID = 6385720419487763208L;
+
+  private final transient CloudWatchCollector collector;
+  private final transient CollectorRegistry registry;
+
+  public StreamingMetricsServlet(CloudWatchCollector collector) {
+    this(collector, CollectorRegistry.defaultRegistry);
+  }
+
+  StreamingMetricsServlet(CloudWatchCollector collector, CollectorRegistry registry) {
+    this.collector = collector;
+    this.registry = registry;
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    String contentType = TextFormat.chooseContentType(req.getHeader("Accept"));
+    Set<String> names = new HashSet<>();
+    if (req.getParameterValues("name[]") != null) {
+      names.addAll(Arrays.asList(req.getParameterValues("name[]")));
+    }
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setContentType(contentType);
+
+    try (Writer writer = new BufferedWriter(resp.getWriter())) {
+      if (names.isEmpty()) {
+        List<MetricFamilySamples> mfs =
+            new ArrayList<>(collector.stream(writer, RuleExposition.Format.of(contentType)));
+        mfs.addAll(Collections.list(registry.metricFamilySamples()));
+        TextFormat.writeFormat(contentType, writer, Collections.enumeration(mfs));
+        return;
+      }
+      List<MetricFamilySamples> mfs = new ArrayList<>();
+      for (MetricFamilySamples family : collector.collect()) {
+        if (names.contains(family.name)) {
+          mfs.add(family);
+        }
+      }
+      mfs.addAll(Collections.list(registry.filteredMetricFamilySamples(names)));
+      TextFormat.writeFormat(contentType, writer, Collections.enumeration(mfs));
+    }
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    doGet(req, resp);
+  }
+}
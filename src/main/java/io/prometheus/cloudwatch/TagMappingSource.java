@@ -0,0 +1,294 @@
+package io.prometheus.cloudwatch;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Policy.VarExpiration;
+import io.prometheus.client.Counter;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesRequest;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.GetResourcesResponse;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.ResourceTagMapping;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.TagFilter;
+
+/**
+ * Fetches the resources matching an `aws_tag_select` from the Resource Groups Tagging API.
+ *
+ * <p>Rules with the same resource type and tag selections share one fetch per scrape, and with a
+ * TTL the result is also reused by later scrapes.
+ */
+final class TagMappingSource {
+
+  private final ResourceGroupsTaggingApiClient taggingClient;
+  private final Counter taggingApiRequests;
+  private final Counter cacheHits;
+  private final ApiCallExecutor apiCalls;
+  private final Cache<TagSelectionKey, List<ResourceTagMapping>> cache;
+  private final Duration ttl;
+  private final AtomicLong writes = new AtomicLong();
+
+  /**
+   * @param ttl - how long fetched mappings are reused by later scrapes, zero to fetch them once per
+   *     scrape
+   */
+  TagMappingSource(
+      ResourceGroupsTaggingApiClient taggingClient,
+      Counter taggingApiRequests,
+      Counter cacheHits,
+      ApiCallExecutor apiCalls,
+      Duration ttl) {
+    this.taggingClient = taggingClient;
+    this.taggingApiRequests = taggingApiRequests;
+    this.cacheHits = cacheHits;
+    this.apiCalls = apiCalls;
+    this.ttl = ttl;
+    this.cache =
+        ttl.isZero() ? null : Caffeine.newBuilder().expireAfter(new TagMappingExpiry(ttl)).build();
+  }
+
+  /**
+   * Take over the cached mappings of selections still used by the given rules. They expire when
+   * they would have in the previous cache, or earlier if the new TTL is shorter.
+   */
+  void carryOver(TagMappingSource previous, Collection<MetricRule> rules) {
+    if (cache == null || previous.cache == null) {
+      return;
+    }
+    VarExpiration<TagSelectionKey, List<ResourceTagMapping>> expiration =
+        cache.policy().expireVariably().orElseThrow();
+    VarExpiration<TagSelectionKey, List<ResourceTagMapping>> previousExpiration =
+        previous.cache.policy().expireVariably().orElseThrow();
+    for (MetricRule rule : rules) {
+      if (rule.awsTagSelect == null) {
+        continue;
+      }
+      TagSelectionKey key =
+          new TagSelectionKey(
+              rule.awsTagSelect.resourceTypeSelection, rule.awsTagSelect.tagSelections);
+      List<ResourceTagMapping> cached = previous.cache.getIfPresent(key);
+      Optional<Duration> expiresAfter = previousExpiration.getExpiresAfter(key);
+      if (cached != null && expiresAfter.isPresent()) {
+        Duration remaining = expiresAfter.get().compareTo(ttl) < 0 ? expiresAfter.get() : ttl;
+        expiration.put(key, cached, remaining);
+      }
+    }
+  }
+
+  /** The number of mappings cached so far, to tell whether the cache changed since it was saved. */
+  long writes() {
+    return writes.get();
+  }
+
+  /**
+   * The cached mappings, with the wall clock time they expire at.
+   *
+   * @param target - the {@link AwsClientPool.Target#id()} the mappings were fetched from
+   */
+  List<CacheFile.TagMappingEntry> entries(String target, long nowMillis) {
+    List<CacheFile.TagMappingEntry> entries = new ArrayList<>();
+    if (cache == null) {
+      return entries;
+    }
+    VarExpiration<TagSelectionKey, List<ResourceTagMapping>> expiration =
+        cache.policy().expireVariably().orElseThrow();
+    for (Entry<TagSelectionKey, List<ResourceTagMapping>> entry : cache.asMap().entrySet()) {
+      TagSelectionKey key = entry.getKey();
+      expiration
+          .getExpiresAfter(key)
+          .ifPresent(
+              expiresAfter ->
+                  entries.add(
+                      new CacheFile.TagMappingEntry(
+                          target,
+                          key.resourceTypeSelection,
+                          key.tagSelections,
+                          entry.getValue(),
+                          nowMillis + expiresAfter.toMillis())));
+    }
+    return entries;
+  }
+
+  /**
+   * Load mappings saved by an earlier run for the selections of the given rules, unless they have
+   * expired. No mapping is kept longer than the current TTL.
+   */
+  void restore(
+      List<CacheFile.TagMappingEntry> entries, Collection<MetricRule> rules, long nowMillis) {
+    if (cache == null) {
+      return;
+    }
+    VarExpiration<TagSelectionKey, List<ResourceTagMapping>> expiration =
+        cache.policy().expireVariably().orElseThrow();
+    for (CacheFile.TagMappingEntry entry : entries) {
+      long remainingMillis = entry.expiresAtMillis - nowMillis;
+      if (remainingMillis <= 0) {
+        continue;
+      }
+      for (MetricRule rule : rules) {
+        CloudWatchCollector.AWSTagSelect tagSelect = rule.awsTagSelect;
+        if (tagSelect != null
+            && Objects.equals(tagSelect.resourceTypeSelection, entry.resourceTypeSelection)
+            && orEmpty(tagSelect.tagSelections).equals(orEmpty(entry.tagSelections))) {
+          Duration remaining = Duration.ofMillis(remainingMillis);
+          expiration.put(
+              new TagSelectionKey(tagSelect.resourceTypeSelection, tagSelect.tagSelections),
+              Collections.unmodifiableList(entry.mappings),
+              remaining.compareTo(ttl) < 0 ? remaining : ttl);
+          break;
+        }
+      }
+    }
+  }
+
+  private static Map<String, List<String>> orEmpty(Map<String, List<String>> tagSelections) {
+    return tagSelections == null ? Collections.emptyMap() : tagSelections;
+  }
+
+  /** Start a scrape. Mappings fetched through the returned scope are shared by its rules. */
+  Scrape newScrape() {
+    return new Scrape();
+  }
+
+  class Scrape {
+    private final Map<TagSelectionKey, CompletableFuture<List<ResourceTagMapping>>> fetched =
+        new ConcurrentHashMap<>();
+
+    List<ResourceTagMapping> getResourceTagMappings(CloudWatchCollector.AWSTagSelect tagSelect) {
+      TagSelectionKey key =
+          new TagSelectionKey(tagSelect.resourceTypeSelection, tagSelect.tagSelections);
+      CompletableFuture<List<ResourceTagMapping>> fetch = new CompletableFuture<>();
+      CompletableFuture<List<ResourceTagMapping>> inScrape = fetched.putIfAbsent(key, fetch);
+      if (inScrape != null) {
+        cacheHits.labels(key.resourceTypeSelection).inc();
+        return AsyncGetMetricDataDataGetter.join(inScrape);
+      }
+      try {
+        List<ResourceTagMapping> resourceTagMappings = cachedOrFetch(key);
+        fetch.complete(resourceTagMappings);
+        return resourceTagMappings;
+      } catch (RuntimeException e) {
+        fetch.completeExceptionally(e);
+        throw e;
+      }
+    }
+  }
+
+  private List<ResourceTagMapping> cachedOrFetch(TagSelectionKey key) {
+    if (cache == null) {
+      return fetch(key);
+    }
+    List<ResourceTagMapping> cached = cache.getIfPresent(key);
+    if (cached != null) {
+      cacheHits.labels(key.resourceTypeSelection).inc();
+      return cached;
+    }
+    List<ResourceTagMapping> resourceTagMappings = fetch(key);
+    cache.put(key, resourceTagMappings);
+    writes.incrementAndGet();
+    return resourceTagMappings;
+  }
+
+  private List<ResourceTagMapping> fetch(TagSelectionKey key) {
+    List<TagFilter> tagFilters = new ArrayList<>();
+    if (key.tagSelections != null) {
+      for (Entry<String, List<String>> entry : key.tagSelections.entrySet()) {
+        tagFilters.add(TagFilter.builder().key(entry.getKey()).values(entry.getValue()).build());
+      }
+    }
+
+    List<ResourceTagMapping> resourceTagMappings = new ArrayList<>();
+    GetResourcesRequest.Builder requestBuilder =
+        GetResourcesRequest.builder()
+            .tagFilters(tagFilters)
+            .resourceTypeFilters(key.resourceTypeSelection);
+    String paginationToken = "";
+    do {
+      requestBuilder.paginationToken(paginationToken);
+
+      GetResourcesRequest request = requestBuilder.build();
+      GetResourcesResponse response =
+          apiCalls.call(
+              "getResources", key.resourceTypeSelection, () -> taggingClient.getResources(request));
+      taggingApiRequests.labels("getResources", key.resourceTypeSelection).inc();
+
+      resourceTagMappings.addAll(response.resourceTagMappingList());
+
+      paginationToken = response.paginationToken();
+    } while (paginationToken != null && !paginationToken.isEmpty());
+
+    return Collections.unmodifiableList(resourceTagMappings);
+  }
+
+  private static class TagMappingExpiry
+      implements Expiry<TagSelectionKey, List<ResourceTagMapping>> {
+    private final Duration ttl;
+
+    TagMappingExpiry(Duration ttl) {
+      this.ttl = ttl;
+    }
+
+    @Override
+    public long expireAfterCreate(
+        TagSelectionKey key, List<ResourceTagMapping> value, long currentTime) {
+      return ttl.toNanos();
+    }
+
+    @Override
+    public long expireAfterUpdate(
+        TagSelectionKey key,
+        List<ResourceTagMapping> value,
+        long currentTime,
+        long currentDuration) {
+      return ttl.toNanos();
+    }
+
+    @Override
+    public long expireAfterRead(
+        TagSelectionKey key,
+        List<ResourceTagMapping> value,
+        long currentTime,
+        long currentDuration) {
+      return currentDuration;
+    }
+  }
+
+  static class TagSelectionKey {
+    private final String resourceTypeSelection;
+    private final Map<String, List<String>> tagSelections;
+
+    TagSelectionKey(String resourceTypeSelection, Map<String, List<String>> tagSelections) {
+      this.resourceTypeSelection = resourceTypeSelection;
+      this.tagSelections = tagSelections;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      TagSelectionKey that = (TagSelectionKey) o;
+
+      if (!Objects.equals(resourceTypeSelection, that.resourceTypeSelection)) return false;
+      return Objects.equals(tagSelections, that.tagSelections);
+    }
+
+    @Override
+    public int hashCode() {
+      int result = resourceTypeSelection != null ? resourceTypeSelection.hashCode() : 0;
+      result = 31 * result + (tagSelections != null ? tagSelections.hashCode() : 0);
+      return result;
+    }
+  }
+}
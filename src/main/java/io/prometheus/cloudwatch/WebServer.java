@@ -1,7 +1,7 @@
 package io.prometheus.cloudwatch;
 
 import io.prometheus.client.hotspot.DefaultExports;
-import io.prometheus.client.servlet.jakarta.exporter.MetricsServlet;
+import jakarta.servlet.DispatcherType;
 import java.io.FileReader;
 import java.util.EnumSet;
 import org.eclipse.jetty.http.HttpMethod;
@@ -9,8 +9,10 @@ import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.component.LifeCycle;
 
 public class WebServer {
 
@@ -26,11 +28,14 @@ public class WebServer {
     CloudWatchCollector collector = null;
     new BuildInfoCollector().register();
     try (FileReader reader = new FileReader(configFilePath); ) {
-      collector = new CloudWatchCollector(reader).register();
+      // Served by the StreamingMetricsServlet rather than through the registry.
+      collector = new CloudWatchCollector(reader);
     }
+    collector.metricStreams().register();
     DefaultExports.initialize();
 
     ReloadSignalHandler.start(collector);
+    BackgroundScraper scraper = BackgroundScraper.start(collector);
 
     int port = Integer.parseInt(args[0]);
     Server server = new Server();
@@ -43,11 +48,25 @@ public class WebServer {
     ServletContextHandler context = new ServletContextHandler();
     context.setContextPath("/");
     server.setHandler(context);
-    context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+    context.addServlet(new ServletHolder(new StreamingMetricsServlet(collector)), "/metrics");
+    context.addFilter(
+        new FilterHolder(new ScrapeTimeoutFilter()),
+        "/metrics",
+        EnumSet.of(DispatcherType.REQUEST));
     context.addServlet(new ServletHolder(new DynamicReloadServlet(collector)), "/-/reload");
+    context.addServlet(new ServletHolder(new MetricStreamServlet(collector)), "/metric-streams");
     context.addServlet(new ServletHolder(new HealthServlet()), "/-/healthy");
     context.addServlet(new ServletHolder(new HealthServlet()), "/-/ready");
     context.addServlet(new ServletHolder(new HomePageServlet()), "/");
+    // Stopped on shutdown too, which stops background scraping.
+    server.setStopAtShutdown(true);
+    server.addEventListener(
+        new LifeCycle.Listener() {
+          @Override
+          public void lifeCycleStopping(LifeCycle event) {
+            scraper.stop();
+          }
+        });
     server.start();
     server.join();
   }
@@ -0,0 +1,52 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+
+public class AdaptiveRateLimiterTest {
+
+  @Test
+  public void waitsOnceBurstIsUsed() {
+    AtomicLong nanos = new AtomicLong();
+    AdaptiveRateLimiter sut = new AdaptiveRateLimiter(2, nanos::get);
+
+    assertEquals(0, sut.reserve());
+    assertEquals(0, sut.reserve());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(500), sut.reserve());
+
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    assertEquals(0, sut.reserve());
+  }
+
+  @Test
+  public void halvesRateWhenThrottledAtMostOnceASecond() {
+    AtomicLong nanos = new AtomicLong();
+    AdaptiveRateLimiter sut = new AdaptiveRateLimiter(100, nanos::get);
+
+    sut.onThrottled();
+    sut.onThrottled();
+    assertEquals(50, sut.rate(), .01);
+
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    sut.onThrottled();
+    assertEquals(25, sut.rate(), .01);
+  }
+
+  @Test
+  public void recoversAdditivelyUpToMaxRate() {
+    AtomicLong nanos = new AtomicLong();
+    AdaptiveRateLimiter sut = new AdaptiveRateLimiter(100, nanos::get);
+    sut.onThrottled();
+
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+    sut.onSuccess();
+    assertEquals(60, sut.rate(), .01);
+
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(60));
+    sut.onSuccess();
+    assertEquals(100, sut.rate(), .01);
+  }
+}
@@ -0,0 +1,51 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+import org.junit.Test;
+import org.mockito.Mockito;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
+
+public class AwsClientPoolTest {
+
+  @Test
+  public void retainClosesClientsOfRemovedTargets() {
+    AwsClientPool sut = new AwsClientPool();
+    AwsClientPool.Target kept = new AwsClientPool.Target("eu-west-1", null);
+    AwsClientPool.Target removed = new AwsClientPool.Target("us-east-1", null);
+    AwsClientPool.Clients keptClients = sut.clients(kept);
+    AwsClientPool.Clients removedClients = sut.clients(removed);
+
+    sut.retain(List.of(kept));
+
+    assertSame(keptClients, sut.clients(kept));
+    assertNotSame(removedClients, sut.clients(removed));
+  }
+
+  @Test
+  public void retainKeepsInjectedClients() {
+    AwsClientPool sut = new AwsClientPool();
+    AwsClientPool.Target target = new AwsClientPool.Target("reg", null);
+    CloudWatchClient cloudWatchClient = Mockito.mock(CloudWatchClient.class);
+    sut.put(target, cloudWatchClient, null, Mockito.mock(ResourceGroupsTaggingApiClient.class));
+
+    sut.retain(List.of());
+
+    assertSame(cloudWatchClient, sut.clients(target).cloudWatchClient);
+    Mockito.verify(cloudWatchClient, Mockito.never()).close();
+  }
+
+  @Test
+  public void accountIdOfRoleIsTakenFromItsArn() {
+    AwsClientPool sut = new AwsClientPool();
+
+    assertEquals(
+        "123456789012",
+        sut.accountId(
+            new AwsClientPool.Target("us-east-1", "arn:aws:iam::123456789012:role/exporter")));
+  }
+}
@@ -0,0 +1,47 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import org.junit.Test;
+import org.mockito.Mockito;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
+
+public class BackgroundScraperTest {
+
+  private static final String DISABLED =
+      "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n";
+  private static final String ENABLED =
+      "---\nregion: reg\nbackground_scrape_interval_seconds: 60\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n";
+
+  @Test
+  public void runsOnlyWhileEnabled() {
+    CloudWatchClient cloudWatchClient = Mockito.mock(CloudWatchClient.class);
+    ResourceGroupsTaggingApiClient taggingClient =
+        Mockito.mock(ResourceGroupsTaggingApiClient.class);
+    CloudWatchCollector collector =
+        new CloudWatchCollector(DISABLED, cloudWatchClient, taggingClient);
+
+    BackgroundScraper sut = BackgroundScraper.start(collector);
+    try {
+      assertFalse(sut.running());
+
+      collector.loadConfig(new StringReader(ENABLED), cloudWatchClient, null, taggingClient);
+      assertTrue(sut.running());
+
+      collector.loadConfig(new StringReader(DISABLED), cloudWatchClient, null, taggingClient);
+      assertFalse(sut.running());
+
+      collector.loadConfig(new StringReader(ENABLED), cloudWatchClient, null, taggingClient);
+      assertTrue(sut.running());
+    } finally {
+      sut.stop();
+    }
+    assertFalse(sut.running());
+
+    collector.loadConfig(new StringReader(ENABLED), cloudWatchClient, null, taggingClient);
+    assertFalse(sut.running());
+  }
+}
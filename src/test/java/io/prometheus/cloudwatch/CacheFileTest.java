@@ -0,0 +1,84 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.ResourceTagMapping;
+import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
+
+public class CacheFileTest {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void readsBackWrittenEntries() throws Exception {
+    CacheFile sut = new CacheFile(folder.getRoot().toPath());
+    List<Dimension> dimensions =
+        List.of(
+            Dimension.builder().name("InstanceId").value("i-1").build(),
+            Dimension.builder().name("AutoScalingGroupName").value("asg").build());
+    ResourceTagMapping mapping =
+        ResourceTagMapping.builder()
+            .resourceARN("arn:aws:ec2:us-east-1:121212121212:instance/i-1")
+            .tags(Tag.builder().key("Monitoring").value("enabled").build())
+            .build();
+
+    sut.write(
+        new CacheFile.Contents(
+            List.of(
+                new CacheFile.DimensionEntry(
+                    "fingerprint", ResourceIdSet.of(List.of("i-1")), List.of(dimensions), 42)),
+            List.of(
+                new CacheFile.TagMappingEntry(
+                    "us-east-1 ",
+                    "ec2:instance",
+                    Map.of("Monitoring", List.of("enabled")),
+                    List.of(mapping),
+                    43))));
+    CacheFile.Contents contents = sut.read();
+
+    assertEquals(1, contents.dimensions.size());
+    CacheFile.DimensionEntry dimensionEntry = contents.dimensions.get(0);
+    assertEquals("fingerprint", dimensionEntry.ruleFingerprint);
+    assertEquals(ResourceIdSet.of(List.of("i-1")), dimensionEntry.tagBasedResourceIds);
+    assertEquals(List.of(dimensions), dimensionEntry.dimensions);
+    assertEquals(42, dimensionEntry.expiresAtMillis);
+
+    assertEquals(1, contents.tagMappings.size());
+    CacheFile.TagMappingEntry tagMappingEntry = contents.tagMappings.get(0);
+    assertEquals("us-east-1 ", tagMappingEntry.target);
+    assertEquals("ec2:instance", tagMappingEntry.resourceTypeSelection);
+    assertEquals(Map.of("Monitoring", List.of("enabled")), tagMappingEntry.tagSelections);
+    assertEquals(List.of(mapping), tagMappingEntry.mappings);
+    assertEquals(43, tagMappingEntry.expiresAtMillis);
+  }
+
+  @Test
+  public void missingFileIsEmpty() throws Exception {
+    CacheFile.Contents contents = new CacheFile(folder.getRoot().toPath()).read();
+
+    assertTrue(contents.dimensions.isEmpty());
+    assertTrue(contents.tagMappings.isEmpty());
+  }
+
+  @Test
+  public void rejectsOtherFiles() throws Exception {
+    Files.write(folder.getRoot().toPath().resolve(CacheFile.FILE_NAME), new byte[] {1, 2, 3, 4});
+
+    try {
+      new CacheFile(folder.getRoot().toPath()).read();
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
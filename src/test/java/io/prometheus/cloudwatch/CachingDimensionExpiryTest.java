@@ -94,7 +94,7 @@ public class CachingDimensionExpiryTest {
   private DimensionCacheKey createDimensionCacheKey(
       String namespace, String name, int ttlInSeconds) {
     return new DimensionCacheKey(
-        createMetricRule(namespace, name, ttlInSeconds), Collections.emptyList());
+        createMetricRule(namespace, name, ttlInSeconds), ResourceIdSet.EMPTY);
   }
 
   private MetricRule createMetricRule(String namespace, String name, int ttlInSeconds) {
@@ -2,11 +2,13 @@ package io.prometheus.cloudwatch;
 
 import static io.prometheus.cloudwatch.DimensionSource.DimensionData;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import io.prometheus.cloudwatch.CachingDimensionSource.DimensionCacheConfig;
 import java.time.Duration;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import org.junit.Test;
 import software.amazon.awssdk.services.cloudwatch.model.Dimension;
 
@@ -18,16 +20,66 @@ public class CachingDimensionSourceTest {
     FakeDimensionSource source = new FakeDimensionSource();
     DimensionSource sut = new CachingDimensionSource(source, config);
 
-    sut.getDimensions(createMetricRule("AWS/Redshift", "WriteIOPS"), Collections.emptyList());
-    sut.getDimensions(createMetricRule("AWS/Redshift", "WriteIOPS"), Collections.emptyList());
+    sut.getDimensions(createMetricRule("AWS/Redshift", "WriteIOPS"), ResourceIdSet.EMPTY);
+    sut.getDimensions(createMetricRule("AWS/Redshift", "WriteIOPS"), ResourceIdSet.EMPTY);
     DimensionData expected =
-        sut.getDimensions(createMetricRule("AWS/Redshift", "WriteIOPS"), Collections.emptyList());
+        sut.getDimensions(createMetricRule("AWS/Redshift", "WriteIOPS"), ResourceIdSet.EMPTY);
 
     Dimension dimension = Dimension.builder().name("AWS/Redshift").value("WriteIOPS").build();
     assertEquals(1, source.called);
     assertEquals(dimension, expected.getDimensions().get(0).get(0));
   }
 
+  @Test
+  public void staleEntryServedWhileRefreshing() {
+    DimensionCacheConfig config =
+        new DimensionCacheConfig(Duration.ofSeconds(60)).maxStaleness(Duration.ofSeconds(600));
+    FakeDimensionSource source = new FakeDimensionSource();
+    AtomicLong nanos = new AtomicLong();
+    List<Runnable> refreshes = new ArrayList<>();
+    DimensionSource sut = new CachingDimensionSource(source, config, nanos::get, refreshes::add);
+    MetricRule rule = createMetricRule("AWS/Redshift", "WriteIOPS");
+
+    sut.getDimensions(rule, ResourceIdSet.EMPTY);
+    nanos.addAndGet(Duration.ofSeconds(61).toNanos());
+    sut.getDimensions(rule, ResourceIdSet.EMPTY);
+    sut.getDimensions(rule, ResourceIdSet.EMPTY);
+
+    assertEquals(1, source.called);
+    assertEquals(1, refreshes.size());
+
+    refreshes.get(0).run();
+    sut.getDimensions(rule, ResourceIdSet.EMPTY);
+
+    assertEquals(2, source.called);
+    assertEquals(1, refreshes.size());
+  }
+
+  @Test
+  public void staleEntryServedWhenRefreshFails() {
+    DimensionCacheConfig config =
+        new DimensionCacheConfig(Duration.ofSeconds(60)).maxStaleness(Duration.ofSeconds(600));
+    FakeDimensionSource source = new FakeDimensionSource();
+    AtomicLong nanos = new AtomicLong();
+    DimensionSource sut = new CachingDimensionSource(source, config, nanos::get, Runnable::run);
+    MetricRule rule = createMetricRule("AWS/Redshift", "WriteIOPS");
+
+    DimensionData expected = sut.getDimensions(rule, ResourceIdSet.EMPTY);
+    source.fail = true;
+    nanos.addAndGet(Duration.ofSeconds(61).toNanos());
+
+    assertEquals(expected, sut.getDimensions(rule, ResourceIdSet.EMPTY));
+    assertEquals(2, source.called);
+
+    nanos.addAndGet(Duration.ofSeconds(600).toNanos());
+    try {
+      sut.getDimensions(rule, ResourceIdSet.EMPTY);
+      fail("Expected the expired entry to be loaded again");
+    } catch (RuntimeException e) {
+      assertEquals(3, source.called);
+    }
+  }
+
   private MetricRule createMetricRule(String namespace, String name) {
     MetricRule metricRule = new MetricRule();
     metricRule.awsNamespace = namespace;
@@ -37,10 +89,14 @@ public class CachingDimensionSourceTest {
 
   static class FakeDimensionSource implements DimensionSource {
     int called = 0;
+    boolean fail = false;
 
     @Override
-    public DimensionData getDimensions(MetricRule rule, List<String> tagBasedResourceIds) {
+    public DimensionData getDimensions(MetricRule rule, ResourceIdSet tagBasedResourceIds) {
       called++;
+      if (fail) {
+        throw new RuntimeException("ListMetrics failed");
+      }
       return new DimensionData(
           List.of(List.of(Dimension.builder().name("AWS/Redshift").value("WriteIOPS").build())));
     }
@@ -1,7 +1,9 @@
 package io.prometheus.cloudwatch;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.isA;
@@ -11,19 +13,35 @@ import static org.mockito.hamcrest.MockitoHamcrest.argThat;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
 import io.prometheus.cloudwatch.RequestsMatchers.*;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mockito;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.cloudwatch.CloudWatchAsyncClient;
 import software.amazon.awssdk.services.cloudwatch.CloudWatchClient;
 import software.amazon.awssdk.services.cloudwatch.model.*;
 import software.amazon.awssdk.services.resourcegroupstaggingapi.ResourceGroupsTaggingApiClient;
@@ -34,12 +52,16 @@ import software.amazon.awssdk.services.resourcegroupstaggingapi.model.Tag;
 
 public class CloudWatchCollectorTest {
   CloudWatchClient cloudWatchClient;
+  CloudWatchAsyncClient cloudWatchAsyncClient;
   ResourceGroupsTaggingApiClient taggingClient;
   CollectorRegistry registry;
 
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
   @Before
   public void setUp() {
     cloudWatchClient = Mockito.mock(CloudWatchClient.class);
+    cloudWatchAsyncClient = Mockito.mock(CloudWatchAsyncClient.class);
     taggingClient = Mockito.mock(ResourceGroupsTaggingApiClient.class);
     registry = new CollectorRegistry();
   }
@@ -2004,6 +2026,1219 @@ public class CloudWatchCollectorTest {
                             .Dimensions("AvailabilityZone", "LoadBalancerName")));
   }
 
+  @Test
+  public void testMaxConcurrentRules() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+                "---\nregion: reg\nmax_concurrent_rules: 2\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics: [Sum]\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_statistics: [Sum]\n",
+                cloudWatchClient,
+                taggingClient)
+            .register(registry);
+
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(Datapoint.builder().timestamp(new Date().toInstant()).sum(1.0).build())
+                .build());
+
+    List<String> names = new ArrayList<>();
+    for (Collector.MetricFamilySamples mfs : collector.collect()) {
+      names.add(mfs.name);
+    }
+    assertEquals(
+        Arrays.asList(
+            "aws_elb_request_count_sum",
+            "aws_elb_latency_sum",
+            "aws_ec2_cpuutilization_sum",
+            "aws_resource_info",
+            "cloudwatch_exporter_rule_duration_seconds",
+            "cloudwatch_exporter_rule_dimensions",
+            "cloudwatch_exporter_rule_samples",
+            "cloudwatch_exporter_rule_timed_out",
+            "cloudwatch_exporter_rule_last_success_timestamp_seconds",
+            "cloudwatch_exporter_scrape_duration_seconds",
+            "cloudwatch_exporter_scrape_error"),
+        names);
+    Mockito.verify(cloudWatchClient, times(3))
+        .getMetricStatistics(any(GetMetricStatisticsRequest.class));
+  }
+
+  @Test
+  public void testBackgroundScrapeServesSnapshot() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+                "---\nregion: reg\nbackground_scrape_interval_seconds: 60\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n",
+                cloudWatchClient,
+                taggingClient)
+            .register(registry);
+
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(Datapoint.builder().timestamp(new Date().toInstant()).sum(1.0).build())
+                .build());
+
+    assertNull(
+        registry.getSampleValue(
+            "aws_elb_request_count_sum",
+            new String[] {"job", "instance"},
+            new String[] {"aws_elb", ""}));
+    assertEquals(0.0, registry.getSampleValue("cloudwatch_exporter_snapshot_generation"), .01);
+
+    collector.refreshSnapshot();
+
+    assertEquals(
+        1.0,
+        registry.getSampleValue(
+            "aws_elb_request_count_sum",
+            new String[] {"job", "instance"},
+            new String[] {"aws_elb", ""}),
+        .01);
+    assertEquals(1.0, registry.getSampleValue("cloudwatch_exporter_snapshot_generation"), .01);
+    Mockito.verify(cloudWatchClient, times(1))
+        .getMetricStatistics(any(GetMetricStatisticsRequest.class));
+  }
+
+  @Test
+  public void testAsyncClientGetMetricStatistics() throws Exception {
+    new CloudWatchCollector(
+            "---\nregion: reg\nuse_async_client: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - AvailabilityZone\n  aws_dimension_select:\n    AvailabilityZone: [a, b]\n",
+            cloudWatchClient,
+            cloudWatchAsyncClient,
+            taggingClient)
+        .register(registry);
+
+    Mockito.when(
+            cloudWatchAsyncClient.getMetricStatistics(
+                (GetMetricStatisticsRequest)
+                    argThat(
+                        new GetMetricStatisticsRequestMatcher()
+                            .Namespace("AWS/ELB")
+                                .MetricName("RequestCount")
+                                .Dimension("AvailabilityZone", "a"))))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                GetMetricStatisticsResponse.builder()
+                    .datapoints(
+                        Datapoint.builder().timestamp(new Date().toInstant()).average(2.0).build())
+                    .build()));
+    Mockito.when(
+            cloudWatchAsyncClient.getMetricStatistics(
+                (GetMetricStatisticsRequest)
+                    argThat(
+                        new GetMetricStatisticsRequestMatcher()
+                            .Namespace("AWS/ELB")
+                                .MetricName("RequestCount")
+                                .Dimension("AvailabilityZone", "b"))))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                GetMetricStatisticsResponse.builder()
+                    .datapoints(
+                        Datapoint.builder().timestamp(new Date().toInstant()).average(3.0).build())
+                    .build()));
+
+    assertEquals(
+        2.0,
+        registry.getSampleValue(
+            "aws_elb_request_count_average",
+            new String[] {"job", "instance", "availability_zone"},
+            new String[] {"aws_elb", "", "a"}),
+        .01);
+    assertEquals(
+        3.0,
+        registry.getSampleValue(
+            "aws_elb_request_count_average",
+            new String[] {"job", "instance", "availability_zone"},
+            new String[] {"aws_elb", "", "b"}),
+        .01);
+    Mockito.verify(cloudWatchClient, never())
+        .getMetricStatistics(isA(GetMetricStatisticsRequest.class));
+  }
+
+  @Test
+  public void testAsyncClientGetMetricData() throws Exception {
+    new CloudWatchCollector(
+            "---\nregion: reg\nuse_async_client: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n  use_get_metric_data: true\n",
+            cloudWatchClient,
+            cloudWatchAsyncClient,
+            taggingClient)
+        .register(registry);
+
+    Mockito.when(cloudWatchAsyncClient.getMetricData((GetMetricDataRequest) any()))
+        .thenReturn(
+            CompletableFuture.completedFuture(
+                GetMetricDataResponse.builder()
+                    .metricDataResults(
+                        MetricDataResult.builder()
+                            .label("Sum/")
+                            .timestamps(new Date().toInstant())
+                            .values(5.0)
+                            .build())
+                    .build()));
+
+    assertEquals(
+        5.0,
+        registry.getSampleValue(
+            "aws_elb_request_count_sum",
+            new String[] {"job", "instance"},
+            new String[] {"aws_elb", ""}),
+        .01);
+    Mockito.verify(cloudWatchClient, never()).getMetricData(isA(GetMetricDataRequest.class));
+  }
+
+  @Test
+  public void testGetMetricStatisticsConcurrency() throws Exception {
+    new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  get_metric_statistics_concurrency: 2\n  aws_dimensions:\n  - AvailabilityZone\n  aws_dimension_select:\n    AvailabilityZone: [a, b, c]\n",
+            cloudWatchClient,
+            taggingClient)
+        .register(registry);
+
+    for (String zone : Arrays.asList("a", "b", "c")) {
+      Mockito.when(
+              cloudWatchClient.getMetricStatistics(
+                  (GetMetricStatisticsRequest)
+                      argThat(
+                          new GetMetricStatisticsRequestMatcher()
+                              .Namespace("AWS/ELB")
+                                  .MetricName("RequestCount")
+                                  .Dimension("AvailabilityZone", zone))))
+          .thenReturn(
+              GetMetricStatisticsResponse.builder()
+                  .datapoints(
+                      Datapoint.builder()
+                          .timestamp(new Date().toInstant())
+                          .average((double) zone.charAt(0))
+                          .build())
+                  .build());
+    }
+
+    for (String zone : Arrays.asList("a", "b", "c")) {
+      assertEquals(
+          (double) zone.charAt(0),
+          registry.getSampleValue(
+              "aws_elb_request_count_average",
+              new String[] {"job", "instance", "availability_zone"},
+              new String[] {"aws_elb", "", zone}),
+          .01);
+    }
+  }
+
+  @Test
+  public void testPackGetMetricDataQueries() throws Exception {
+    new CloudWatchCollector(
+            "---\nregion: reg\npack_get_metric_data_queries: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n  use_get_metric_data: true\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics: [Sum]\n  use_get_metric_data: true\n",
+            cloudWatchClient,
+            taggingClient)
+        .register(registry);
+
+    Mockito.when(cloudWatchClient.getMetricData((GetMetricDataRequest) any()))
+        .thenAnswer(
+            invocation -> {
+              GetMetricDataRequest request = invocation.getArgument(0);
+              List<MetricDataResult> results = new ArrayList<>();
+              for (MetricDataQuery query : request.metricDataQueries()) {
+                String metricName = query.metricStat().metric().metricName();
+                results.add(
+                    MetricDataResult.builder()
+                        .id(query.id())
+                        .label(query.label())
+                        .timestamps(new Date().toInstant())
+                        .values(metricName.equals("Latency") ? 2.0 : 3.0)
+                        .build());
+              }
+              return GetMetricDataResponse.builder().metricDataResults(results).build();
+            });
+
+    assertEquals(
+        3.0,
+        registry.getSampleValue(
+            "aws_elb_request_count_sum",
+            new String[] {"job", "instance"},
+            new String[] {"aws_elb", ""}),
+        .01);
+    assertEquals(
+        2.0,
+        registry.getSampleValue(
+            "aws_elb_latency_sum", new String[] {"job", "instance"}, new String[] {"aws_elb", ""}),
+        .01);
+    // One request per scrape, each getSampleValue above scrapes once.
+    Mockito.verify(cloudWatchClient, times(2)).getMetricData(isA(GetMetricDataRequest.class));
+  }
+
+  @Test
+  public void testPackedRequestCountedForEachNamespace() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\npack_get_metric_data_queries: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n  use_get_metric_data: true\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_statistics: [Sum]\n  use_get_metric_data: true\n",
+            cloudWatchClient,
+            taggingClient);
+
+    Mockito.when(cloudWatchClient.getMetricData((GetMetricDataRequest) any()))
+        .thenReturn(GetMetricDataResponse.builder().build());
+
+    double elbRequests = requestDurationCount("getMetricData", "AWS/ELB");
+    double ec2Requests = requestDurationCount("getMetricData", "AWS/EC2");
+    collector.collect();
+
+    Mockito.verify(cloudWatchClient, times(1)).getMetricData(isA(GetMetricDataRequest.class));
+    assertEquals(1.0, requestDurationCount("getMetricData", "AWS/ELB") - elbRequests, .01);
+    assertEquals(1.0, requestDurationCount("getMetricData", "AWS/EC2") - ec2Requests, .01);
+  }
+
+  @Test
+  public void testFailedPackedRequestOnlyFailsItsRules() throws Exception {
+    // The rules request different time windows, so their queries go in separate requests.
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\npack_get_metric_data_queries: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n  use_get_metric_data: true\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_statistics: [Sum]\n  use_get_metric_data: true\n  range_seconds: 1200\n",
+            cloudWatchClient,
+            taggingClient);
+
+    Mockito.when(cloudWatchClient.getMetricData((GetMetricDataRequest) any()))
+        .thenAnswer(
+            invocation -> {
+              GetMetricDataRequest request = invocation.getArgument(0);
+              List<MetricDataResult> results = new ArrayList<>();
+              for (MetricDataQuery query : request.metricDataQueries()) {
+                if (query.metricStat().metric().metricName().equals("RequestCount")) {
+                  throw new RuntimeException("boom");
+                }
+                results.add(
+                    MetricDataResult.builder()
+                        .id(query.id())
+                        .label(query.label())
+                        .timestamps(new Date().toInstant())
+                        .values(2.0)
+                        .build());
+              }
+              return GetMetricDataResponse.builder().metricDataResults(results).build();
+            });
+
+    double requestCountErrors = ruleErrors("AWS/ELB", "RequestCount");
+    double latencyErrors = ruleErrors("AWS/ELB", "Latency");
+    double requestCountRequested = metricsRequested("AWS/ELB", "RequestCount");
+    double latencyRequested = metricsRequested("AWS/ELB", "Latency");
+    Map<String, Double> values = collectValues(collector);
+
+    assertEquals(2.0, values.get("aws_elb_latency_sum[aws_elb, ]"), .01);
+    assertEquals(1.0, ruleErrors("AWS/ELB", "RequestCount") - requestCountErrors, .01);
+    assertEquals(0.0, ruleErrors("AWS/ELB", "Latency") - latencyErrors, .01);
+    assertEquals(0.0, metricsRequested("AWS/ELB", "RequestCount") - requestCountRequested, .01);
+    assertEquals(1.0, metricsRequested("AWS/ELB", "Latency") - latencyRequested, .01);
+    Mockito.verify(cloudWatchClient, times(2)).getMetricData(isA(GetMetricDataRequest.class));
+  }
+
+  private static double metricsRequested(String namespace, String metricName) {
+    Double value =
+        CollectorRegistry.defaultRegistry.getSampleValue(
+            "cloudwatch_metrics_requested_total",
+            new String[] {"metric_name", "namespace"},
+            new String[] {metricName, namespace});
+    return value == null ? 0 : value;
+  }
+
+  @Test
+  public void testCacheMetricData() throws Exception {
+    new CloudWatchCollector(
+            "---\nregion: reg\ncache_metric_data: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  period_seconds: 3600\n",
+            cloudWatchClient,
+            taggingClient)
+        .register(registry);
+
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date().toInstant()).average(2.0).build())
+                .build());
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(
+          2.0,
+          registry.getSampleValue(
+              "aws_elb_request_count_average",
+              new String[] {"job", "instance"},
+              new String[] {"aws_elb", ""}),
+          .01);
+    }
+    Mockito.verify(cloudWatchClient, times(1))
+        .getMetricStatistics(isA(GetMetricStatisticsRequest.class));
+  }
+
+  @Test
+  public void testFailedPackedRequestIsNotCached() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\npack_get_metric_data_queries: true\ncache_metric_data: true\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n  use_get_metric_data: true\n  period_seconds: 3600\n",
+            cloudWatchClient,
+            taggingClient);
+
+    AtomicInteger calls = new AtomicInteger();
+    Mockito.when(cloudWatchClient.getMetricData((GetMetricDataRequest) any()))
+        .thenAnswer(
+            invocation -> {
+              if (calls.getAndIncrement() == 0) {
+                throw new RuntimeException("boom");
+              }
+              GetMetricDataRequest request = invocation.getArgument(0);
+              List<MetricDataResult> results = new ArrayList<>();
+              for (MetricDataQuery query : request.metricDataQueries()) {
+                results.add(
+                    MetricDataResult.builder()
+                        .id(query.id())
+                        .label(query.label())
+                        .timestamps(new Date().toInstant())
+                        .values(2.0)
+                        .build());
+              }
+              return GetMetricDataResponse.builder().metricDataResults(results).build();
+            });
+
+    assertNull(collectValues(collector).get("aws_elb_request_count_sum[aws_elb, ]"));
+    assertEquals(2.0, collectValues(collector).get("aws_elb_request_count_sum[aws_elb, ]"), .01);
+    assertEquals(2.0, collectValues(collector).get("aws_elb_request_count_sum[aws_elb, ]"), .01);
+    Mockito.verify(cloudWatchClient, times(2)).getMetricData(isA(GetMetricDataRequest.class));
+  }
+
+  @Test
+  public void testConcurrentCollectsShareScrape() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n",
+            cloudWatchClient,
+            taggingClient);
+
+    CountDownLatch scraping = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenAnswer(
+            invocation -> {
+              scraping.countDown();
+              release.await(10, TimeUnit.SECONDS);
+              return GetMetricStatisticsResponse.builder()
+                  .datapoints(
+                      Datapoint.builder().timestamp(new Date().toInstant()).sum(1.0).build())
+                  .build();
+            });
+
+    double coalescedBefore = coalescedScrapes();
+    CompletableFuture<List<Collector.MetricFamilySamples>> first =
+        CompletableFuture.supplyAsync(collector::collect);
+    scraping.await(10, TimeUnit.SECONDS);
+    CompletableFuture<List<Collector.MetricFamilySamples>> second =
+        CompletableFuture.supplyAsync(collector::collect);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (coalescedScrapes() == coalescedBefore && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    release.countDown();
+
+    assertEquals(first.get().get(0).samples, second.get().get(0).samples);
+    assertEquals(coalescedBefore + 1, coalescedScrapes(), .01);
+    Mockito.verify(cloudWatchClient, times(1))
+        .getMetricStatistics(any(GetMetricStatisticsRequest.class));
+  }
+
+  private static double coalescedScrapes() {
+    Double value =
+        CollectorRegistry.defaultRegistry.getSampleValue(
+            "cloudwatch_exporter_scrapes_coalesced_total");
+    return value == null ? 0 : value;
+  }
+
+  @Test
+  public void testConcurrentStreamedScrapesDoNotOverlap() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n",
+            cloudWatchClient,
+            taggingClient);
+
+    CountDownLatch scraping = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenAnswer(
+            invocation -> {
+              scraping.countDown();
+              release.await(10, TimeUnit.SECONDS);
+              return GetMetricStatisticsResponse.builder()
+                  .datapoints(
+                      Datapoint.builder().timestamp(new Date().toInstant()).sum(1.0).build())
+                  .build();
+            });
+
+    CompletableFuture<String> first = CompletableFuture.supplyAsync(() -> streamed(collector));
+    scraping.await(10, TimeUnit.SECONDS);
+    CompletableFuture<String> second = CompletableFuture.supplyAsync(() -> streamed(collector));
+    Thread.sleep(200);
+    // The second scrape waits for the first, which has no built samples to share.
+    Mockito.verify(cloudWatchClient, times(1))
+        .getMetricStatistics(any(GetMetricStatisticsRequest.class));
+    release.countDown();
+
+    assertTrue(first.get().contains("aws_elb_request_count_sum{"));
+    assertTrue(second.get().contains("aws_elb_request_count_sum{"));
+    Mockito.verify(cloudWatchClient, times(2))
+        .getMetricStatistics(any(GetMetricStatisticsRequest.class));
+  }
+
+  private static String streamed(CloudWatchCollector collector) {
+    StringWriter writer = new StringWriter();
+    try {
+      List<Collector.MetricFamilySamples> rest =
+          collector.stream(writer, RuleExposition.Format.TEXT_004);
+      TextFormat.write004(writer, Collections.enumeration(rest));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return writer.toString();
+  }
+
+  @Test
+  public void testTagSelectSharedBetweenRules() throws Exception {
+    String rule =
+        "- aws_namespace: AWS/EC2\n  aws_metric_name: %s\n  aws_dimensions:\n  - InstanceId\n  aws_tag_select:\n    resource_type_selection: \"ec2:instance\"\n    resource_id_dimension: InstanceId\n    tag_selections:\n      Monitoring: [enabled]\n";
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\ntagging_api_cache_ttl: 300\nmetrics:\n"
+                + String.format(rule, "CPUUtilization")
+                + String.format(rule, "NetworkIn"),
+            cloudWatchClient,
+            taggingClient);
+
+    Mockito.when(taggingClient.getResources((GetResourcesRequest) any()))
+        .thenReturn(
+            GetResourcesResponse.builder()
+                .resourceTagMappingList(
+                    ResourceTagMapping.builder()
+                        .tags(Tag.builder().key("Monitoring").value("enabled").build())
+                        .resourceARN("arn:aws:ec2:us-east-1:121212121212:instance/i-1")
+                        .build())
+                .build());
+    Mockito.when(cloudWatchClient.listMetrics((ListMetricsRequest) any()))
+        .thenReturn(ListMetricsResponse.builder().build());
+
+    collector.collect();
+    collector.collect();
+
+    Mockito.verify(taggingClient, times(1)).getResources(any(GetResourcesRequest.class));
+  }
+
+  @Test
+  public void testShareListMetrics() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nshare_list_metrics: true\nmetrics:\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_dimensions:\n  - InstanceId\n- aws_namespace: AWS/EC2\n  aws_metric_name: NetworkIn\n  aws_dimensions:\n  - InstanceId\n",
+            cloudWatchClient,
+            taggingClient);
+
+    Mockito.when(
+            cloudWatchClient.listMetrics(
+                (ListMetricsRequest)
+                    argThat(
+                        new ListMetricsRequestMatcher()
+                            .Namespace("AWS/EC2").Dimensions("InstanceId"))))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    Metric.builder()
+                        .metricName("CPUUtilization")
+                        .dimensions(Dimension.builder().name("InstanceId").value("i-1").build())
+                        .build(),
+                    Metric.builder()
+                        .metricName("NetworkIn")
+                        .dimensions(Dimension.builder().name("InstanceId").value("i-2").build())
+                        .build())
+                .build());
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date().toInstant()).average(2.0).build())
+                .build());
+
+    List<String> samples = new ArrayList<>();
+    for (Collector.MetricFamilySamples mfs : collector.collect()) {
+      for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+        if (sample.labelNames.contains("instance_id")) {
+          samples.add(sample.name + " " + sample.labelValues.get(2));
+        }
+      }
+    }
+    assertEquals(
+        Arrays.asList("aws_ec2_cpuutilization_average i-1", "aws_ec2_network_in_average i-2"),
+        samples);
+    Mockito.verify(cloudWatchClient, times(1)).listMetrics(any(ListMetricsRequest.class));
+  }
+
+  @Test
+  public void testReloadKeepsCachedDimensions() throws Exception {
+    String config =
+        "---\nregion: reg\nlist_metrics_cache_ttl: 500\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n";
+    CloudWatchCollector collector =
+        new CloudWatchCollector(config, cloudWatchClient, taggingClient);
+
+    Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    Metric.builder()
+                        .dimensions(
+                            Dimension.builder().name("LoadBalancerName").value("myLB").build())
+                        .build())
+                .build());
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date().toInstant()).average(2.0).build())
+                .build());
+
+    collector.collect();
+    collector.loadConfig(new StringReader(config), cloudWatchClient, null, taggingClient);
+    collector.collect();
+    Mockito.verify(cloudWatchClient, times(1)).listMetrics(any(ListMetricsRequest.class));
+
+    // A changed rule lists its dimensions again.
+    collector.loadConfig(
+        new StringReader(config.replace("LoadBalancerName", "AvailabilityZone")),
+        cloudWatchClient,
+        null,
+        taggingClient);
+    collector.collect();
+    Mockito.verify(cloudWatchClient, times(2)).listMetrics(any(ListMetricsRequest.class));
+  }
+
+  @Test
+  public void testDimensionCacheDirSurvivesRestart() throws Exception {
+    String config =
+        "---\nregion: reg\nlist_metrics_cache_ttl: 500\ndimension_cache_dir: "
+            + folder.getRoot()
+            + "\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n";
+
+    Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    Metric.builder()
+                        .dimensions(
+                            Dimension.builder().name("LoadBalancerName").value("myLB").build())
+                        .build())
+                .build());
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date().toInstant()).average(2.0).build())
+                .build());
+
+    new CloudWatchCollector(config, cloudWatchClient, taggingClient).collect();
+    CloudWatchCollector restarted =
+        new CloudWatchCollector(config, cloudWatchClient, taggingClient);
+    restarted.collect();
+
+    Mockito.verify(cloudWatchClient, times(1)).listMetrics(any(ListMetricsRequest.class));
+    assertEquals(
+        2.0,
+        restarted.collect().stream()
+            .flatMap(mfs -> mfs.samples.stream())
+            .filter(sample -> sample.name.equals("aws_elb_request_count_average"))
+            .findFirst()
+            .get()
+            .value,
+        .01);
+
+    // A rule that changed since the cache was saved lists its dimensions again.
+    new CloudWatchCollector(config.replace("500", "400"), cloudWatchClient, taggingClient)
+        .collect();
+    Mockito.verify(cloudWatchClient, times(2)).listMetrics(any(ListMetricsRequest.class));
+  }
+
+  @Test
+  public void testRuleStatsAndRequestDuration() throws Exception {
+    new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Sum\n  - Average\n",
+            cloudWatchClient,
+            taggingClient)
+        .register(registry);
+
+    Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    Metric.builder()
+                        .dimensions(
+                            Dimension.builder().name("LoadBalancerName").value("myLB").build())
+                        .build(),
+                    Metric.builder()
+                        .dimensions(
+                            Dimension.builder().name("LoadBalancerName").value("myOtherLB").build())
+                        .build())
+                .build());
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder()
+                        .timestamp(new Date().toInstant())
+                        .sum(4.0)
+                        .average(2.0)
+                        .build())
+                .build());
+    double listMetricsRequests = requestDurationCount("listMetrics", "AWS/ELB");
+    double getMetricStatisticsRequests = requestDurationCount("getMetricStatistics", "AWS/ELB");
+
+    String[] labelNames = {"namespace", "metric_name", "region", "account_id", "rule_index"};
+    String[] labelValues = {"AWS/ELB", "RequestCount", "reg", "", "0"};
+    assertEquals(
+        2.0,
+        registry.getSampleValue("cloudwatch_exporter_rule_dimensions", labelNames, labelValues),
+        .01);
+    assertEquals(1.0, requestDurationCount("listMetrics", "AWS/ELB") - listMetricsRequests, .01);
+    assertEquals(
+        2.0,
+        requestDurationCount("getMetricStatistics", "AWS/ELB") - getMetricStatisticsRequests,
+        .01);
+    assertEquals(
+        4.0,
+        registry.getSampleValue("cloudwatch_exporter_rule_samples", labelNames, labelValues),
+        .01);
+  }
+
+  @Test
+  public void testRuleStatsOfSameMetricAreNotAddedUp() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Average]\n",
+            cloudWatchClient,
+            taggingClient);
+
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder()
+                        .timestamp(new Date().toInstant())
+                        .sum(4.0)
+                        .average(2.0)
+                        .build())
+                .build());
+
+    Map<String, Double> values = collectValues(collector);
+
+    // Added up they would be 2.
+    assertEquals(
+        1.0,
+        values.get("cloudwatch_exporter_rule_dimensions[AWS/ELB, RequestCount, reg, , 0]"),
+        .01);
+    assertEquals(
+        1.0,
+        values.get("cloudwatch_exporter_rule_dimensions[AWS/ELB, RequestCount, reg, , 1]"),
+        .01);
+  }
+
+  private static double requestDurationCount(String action, String namespace) {
+    Double value =
+        CollectorRegistry.defaultRegistry.getSampleValue(
+            "cloudwatch_request_duration_seconds_count",
+            new String[] {"action", "namespace"},
+            new String[] {action, namespace});
+    return value == null ? 0 : value;
+  }
+
+  @Test
+  public void testRateLimitLoweredWhenThrottled() throws Exception {
+    String config =
+        "---\nregion: reg\nmax_api_requests_per_second: 10\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n";
+    CloudWatchCollector collector =
+        new CloudWatchCollector(config, cloudWatchClient, taggingClient).register(registry);
+
+    Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+        .thenThrow(
+            CloudWatchException.builder()
+                .statusCode(400)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("Throttling").build())
+                .build());
+
+    assertEquals(
+        1.0, registry.getSampleValue("cloudwatch_exporter_scrape_error").doubleValue(), .01);
+    assertEquals(5.0, listMetricsRateLimit(), .01);
+
+    // A reload keeps the lowered limit, rather than starting again from the maximum.
+    Mockito.reset(cloudWatchClient);
+    Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(ListMetricsResponse.builder().build());
+    collector.loadConfig(new StringReader(config), cloudWatchClient, null, taggingClient);
+    collector.collect();
+    assertEquals(5.0, listMetricsRateLimit(), .1);
+  }
+
+  private static double listMetricsRateLimit() {
+    return CollectorRegistry.defaultRegistry.getSampleValue(
+        "cloudwatch_exporter_rate_limit_requests_per_second",
+        new String[] {"action", "region", "role_arn"},
+        new String[] {"listMetrics", "reg", ""});
+  }
+
+  @Test
+  public void testScrapeTimeoutReturnsFinishedRules() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmax_concurrent_rules: 2\nscrape_timeout_seconds: 0.5\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_dimensions:\n  - InstanceId\n",
+            cloudWatchClient,
+            taggingClient);
+
+    CountDownLatch release = new CountDownLatch(1);
+    Mockito.when(
+            cloudWatchClient.listMetrics(
+                (ListMetricsRequest)
+                    argThat(
+                        new ListMetricsRequestMatcher()
+                            .Namespace("AWS/ELB").Dimensions("LoadBalancerName"))))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    Metric.builder()
+                        .dimensions(
+                            Dimension.builder().name("LoadBalancerName").value("myLB").build())
+                        .build())
+                .build());
+    Mockito.when(
+            cloudWatchClient.listMetrics(
+                (ListMetricsRequest)
+                    argThat(
+                        new ListMetricsRequestMatcher()
+                            .Namespace("AWS/EC2").Dimensions("InstanceId"))))
+        .thenAnswer(
+            invocation -> {
+              release.await(10, TimeUnit.SECONDS);
+              return ListMetricsResponse.builder().build();
+            });
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date().toInstant()).average(2.0).build())
+                .build());
+
+    Map<String, Double> values = new HashMap<>();
+    try {
+      for (Collector.MetricFamilySamples mfs : collector.collect()) {
+        for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+          values.put(sample.name + sample.labelValues, sample.value);
+        }
+      }
+    } finally {
+      release.countDown();
+    }
+
+    assertEquals(2.0, values.get("aws_elb_request_count_average[aws_elb, , myLB]"), .01);
+    assertEquals(
+        0.0,
+        values.get("cloudwatch_exporter_rule_timed_out[AWS/ELB, RequestCount, reg, , 0]"),
+        .01);
+    assertEquals(
+        1.0,
+        values.get("cloudwatch_exporter_rule_timed_out[AWS/EC2, CPUUtilization, reg, , 1]"),
+        .01);
+    assertEquals(0.0, values.get("cloudwatch_exporter_scrape_error[]"), .01);
+  }
+
+  @Test
+  public void testScrapeTimeoutBuildsPackedRulesWhoseDataArrived() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\npack_get_metric_data_queries: true\nscrape_timeout_seconds: 0.2\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_statistics: [Sum]\n  use_get_metric_data: true\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_statistics: [Sum]\n",
+            cloudWatchClient,
+            taggingClient);
+
+    // The response arrives after the deadline, but before the rules are built.
+    Mockito.when(cloudWatchClient.getMetricData((GetMetricDataRequest) any()))
+        .thenAnswer(
+            invocation -> {
+              Thread.sleep(400);
+              GetMetricDataRequest request = invocation.getArgument(0);
+              List<MetricDataResult> results = new ArrayList<>();
+              for (MetricDataQuery query : request.metricDataQueries()) {
+                results.add(
+                    MetricDataResult.builder()
+                        .id(query.id())
+                        .label(query.label())
+                        .timestamps(new Date().toInstant())
+                        .values(2.0)
+                        .build());
+              }
+              return GetMetricDataResponse.builder().metricDataResults(results).build();
+            });
+
+    Map<String, Double> values = collectValues(collector);
+
+    assertEquals(2.0, values.get("aws_elb_request_count_sum[aws_elb, ]"), .01);
+    assertEquals(
+        0.0,
+        values.get("cloudwatch_exporter_rule_timed_out[AWS/ELB, RequestCount, reg, , 0]"),
+        .01);
+    assertEquals(
+        1.0,
+        values.get("cloudwatch_exporter_rule_timed_out[AWS/EC2, CPUUtilization, reg, , 1]"),
+        .01);
+    Mockito.verify(cloudWatchClient, never())
+        .getMetricStatistics(isA(GetMetricStatisticsRequest.class));
+  }
+
+  @Test
+  public void testFailedRuleDoesNotAbortOtherRules() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_dimensions:\n  - InstanceId\n",
+            cloudWatchClient,
+            taggingClient);
+
+    Mockito.when(
+            cloudWatchClient.listMetrics(
+                (ListMetricsRequest)
+                    argThat(
+                        new ListMetricsRequestMatcher()
+                            .Namespace("AWS/ELB").Dimensions("LoadBalancerName"))))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    Metric.builder()
+                        .dimensions(
+                            Dimension.builder().name("LoadBalancerName").value("myLB").build())
+                        .build())
+                .build());
+    Mockito.when(
+            cloudWatchClient.listMetrics(
+                (ListMetricsRequest)
+                    argThat(
+                        new ListMetricsRequestMatcher()
+                            .Namespace("AWS/EC2").Dimensions("InstanceId"))))
+        .thenThrow(new RuntimeException("boom"));
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date().toInstant()).average(2.0).build())
+                .build());
+
+    double errorsBefore = ruleErrors("AWS/EC2", "CPUUtilization");
+    Map<String, Double> values = collectValues(collector);
+
+    assertEquals(2.0, values.get("aws_elb_request_count_average[aws_elb, , myLB]"), .01);
+    assertEquals(1.0, values.get("cloudwatch_exporter_scrape_error[]"), .01);
+    assertEquals(1.0, ruleErrors("AWS/EC2", "CPUUtilization") - errorsBefore, .01);
+    assertTrue(
+        values.get(
+                "cloudwatch_exporter_rule_last_success_timestamp_seconds[AWS/ELB, RequestCount, reg, , 0]")
+            > 0);
+    assertEquals(
+        0.0,
+        values.get(
+            "cloudwatch_exporter_rule_last_success_timestamp_seconds[AWS/EC2, CPUUtilization, reg, , 1]"),
+        .01);
+  }
+
+  @Test
+  public void testFailedRuleServesLastGoodResult() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nserve_last_good_result_seconds: 300\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n",
+            cloudWatchClient,
+            taggingClient);
+
+    Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    Metric.builder()
+                        .dimensions(
+                            Dimension.builder().name("LoadBalancerName").value("myLB").build())
+                        .build())
+                .build());
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder().timestamp(new Date().toInstant()).average(2.0).build())
+                .build())
+        .thenThrow(new RuntimeException("boom"));
+
+    Map<String, Double> first = collectValues(collector);
+    double errorsBefore = ruleErrors("AWS/ELB", "RequestCount");
+    Map<String, Double> second = collectValues(collector);
+
+    assertEquals(2.0, second.get("aws_elb_request_count_average[aws_elb, , myLB]"), .01);
+    assertEquals(1.0, second.get("cloudwatch_exporter_scrape_error[]"), .01);
+    assertEquals(1.0, ruleErrors("AWS/ELB", "RequestCount") - errorsBefore, .01);
+    String lastSuccess =
+        "cloudwatch_exporter_rule_last_success_timestamp_seconds[AWS/ELB, RequestCount, reg, , 0]";
+    assertEquals(first.get(lastSuccess), second.get(lastSuccess), .001);
+  }
+
+  private static Map<String, Double> collectValues(CloudWatchCollector collector) {
+    Map<String, Double> values = new HashMap<>();
+    for (Collector.MetricFamilySamples mfs : collector.collect()) {
+      for (Collector.MetricFamilySamples.Sample sample : mfs.samples) {
+        values.put(sample.name + sample.labelValues, sample.value);
+      }
+    }
+    return values;
+  }
+
+  private static double ruleErrors(String namespace, String metricName) {
+    Double value =
+        CollectorRegistry.defaultRegistry.getSampleValue(
+            "cloudwatch_exporter_rule_errors_total",
+            new String[] {"namespace", "metric_name"},
+            new String[] {namespace, metricName});
+    return value == null ? 0 : value;
+  }
+
+  @Test
+  public void testRulesScrapeTheirOwnRegionAndAccount() throws Exception {
+    CloudWatchClient otherAccountClient = Mockito.mock(CloudWatchClient.class);
+    AwsClientPool clientPool = new AwsClientPool();
+    clientPool.put(new AwsClientPool.Target("reg", null), cloudWatchClient, null, taggingClient);
+    clientPool.put(
+        new AwsClientPool.Target("us-east-1", "arn:aws:iam::123456789012:role/exporter"),
+        otherAccountClient,
+        null,
+        taggingClient);
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  region: us-east-1\n  role_arn: arn:aws:iam::123456789012:role/exporter\n  aws_dimensions:\n  - LoadBalancerName\n",
+            clientPool);
+
+    for (CloudWatchClient client : List.of(cloudWatchClient, otherAccountClient)) {
+      String loadBalancer = client == cloudWatchClient ? "myLB" : "otherLB";
+      Mockito.when(client.listMetrics(any(ListMetricsRequest.class)))
+          .thenReturn(
+              ListMetricsResponse.builder()
+                  .metrics(
+                      Metric.builder()
+                          .dimensions(
+                              Dimension.builder()
+                                  .name("LoadBalancerName")
+                                  .value(loadBalancer)
+                                  .build())
+                          .build())
+                  .build());
+      Mockito.when(client.getMetricStatistics((GetMetricStatisticsRequest) any()))
+          .thenReturn(
+              GetMetricStatisticsResponse.builder()
+                  .datapoints(
+                      Datapoint.builder()
+                          .timestamp(new Date().toInstant())
+                          .average(client == cloudWatchClient ? 1.0 : 2.0)
+                          .build())
+                  .build());
+    }
+
+    Map<String, Double> values = collectValues(collector);
+
+    assertEquals(1.0, values.get("aws_elb_request_count_average[aws_elb, , reg, , myLB]"), .01);
+    assertEquals(
+        2.0,
+        values.get("aws_elb_request_count_average[aws_elb, , us-east-1, 123456789012, otherLB]"),
+        .01);
+    Mockito.verify(cloudWatchClient, times(1)).listMetrics(any(ListMetricsRequest.class));
+    Mockito.verify(otherAccountClient, times(1)).listMetrics(any(ListMetricsRequest.class));
+  }
+
+  @Test
+  public void testMetricsInsightsDiscovery() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  discovery: metrics_insights\n  aws_dimensions:\n  - LoadBalancerName\n  aws_dimension_select_regex:\n    LoadBalancerName: [\"my.*\"]\n  aws_statistics:\n  - Sum\n",
+            cloudWatchClient,
+            taggingClient);
+    List<Instant> timestamps = List.of(new Date().toInstant());
+    Mockito.when(cloudWatchClient.getMetricData((GetMetricDataRequest) any()))
+        .thenReturn(
+            GetMetricDataResponse.builder()
+                .metricDataResults(
+                    MetricDataResult.builder()
+                        .label("Sum/LoadBalancerName=myLB")
+                        .values(List.of(1.0))
+                        .timestamps(timestamps)
+                        .build(),
+                    MetricDataResult.builder()
+                        .label("Sum/LoadBalancerName=otherLB")
+                        .values(List.of(2.0))
+                        .timestamps(timestamps)
+                        .build())
+                .build());
+
+    Map<String, Double> values = collectValues(collector);
+
+    assertEquals(1.0, values.get("aws_elb_request_count_sum[aws_elb, , myLB]"), .01);
+    assertNull(values.get("aws_elb_request_count_sum[aws_elb, , otherLB]"));
+    Mockito.verify(cloudWatchClient, never()).listMetrics(any(ListMetricsRequest.class));
+    Mockito.verify(cloudWatchClient)
+        .getMetricData(
+            (GetMetricDataRequest)
+                argThat(
+                    new GetMetricDataRequestMatcher()
+                        .Query(
+                            new MetricDataQueryMatcher()
+                                .Expression(
+                                    "SELECT SUM(\"RequestCount\") FROM SCHEMA(\"AWS/ELB\","
+                                        + " \"LoadBalancerName\") GROUP BY"
+                                        + " \"LoadBalancerName\""))));
+  }
+
+  @Test
+  public void testSearchDiscoveryWithExtendedStatistics() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  discovery: search\n  period_seconds: 60\n  aws_dimensions:\n  - AvailabilityZone\n  - LoadBalancerName\n  aws_extended_statistics:\n  - p99\n",
+            cloudWatchClient,
+            taggingClient);
+    Mockito.when(cloudWatchClient.getMetricData((GetMetricDataRequest) any()))
+        .thenReturn(
+            GetMetricDataResponse.builder()
+                .metricDataResults(
+                    MetricDataResult.builder()
+                        .label("p99/AvailabilityZone=a,LoadBalancerName=myLB")
+                        .values(List.of(0.5))
+                        .timestamps(List.of(new Date().toInstant()))
+                        .build())
+                .build());
+
+    Map<String, Double> values = collectValues(collector);
+
+    assertEquals(0.5, values.get("aws_elb_latency_p99[aws_elb, , a, myLB]"), .01);
+    Mockito.verify(cloudWatchClient, never()).listMetrics(any(ListMetricsRequest.class));
+    Mockito.verify(cloudWatchClient)
+        .getMetricData(
+            (GetMetricDataRequest)
+                argThat(
+                    new GetMetricDataRequestMatcher()
+                        .Query(
+                            new MetricDataQueryMatcher()
+                                .Label(
+                                        "p99/AvailabilityZone=${PROP('Dim.AvailabilityZone')},"
+                                            + "LoadBalancerName=${PROP('Dim.LoadBalancerName')}")
+                                    .Expression(
+                                        "SEARCH('{\"AWS/ELB\",\"AvailabilityZone\","
+                                            + "\"LoadBalancerName\"} MetricName=\"Latency\"',"
+                                            + " 'p99', 60)"))));
+  }
+
+  @Test
+  public void testMetricsInsightsDiscoveryRejectsExtendedStatistics() {
+    try {
+      new CloudWatchCollector(
+          "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  discovery: metrics_insights\n  aws_extended_statistics:\n  - p99\n",
+          cloudWatchClient,
+          taggingClient);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testStreamMatchesCollect() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmetrics:\n- aws_namespace: AWS/ELB\n  aws_metric_name: RequestCount\n  aws_dimensions:\n  - LoadBalancerName\n  aws_statistics:\n  - Sum\n  - Average\n  aws_extended_statistics:\n  - p95\n  set_timestamp: true\n- aws_namespace: AWS/ELB\n  aws_metric_name: Latency\n  aws_dimensions:\n  - LoadBalancerName\n  serve_last_good_result_seconds: 600\n",
+            cloudWatchClient,
+            taggingClient);
+
+    Mockito.when(cloudWatchClient.listMetrics(any(ListMetricsRequest.class)))
+        .thenReturn(
+            ListMetricsResponse.builder()
+                .metrics(
+                    Metric.builder()
+                        .dimensions(
+                            Dimension.builder().name("LoadBalancerName").value("myLB").build())
+                        .build(),
+                    Metric.builder()
+                        .dimensions(
+                            Dimension.builder()
+                                .name("LoadBalancerName")
+                                .value("my\\\"LB\"\n")
+                                .build())
+                        .build())
+                .build());
+    Mockito.when(cloudWatchClient.getMetricStatistics((GetMetricStatisticsRequest) any()))
+        .thenReturn(
+            GetMetricStatisticsResponse.builder()
+                .datapoints(
+                    Datapoint.builder()
+                        .timestamp(new Date().toInstant())
+                        .sum(4.0)
+                        .average(2.0)
+                        .extendedStatistics(Map.of("p95", 3.5))
+                        .unit(StandardUnit.COUNT)
+                        .build())
+                .build());
+
+    for (String contentType :
+        List.of(TextFormat.CONTENT_TYPE_004, TextFormat.CONTENT_TYPE_OPENMETRICS_100)) {
+      StringWriter collected = new StringWriter();
+      TextFormat.writeFormat(contentType, collected, Collections.enumeration(collector.collect()));
+      double samplesStreamed = samplesStreamed();
+      StringWriter streamed = new StringWriter();
+      List<Collector.MetricFamilySamples> rest =
+          collector.stream(streamed, RuleExposition.Format.of(contentType));
+      TextFormat.writeFormat(contentType, streamed, Collections.enumeration(rest));
+
+      // Only the rule that isn't served its last good result is rendered rather than built.
+      assertEquals(6.0, samplesStreamed() - samplesStreamed, .01);
+
+      assertTrue(streamed.toString().contains("aws_elb_request_count_p95{"));
+      assertTrue(streamed.toString().contains("load_balancer_name=\"my\\\\\\\"LB\\\"\\n\""));
+      assertEquals(withoutTimings(collected.toString()), withoutTimings(streamed.toString()));
+    }
+  }
+
+  private static double samplesStreamed() {
+    Double value =
+        CollectorRegistry.defaultRegistry.getSampleValue(
+            "cloudwatch_exporter_samples_streamed_total");
+    return value == null ? 0 : value;
+  }
+
+  /** The exposition without the samples that differ from one scrape to the next. */
+  private static String withoutTimings(String exposition) {
+    StringBuilder lines = new StringBuilder();
+    for (String line : exposition.split("\n")) {
+      if (line.startsWith("#") || !(line.contains("_seconds{") || line.contains("_seconds "))) {
+        lines.append(line).append('\n');
+      }
+    }
+    return lines.toString();
+  }
+
+  @Test
+  public void testStreamedFamiliesOfPolledMetricsAreLeftOut() throws Exception {
+    CloudWatchCollector collector =
+        new CloudWatchCollector(
+            "---\nregion: reg\nmetric_streams_enabled: true\nmetrics:\n- aws_namespace: AWS/EC2\n  aws_metric_name: CPUUtilization\n  aws_statistics: [Sum]\n",
+            cloudWatchClient,
+            taggingClient);
+    MetricStreamStore.Datapoint datapoint = new MetricStreamStore.Datapoint();
+    datapoint.namespace = "AWS/EC2";
+    datapoint.metricName = "CPUUtilization";
+    datapoint.timestampMillis = System.currentTimeMillis();
+    datapoint.receivedMillis = datapoint.timestampMillis;
+    datapoint.sum = 10.0;
+    datapoint.max = 4.0;
+    collector.metricStreams().putAll(List.of(datapoint), "json", datapoint.receivedMillis);
+
+    Set<String> streamed = new HashSet<>();
+    for (Collector.MetricFamilySamples mfs : collector.metricStreams().collect()) {
+      streamed.add(mfs.name);
+    }
+
+    assertFalse(streamed.contains("aws_ec2_cpuutilization_sum"));
+    assertTrue(streamed.contains("aws_ec2_cpuutilization_maximum"));
+  }
+
   @Test
   public void testBuildInfo() throws Exception {
     new BuildInfoCollector().register(registry);
@@ -0,0 +1,80 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import io.prometheus.cloudwatch.DataGetter.MetricRuleData;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+public class ConcurrentGetMetricStatisticsDataGetterTest {
+
+  @Test
+  public void constructorDoesNotWaitForCalls() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger calls = new AtomicInteger();
+    DataGetter delegate =
+        dimensions -> {
+          calls.incrementAndGet();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          return new MetricRuleData(Instant.now(), "N/A");
+        };
+
+    DataGetter sut = new ConcurrentGetMetricStatisticsDataGetter(delegate, 1, zones("a", "b"));
+
+    release.countDown();
+    assertEquals("N/A", sut.metricRuleDataFor(zones("b").get(0)).unit);
+    assertEquals("N/A", sut.metricRuleDataFor(zones("a").get(0)).unit);
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void interruptCancelsOutstandingCalls() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    AtomicInteger calls = new AtomicInteger();
+    DataGetter delegate =
+        dimensions -> {
+          calls.incrementAndGet();
+          started.countDown();
+          try {
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+          } catch (InterruptedException e) {
+            interrupted.countDown();
+          }
+          return null;
+        };
+    DataGetter sut = new ConcurrentGetMetricStatisticsDataGetter(delegate, 1, zones("a", "b"));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    Thread.currentThread().interrupt();
+    try {
+      sut.metricRuleDataFor(zones("a").get(0));
+      fail("Expected a RuntimeException");
+    } catch (RuntimeException e) {
+      assertTrue(Thread.interrupted());
+    }
+
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    Thread.sleep(100);
+    assertEquals(1, calls.get());
+  }
+
+  private static List<List<Dimension>> zones(String... zones) {
+    return Arrays.stream(zones)
+        .map(zone -> List.of(Dimension.builder().name("AvailabilityZone").value(zone).build()))
+        .collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,67 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.Metric;
+
+public class DefaultDimensionSourceTest {
+
+  @Test
+  public void selectsDimensionValues() {
+    MetricRule rule = createMetricRule();
+    rule.awsDimensionSelectValues = Map.of("LoadBalancerName", Set.of("myLB", "otherLB"));
+
+    assertTrue(useMetric(rule, "myLB", "a"));
+    assertTrue(useMetric(rule, "otherLB", "b"));
+    assertFalse(useMetric(rule, "myLB2", "a"));
+  }
+
+  @Test
+  public void selectsDimensionValuesByRegex() {
+    MetricRule rule = createMetricRule();
+    rule.awsDimensionSelectPatterns =
+        Map.of("LoadBalancerName", List.of(Pattern.compile("my.*"), Pattern.compile("other")));
+
+    assertTrue(useMetric(rule, "myLB", "a"));
+    assertTrue(useMetric(rule, "other", "a"));
+    // The whole value has to match.
+    assertFalse(useMetric(rule, "otherLB", "a"));
+  }
+
+  @Test
+  public void selectsDimensionValuesMatchingBoth() {
+    MetricRule rule = createMetricRule();
+    rule.awsDimensionSelectValues = Map.of("AvailabilityZone", Set.of("a"));
+    rule.awsDimensionSelectPatterns = Map.of("LoadBalancerName", List.of(Pattern.compile("my.*")));
+
+    assertTrue(useMetric(rule, "myLB", "a"));
+    assertFalse(useMetric(rule, "myLB", "b"));
+    assertFalse(useMetric(rule, "otherLB", "a"));
+  }
+
+  private static boolean useMetric(
+      MetricRule rule, String loadBalancerName, String availabilityZone) {
+    Metric metric =
+        Metric.builder()
+            .dimensions(
+                Dimension.builder().name("LoadBalancerName").value(loadBalancerName).build(),
+                Dimension.builder().name("AvailabilityZone").value(availabilityZone).build())
+            .build();
+    return DefaultDimensionSource.useMetric(rule, ResourceIdSet.EMPTY, metric);
+  }
+
+  private static MetricRule createMetricRule() {
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/ELB";
+    rule.awsMetricName = "RequestCount";
+    rule.awsDimensions = List.of("LoadBalancerName", "AvailabilityZone");
+    return rule;
+  }
+}
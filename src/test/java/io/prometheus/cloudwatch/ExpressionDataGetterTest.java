@@ -0,0 +1,81 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+public class ExpressionDataGetterTest {
+
+  private static MetricRule rule(List<String> dimensions) {
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/ELB";
+    rule.awsMetricName = "RequestCount";
+    rule.awsDimensions = dimensions;
+    return rule;
+  }
+
+  @Test
+  public void metricsInsightsQueryGroupsByDimensions() {
+    MetricRule rule = rule(List.of("AvailabilityZone", "LoadBalancerName"));
+    rule.awsDimensionSelect = Map.of("LoadBalancerName", List.of("a", "b"));
+
+    assertEquals(
+        "SELECT SUM(\"RequestCount\") FROM SCHEMA(\"AWS/ELB\", \"AvailabilityZone\","
+            + " \"LoadBalancerName\") WHERE (\"LoadBalancerName\" = 'a' OR \"LoadBalancerName\""
+            + " = 'b') GROUP BY \"AvailabilityZone\", \"LoadBalancerName\"",
+        ExpressionDataGetter.metricsInsightsQuery(rule, Statistic.SUM));
+  }
+
+  @Test
+  public void metricsInsightsQueryWithoutDimensions() {
+    assertEquals(
+        "SELECT COUNT(\"RequestCount\") FROM SCHEMA(\"AWS/ELB\")",
+        ExpressionDataGetter.metricsInsightsQuery(rule(null), Statistic.SAMPLE_COUNT));
+  }
+
+  @Test
+  public void searchExpressionMatchesSchema() {
+    MetricRule rule = rule(List.of("LoadBalancerName"));
+    rule.periodSeconds = 60;
+    rule.awsDimensionSelect = Map.of("LoadBalancerName", List.of("a", "b"));
+
+    assertEquals(
+        "SEARCH('{\"AWS/ELB\",\"LoadBalancerName\"} MetricName=\"RequestCount\""
+            + " (LoadBalancerName=\"a\" OR LoadBalancerName=\"b\")', 'p99', 60)",
+        ExpressionDataGetter.searchExpression(rule, "p99"));
+  }
+
+  @Test
+  public void searchExpressionLeavesQuotedValuesToTheFilter() {
+    MetricRule rule = rule(List.of("LoadBalancerName"));
+    rule.periodSeconds = 300;
+    rule.awsDimensionSelect = Map.of("LoadBalancerName", List.of("it's"));
+
+    assertEquals(
+        "SEARCH('{\"AWS/ELB\",\"LoadBalancerName\"} MetricName=\"RequestCount\"', 'Sum', 300)",
+        ExpressionDataGetter.searchExpression(rule, "Sum"));
+  }
+
+  @Test
+  public void parsesExpandedLabel() {
+    List<String> names = List.of("AvailabilityZone", "LoadBalancerName");
+
+    assertEquals(
+        "AvailabilityZone=${PROP('Dim.AvailabilityZone')},"
+            + "LoadBalancerName=${PROP('Dim.LoadBalancerName')}",
+        ExpressionDataGetter.dimensionsLabel(names));
+    assertEquals(
+        List.of(
+            Dimension.builder().name("AvailabilityZone").value("a,b").build(),
+            Dimension.builder().name("LoadBalancerName").value("lb=1").build()),
+        ExpressionDataGetter.parseDimensions(names, "AvailabilityZone=a,b,LoadBalancerName=lb=1"));
+    assertEquals(List.of(), ExpressionDataGetter.parseDimensions(null, ""));
+    assertNull(ExpressionDataGetter.parseDimensions(names, "AvailabilityZone=a"));
+    assertNull(ExpressionDataGetter.parseDimensions(names, "Other=a,LoadBalancerName=b"));
+  }
+}
@@ -0,0 +1,65 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Collector.Type;
+import io.prometheus.cloudwatch.CloudWatchCollector.RuleResult;
+import java.time.Duration;
+import java.util.List;
+import org.junit.Test;
+
+public class LastGoodResultsTest {
+
+  private static MetricRule rule(Duration serveLastGoodResultFor) {
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/ELB";
+    rule.awsMetricName = "RequestCount";
+    rule.serveLastGoodResultFor = serveLastGoodResultFor;
+    return rule;
+  }
+
+  private static RuleResult succeeded(MetricRule rule) {
+    RuleResult result = new RuleResult();
+    result.rule = rule;
+    result.metricFamilySamples.add(
+        new MetricFamilySamples(
+            "aws_elb_request_count_sum",
+            Type.GAUGE,
+            "help",
+            List.of(
+                new MetricFamilySamples.Sample(
+                    "aws_elb_request_count_sum", List.of(), List.of(), 1))));
+    return result;
+  }
+
+  @Test
+  public void servesLastGoodResultWithinItsDuration() {
+    LastGoodResults sut = new LastGoodResults();
+    MetricRule rule = rule(Duration.ofSeconds(60));
+    sut.serve(succeeded(rule), 1000);
+
+    RuleResult served = sut.serve(RuleResult.timedOut(rule), 31000);
+
+    assertEquals(1, served.metricFamilySamples.size());
+    assertTrue(served.timedOut);
+    assertEquals(1000, served.lastSuccessMillis);
+    assertTrue(sut.serve(RuleResult.timedOut(rule), 62000).metricFamilySamples.isEmpty());
+  }
+
+  @Test
+  public void onlyKeepsSuccessTimeWhenNotServingLastGoodResult() {
+    LastGoodResults sut = new LastGoodResults();
+    MetricRule rule = rule(Duration.ZERO);
+    sut.serve(succeeded(rule), 1000);
+    RuleResult failed = RuleResult.timedOut(rule);
+
+    RuleResult served = sut.serve(failed, 1000);
+
+    assertSame(failed, served);
+    assertTrue(served.metricFamilySamples.isEmpty());
+    assertEquals(1000, served.lastSuccessMillis);
+  }
+}
@@ -0,0 +1,53 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import org.junit.Test;
+
+public class MetricDataCacheTest {
+
+  @Test
+  public void expiresAtNextPeriodBoundary() {
+    MetricRule rule = createMetricRule(300, 0);
+
+    long expiresAfter =
+        MetricDataCache.expiresAfterMillis(rule, Duration.ofSeconds(3600 + 100).toMillis());
+
+    assertEquals(200, Duration.ofMillis(expiresAfter).toSeconds());
+  }
+
+  @Test
+  public void expiresAtNextPeriodBoundaryPlusDelay() {
+    MetricRule rule = createMetricRule(300, 600);
+
+    long expiresAfter =
+        MetricDataCache.expiresAfterMillis(rule, Duration.ofSeconds(3600 + 100).toMillis());
+
+    assertEquals(200, Duration.ofMillis(expiresAfter).toSeconds());
+
+    expiresAfter =
+        MetricDataCache.expiresAfterMillis(rule, Duration.ofSeconds(3600 + 650).toMillis());
+
+    assertEquals(250, Duration.ofMillis(expiresAfter).toSeconds());
+  }
+
+  @Test
+  public void expiresAfterFullPeriodOnBoundary() {
+    MetricRule rule = createMetricRule(60, 0);
+
+    long expiresAfter =
+        MetricDataCache.expiresAfterMillis(rule, Duration.ofSeconds(600).toMillis());
+
+    assertEquals(60, Duration.ofMillis(expiresAfter).toSeconds());
+  }
+
+  private MetricRule createMetricRule(int periodSeconds, int delaySeconds) {
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/ELB";
+    rule.awsMetricName = "RequestCount";
+    rule.periodSeconds = periodSeconds;
+    rule.delaySeconds = delaySeconds;
+    return rule;
+  }
+}
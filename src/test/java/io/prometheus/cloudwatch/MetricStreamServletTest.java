@@ -0,0 +1,270 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.Counter;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class MetricStreamServletTest {
+
+  // Two records of a stream in the JSON format, as delivered by Firehose.
+  private static final String JSON_RECORD =
+      "{\"metric_stream_name\":\"MyMetricStream\",\"account_id\":\"123456789012\","
+          + "\"region\":\"us-east-1\",\"namespace\":\"AWS/EC2\",\"metric_name\":\"CPUUtilization\","
+          + "\"dimensions\":{\"InstanceId\":\"i-123456789012\"},\"timestamp\":1611929698000,"
+          + "\"value\":{\"max\":4.0,\"min\":1.0,\"sum\":10.0,\"count\":4.0,\"p99\":3.9},"
+          + "\"unit\":\"Percent\"}\n"
+          + "{\"metric_stream_name\":\"MyMetricStream\",\"account_id\":\"123456789012\","
+          + "\"region\":\"us-east-1\",\"namespace\":\"AWS/EC2\",\"metric_name\":\"CPUUtilization\","
+          + "\"dimensions\":{\"InstanceId\":\"i-123456789012\"},\"timestamp\":1611929638000,"
+          + "\"value\":{\"max\":9.0,\"min\":9.0,\"sum\":9.0,\"count\":1.0},"
+          + "\"unit\":\"Percent\"}\n";
+
+  private Counter dropped;
+  private MetricStreamStore store;
+  private MetricStreamServlet servlet;
+
+  @Before
+  public void setUp() {
+    dropped = Counter.build().name("dropped").help("help").create();
+    store =
+        new MetricStreamStore(
+            Counter.build().name("datapoints").help("help").labelNames("format").create(), dropped);
+    store.configure(true, null, 1000, Duration.ofMinutes(10));
+    servlet = new MetricStreamServlet(store);
+  }
+
+  private static String delivery(byte[]... records) {
+    StringBuilder delivery = new StringBuilder("{\"requestId\":\"req-1\",\"timestamp\":1,");
+    delivery.append("\"records\":[");
+    for (int i = 0; i < records.length; i++) {
+      delivery.append(i == 0 ? "" : ",");
+      delivery.append("{\"data\":\"").append(Base64.getEncoder().encodeToString(records[i]));
+      delivery.append("\"}");
+    }
+    return delivery.append("]}").toString();
+  }
+
+  private int post(String body, String accessKey, StringWriter responseBody) throws Exception {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    ByteArrayInputStream in = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    Mockito.when(request.getInputStream())
+        .thenReturn(
+            new ServletInputStream() {
+              @Override
+              public boolean isFinished() {
+                return in.available() == 0;
+              }
+
+              @Override
+              public boolean isReady() {
+                return true;
+              }
+
+              @Override
+              public void setReadListener(ReadListener readListener) {}
+
+              @Override
+              public int read() {
+                return in.read();
+              }
+            });
+    Mockito.when(request.getHeader(MetricStreamServlet.ACCESS_KEY_HEADER)).thenReturn(accessKey);
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    Mockito.when(response.getWriter()).thenReturn(new PrintWriter(responseBody, true));
+    int[] status = new int[1];
+    Mockito.doAnswer(
+            invocation -> {
+              status[0] = invocation.getArgument(0);
+              return null;
+            })
+        .when(response)
+        .setStatus(Mockito.anyInt());
+
+    servlet.doPost(request, response);
+    return status[0];
+  }
+
+  private Map<String, Double> values() {
+    Map<String, Double> values = new HashMap<>();
+    for (MetricFamilySamples mfs : store.collect(System.currentTimeMillis())) {
+      for (MetricFamilySamples.Sample sample : mfs.samples) {
+        values.put(sample.name + sample.labelValues, sample.value);
+      }
+    }
+    return values;
+  }
+
+  @Test
+  public void storesLatestJsonDatapoint() throws Exception {
+    StringWriter responseBody = new StringWriter();
+
+    int status = post(delivery(JSON_RECORD.getBytes(StandardCharsets.UTF_8)), null, responseBody);
+
+    assertEquals(200, status);
+    assertTrue(responseBody.toString().startsWith("{\"requestId\":\"req-1\",\"timestamp\":"));
+    Map<String, Double> values = values();
+    String labels = "[aws_ec2, , us-east-1, 123456789012, i-123456789012]";
+    assertEquals(10.0, values.get("aws_ec2_cpuutilization_sum" + labels), .01);
+    assertEquals(4.0, values.get("aws_ec2_cpuutilization_sample_count" + labels), .01);
+    assertEquals(1.0, values.get("aws_ec2_cpuutilization_minimum" + labels), .01);
+    assertEquals(4.0, values.get("aws_ec2_cpuutilization_maximum" + labels), .01);
+    assertEquals(2.5, values.get("aws_ec2_cpuutilization_average" + labels), .01);
+    assertEquals(3.9, values.get("aws_ec2_cpuutilization_p99" + labels), .01);
+    assertEquals(1.0, values.get("cloudwatch_exporter_metric_stream_series[]"), .01);
+  }
+
+  @Test
+  public void storesOpenTelemetryDatapoint() throws Exception {
+    byte[] resource =
+        message(
+            bytesField(
+                1,
+                message(
+                    stringField(1, "cloud.account.id"),
+                    bytesField(2, message(stringField(1, "123456789012"))))),
+            bytesField(
+                1,
+                message(
+                    stringField(1, "cloud.region"),
+                    bytesField(2, message(stringField(1, "eu-west-1"))))));
+    byte[] dataPoint =
+        message(
+            bytesField(1, message(stringField(1, "Namespace"), stringField(2, "AWS/ELB"))),
+            bytesField(1, message(stringField(1, "MetricName"), stringField(2, "RequestCount"))),
+            bytesField(1, message(stringField(1, "LoadBalancerName"), stringField(2, "myLB"))),
+            fixed64Field(3, 1611929698000L * 1_000_000),
+            fixed64Field(4, 3),
+            doubleField(5, 6.0),
+            bytesField(6, message(doubleField(1, 0.0), doubleField(2, 1.0))),
+            bytesField(6, message(doubleField(1, 1.0), doubleField(2, 3.0))),
+            bytesField(6, message(doubleField(1, 0.999), doubleField(2, 2.9))));
+    byte[] metric =
+        message(
+            stringField(1, "amazonaws.com/AWS/ELB/RequestCount"),
+            stringField(3, "{Count}"),
+            bytesField(11, message(bytesField(1, dataPoint))));
+    byte[] request =
+        message(
+            bytesField(
+                1,
+                message(bytesField(2, message(bytesField(2, metric))), bytesField(1, resource))));
+    ByteArrayOutputStream record = new ByteArrayOutputStream();
+    writeVarint(record, request.length);
+    record.write(request);
+
+    int status = post(delivery(record.toByteArray()), null, new StringWriter());
+
+    assertEquals(200, status);
+    Map<String, Double> values = values();
+    String labels = "[aws_elb, , eu-west-1, 123456789012, myLB]";
+    assertEquals(6.0, values.get("aws_elb_request_count_sum" + labels), .01);
+    assertEquals(3.0, values.get("aws_elb_request_count_sample_count" + labels), .01);
+    assertEquals(1.0, values.get("aws_elb_request_count_minimum" + labels), .01);
+    assertEquals(3.0, values.get("aws_elb_request_count_maximum" + labels), .01);
+    assertEquals(2.9, values.get("aws_elb_request_count_p99_9" + labels), .01);
+  }
+
+  @Test
+  public void rejectsWrongAccessKey() throws Exception {
+    store.configure(true, "secret", 1000, Duration.ofMinutes(10));
+    StringWriter responseBody = new StringWriter();
+    String body = delivery(JSON_RECORD.getBytes(StandardCharsets.UTF_8));
+
+    int status = post(body, "guess", responseBody);
+
+    assertEquals(401, status);
+    assertTrue(responseBody.toString().contains("\"errorMessage\":\"Invalid access key\""));
+    assertEquals(0.0, values().get("cloudwatch_exporter_metric_stream_series[]"), .01);
+    assertEquals(200, post(delivery(), "secret", new StringWriter()));
+  }
+
+  @Test
+  public void rejectsMalformedDelivery() throws Exception {
+    assertEquals(400, post("{\"records\":[{\"data\":\"not base64!\"}]}", null, new StringWriter()));
+    assertEquals(400, post("[", null, new StringWriter()));
+    assertEquals(400, post("[".repeat(100000), null, new StringWriter()));
+  }
+
+  @Test
+  public void notFoundWhenDisabled() throws Exception {
+    store.configure(false, null, 1000, Duration.ofMinutes(10));
+
+    assertEquals(404, post(delivery(), null, new StringWriter()));
+    assertTrue(store.collect().isEmpty());
+  }
+
+  @Test
+  public void dropsNewSeriesWhenFull() throws Exception {
+    store.configure(true, null, 16, Duration.ofMinutes(10));
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      lines.append(JSON_RECORD.split("\n")[0].replace("i-123456789012", "i-" + i)).append('\n');
+    }
+
+    String body = delivery(lines.toString().getBytes(StandardCharsets.UTF_8));
+
+    assertEquals(200, post(body, null, new StringWriter()));
+    double series = values().get("cloudwatch_exporter_metric_stream_series[]");
+    assertTrue(series > 0 && series <= 16);
+    assertEquals(100 - series, dropped.get(), .01);
+  }
+
+  private static byte[] message(byte[]... fields) throws Exception {
+    ByteArrayOutputStream message = new ByteArrayOutputStream();
+    for (byte[] field : fields) {
+      message.write(field);
+    }
+    return message.toByteArray();
+  }
+
+  private static byte[] bytesField(int number, byte[] value) throws Exception {
+    ByteArrayOutputStream field = new ByteArrayOutputStream();
+    writeVarint(field, number << 3 | 2);
+    writeVarint(field, value.length);
+    field.write(value);
+    return field.toByteArray();
+  }
+
+  private static byte[] stringField(int number, String value) throws Exception {
+    return bytesField(number, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static byte[] doubleField(int number, double value) {
+    return fixed64Field(number, Double.doubleToLongBits(value));
+  }
+
+  private static byte[] fixed64Field(int number, long value) {
+    ByteArrayOutputStream field = new ByteArrayOutputStream();
+    writeVarint(field, number << 3 | 1);
+    for (int i = 0; i < 8; i++) {
+      field.write((int) (value >>> (8 * i)));
+    }
+    return field.toByteArray();
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7fL) != 0) {
+      out.write((int) (value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+}
@@ -285,6 +285,7 @@ public class RequestsMatchers {
 
   static class MetricDataQueryMatcher extends BaseMatcher<MetricDataQuery> {
     String label;
+    String expression;
     MetricStatMatcher metricStat;
 
     public MetricDataQueryMatcher Label(String label) {
@@ -297,6 +298,11 @@ public class RequestsMatchers {
       return this;
     }
 
+    public MetricDataQueryMatcher Expression(String expression) {
+      this.expression = expression;
+      return this;
+    }
+
     @Override
     public boolean matches(Object o) {
       MetricDataQuery query = (MetricDataQuery) o;
@@ -304,6 +310,9 @@ public class RequestsMatchers {
       if (label != null && !label.equals(query.label())) {
         return false;
       }
+      if (expression != null && !expression.equals(query.expression())) {
+        return false;
+      }
       if (metricStat != null && !metricStat.matches(query.metricStat())) {
         return false;
       }
@@ -316,6 +325,9 @@ public class RequestsMatchers {
       if (label != null) {
         description.appendText(String.format(" with label '%s'", label));
       }
+      if (expression != null) {
+        description.appendText(String.format(" with expression '%s'", expression));
+      }
       if (metricStat != null) {
         description.appendText(" with stat: ");
         metricStat.describeTo(description);
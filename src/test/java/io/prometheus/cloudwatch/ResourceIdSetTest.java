@@ -0,0 +1,38 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import org.junit.Test;
+
+public class ResourceIdSetTest {
+
+  @Test
+  public void containsSelectedIds() {
+    ResourceIdSet sut = ResourceIdSet.of(List.of("i-1", "i-2", "i-2"));
+
+    assertTrue(sut.contains("i-1"));
+    assertTrue(sut.contains("i-2"));
+    assertFalse(sut.contains("i-3"));
+    assertEquals(2, sut.size());
+  }
+
+  @Test
+  public void equalRegardlessOfOrder() {
+    ResourceIdSet first = ResourceIdSet.of(List.of("i-1", "i-2"));
+    ResourceIdSet second = ResourceIdSet.of(List.of("i-2", "i-1"));
+
+    assertEquals(first, second);
+    assertEquals(first.hashCode(), second.hashCode());
+    assertNotEquals(first, ResourceIdSet.of(List.of("i-1")));
+  }
+
+  @Test
+  public void emptyIdsShareInstance() {
+    assertSame(ResourceIdSet.EMPTY, ResourceIdSet.of(List.of()));
+  }
+}
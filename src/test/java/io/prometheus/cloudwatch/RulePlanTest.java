@@ -0,0 +1,61 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import org.junit.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Statistic;
+
+public class RulePlanTest {
+
+  @Test
+  public void namesAreSanitized() {
+    MetricRule rule = createMetricRule("AWS/ApplicationELB", "HTTPCode_ELB_5XX_Count");
+
+    RulePlan plan = new RulePlan(rule);
+
+    assertEquals("aws_applicationelb", plan.jobName);
+    assertEquals("aws_applicationelb_httpcode_elb_5_xx_count", plan.baseName);
+    assertEquals(
+        "aws_applicationelb_httpcode_elb_5_xx_count_sample_count",
+        plan.statistics.get(RulePlan.indexOf(Statistic.SAMPLE_COUNT)).name);
+    assertEquals(
+        "aws_applicationelb_httpcode_elb_5_xx_count_p99_9",
+        plan.extendedStatistic(rule, "p99.9").name);
+    assertEquals("load_balancer", plan.labelName("LoadBalancer"));
+    assertEquals("target_group", plan.labelName("TargetGroup"));
+    assertEquals("tag_CostCenter_2", plan.tagLabelName("CostCenter:2"));
+  }
+
+  @Test
+  public void helpIncludesUnit() {
+    MetricRule rule = createMetricRule("AWS/ELB", "RequestCount");
+
+    RulePlan plan = new RulePlan(rule);
+
+    assertEquals(
+        "CloudWatch metric AWS/ELB RequestCount Dimensions: [LoadBalancer] Statistic: Sum"
+            + " Unit: Count",
+        plan.statistics.get(RulePlan.indexOf(Statistic.SUM)).help("Count"));
+  }
+
+  @Test
+  public void configuredHelpIsUsedAsIs() {
+    MetricRule rule = createMetricRule("AWS/ELB", "RequestCount");
+    rule.help = "Requests";
+
+    RulePlan plan = new RulePlan(rule);
+
+    assertEquals("Requests", plan.statistics.get(RulePlan.indexOf(Statistic.SUM)).help("Count"));
+    assertEquals("Requests", plan.extendedStatistic(rule, "p99.9").help("Count"));
+  }
+
+  private MetricRule createMetricRule(String namespace, String metricName) {
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = namespace;
+    rule.awsMetricName = metricName;
+    rule.awsDimensions = List.of("LoadBalancer");
+    rule.awsExtendedStatistics = List.of("p99.9");
+    return rule;
+  }
+}
@@ -0,0 +1,40 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.http.HttpServletRequest;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class ScrapeTimeoutFilterTest {
+
+  @Test
+  public void leavesTimeForTheResponse() {
+    assertEquals(Duration.ofMillis(9500), ScrapeTimeoutFilter.parseTimeout("10"));
+    assertEquals(Duration.ofMillis(500), ScrapeTimeoutFilter.parseTimeout("1"));
+  }
+
+  @Test
+  public void ignoresInvalidTimeouts() {
+    assertNull(ScrapeTimeoutFilter.parseTimeout(null));
+    assertNull(ScrapeTimeoutFilter.parseTimeout("soon"));
+    assertNull(ScrapeTimeoutFilter.parseTimeout("0"));
+  }
+
+  @Test
+  public void timeoutOnlyVisibleDuringRequest() throws Exception {
+    HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+    Mockito.when(request.getHeader(ScrapeTimeoutFilter.TIMEOUT_HEADER)).thenReturn("10");
+    AtomicReference<Duration> seen = new AtomicReference<>();
+    FilterChain chain = (req, resp) -> seen.set(ScrapeTimeoutFilter.requestTimeout());
+
+    new ScrapeTimeoutFilter().doFilter(request, null, chain);
+
+    assertEquals(Duration.ofMillis(9500), seen.get());
+    assertNull(ScrapeTimeoutFilter.requestTimeout());
+  }
+}
@@ -0,0 +1,106 @@
+package io.prometheus.cloudwatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+import software.amazon.awssdk.services.cloudwatch.model.Dimension;
+
+public class ShardingTest {
+
+  private static MetricRule rule(String metricName, boolean shardByDimensions) {
+    MetricRule rule = new MetricRule();
+    rule.awsNamespace = "AWS/EC2";
+    rule.awsMetricName = metricName;
+    rule.shardByDimensions = shardByDimensions;
+    return rule;
+  }
+
+  @Test
+  public void everyRuleHasExactlyOneShard() {
+    List<Sharding> shards = List.of(new Sharding(0, 3), new Sharding(1, 3), new Sharding(2, 3));
+    int[] rulesPerShard = new int[3];
+    for (int i = 0; i < 300; i++) {
+      MetricRule rule = rule("Metric" + i, false);
+      int owners = 0;
+      for (Sharding shard : shards) {
+        if (shard.ownsRule(rule)) {
+          owners++;
+          rulesPerShard[shard.index]++;
+        }
+      }
+      assertEquals(1, owners);
+    }
+    for (int rules : rulesPerShard) {
+      assertTrue("uneven split: " + rules, rules > 50);
+    }
+  }
+
+  @Test
+  public void ruleShardedByDimensionsSplitsItsDimensions() {
+    MetricRule rule = rule("CPUUtilization", true);
+    List<List<Dimension>> dimensionList = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      dimensionList.add(List.of(Dimension.builder().name("InstanceId").value("i-" + i).build()));
+    }
+
+    Set<List<Dimension>> seen = new HashSet<>();
+    int total = 0;
+    for (int index = 0; index < 2; index++) {
+      Sharding shard = new Sharding(index, 2);
+      assertTrue(shard.ownsRule(rule));
+      List<List<Dimension>> owned = shard.ownDimensions(rule, dimensionList);
+      assertTrue(owned.size() < dimensionList.size());
+      seen.addAll(owned);
+      total += owned.size();
+    }
+    assertEquals(dimensionList.size(), total);
+    assertEquals(new HashSet<>(dimensionList), seen);
+  }
+
+  @Test
+  public void unshardedOwnsEverything() {
+    MetricRule rule = rule("CPUUtilization", false);
+    List<List<Dimension>> dimensionList =
+        List.of(List.of(Dimension.builder().name("InstanceId").value("i-1").build()));
+
+    Sharding sharding = Sharding.fromConfig(Map.of(), name -> null);
+
+    assertSame(Sharding.NONE, sharding);
+    assertFalse(sharding.isSharded());
+    assertTrue(sharding.ownsRule(rule));
+    assertSame(dimensionList, sharding.ownDimensions(rule, dimensionList));
+  }
+
+  @Test
+  public void overridesReplaceConfig() {
+    Map<String, Object> config = Map.of("shard_index", 0, "shard_count", 2);
+
+    Sharding fromConfig = Sharding.fromConfig(config, name -> null);
+    Sharding overridden =
+        Sharding.fromConfig(config, name -> Sharding.INDEX_PROPERTY.equals(name) ? "3" : "4");
+
+    assertEquals(0, fromConfig.index);
+    assertEquals(2, fromConfig.count);
+    assertEquals(3, overridden.index);
+    assertEquals(4, overridden.count);
+  }
+
+  @Test
+  public void rejectsIndexOutsideCount() {
+    try {
+      Sharding.fromConfig(Map.of("shard_index", 2, "shard_count", 2), name -> null);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}